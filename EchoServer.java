@@ -3,8 +3,18 @@
 // license found at www.lloseng.com 
 
 import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import common.AsyncLogger;
 import common.ChatIF;
+import common.CommandRouter;
 import ocsf.server.*;
 
 /**
@@ -17,7 +27,7 @@ import ocsf.server.*;
  * @author Paul Holden
  * @version July 2000
  */
-public class EchoServer extends AbstractServer {
+final public class EchoServer extends AbstractServer {
 
 	//Class variables *************************************************
 	/**
@@ -25,12 +35,133 @@ public class EchoServer extends AbstractServer {
 	 */
 	final public static int DEFAULT_PORT = 5555;
 	
+	/**
+	 * The number of chat messages per second a client may send, after a
+	 * burst of MESSAGE_BURST messages.
+	 */
+	final public static double MESSAGE_RATE = 20;
+	
+	/**
+	 * The number of chat messages a client may send at once.
+	 */
+	final public static int MESSAGE_BURST = 50;
+	
+	/**
+	 * The number of commands per second a client may send, such as #login
+	 * or #history, after a burst of COMMAND_BURST commands. Commands have a
+	 * budget of their own, apart from the chat messages.
+	 */
+	final public static double COMMAND_RATE = 5;
+	
+	/**
+	 * The number of commands a client may send at once.
+	 */
+	final public static int COMMAND_BURST = 20;
+	
+	/**
+	 * The number of connections per second accepted from one address, after
+	 * a burst of CONNECTION_BURST connections.
+	 */
+	final public static double CONNECTION_RATE = 10;
+	
+	/**
+	 * The number of connections accepted at once from one address.
+	 */
+	final public static int CONNECTION_BURST = 100;
+	
+	/**
+	 * The longest, in milliseconds, a write to a client may wait before the
+	 * client is disconnected for falling behind.
+	 */
+	final public static long MAX_WRITE_LATENCY = 5000;
+	
+	/**
+	 * The most bytes that may wait in memory for a client before it is
+	 * disconnected for falling behind.
+	 */
+	final public static long MAX_PENDING_BYTES = 4 * 1024 * 1024;
+	
+	/**
+	 * The number of earlier messages a client is sent when it logs in.
+	 */
+	final public static int LOGIN_HISTORY = 20;
+	
+	/**
+	 * The most earlier messages a client may ask for with #history.
+	 */
+	final public static int MAX_HISTORY = 1000;
+	
+	/**
+	 * The number of earlier messages sent to a client in one message.
+	 */
+	final public static int HISTORY_BATCH = 50;
+	
+	/**
+	 * The number of the messages kept for a user while offline that are sent
+	 * to the user in one message when the user logs in.
+	 */
+	final public static int MAIL_BATCH = 50;
+	
+	/**
+	 * The most messages that may wait in a client's queue before the next
+	 * batch of earlier or offline messages is sent.
+	 */
+	final public static int HISTORY_QUEUE_LIMIT = 8;
+	
+	/**
+	 * the format of the time shown in front of earlier messages
+	 */
+	final static DateTimeFormatter HISTORY_TIME =
+		DateTimeFormatter.ofPattern("HH:mm").withZone(ZoneId.systemDefault());
+	
 	// Instance Variables--------------------------------------------------------------
 	/**
 	 * the interface-type variable that will allow the implementation of 
 	 * the display method in the server
 	 */
 	ChatIF serverUI;
+	
+	/**
+	 * the connection of every logged-in client, by login ID, used to find a
+	 * user and to reject a login ID already in use without scanning clients
+	 */
+	ConcurrentHashMap<String, ConnectionToClient> loginIndex = new ConcurrentHashMap<String, ConnectionToClient>();
+	
+	/**
+	 * the log the server reports to, written to the console by a background
+	 * thread so that handling messages never waits for the console
+	 */
+	AsyncLogger log = AsyncLogger.getConsole();
+	
+	/**
+	 * the commands typed at the server console, by name
+	 */
+	CommandRouter<EchoServer> consoleCommands = new CommandRouter<EchoServer>();
+	
+	/**
+	 * the commands clients can send, by name; any other message is chat
+	 */
+	CommandRouter<ConnectionToClient> clientCommands = new CommandRouter<ConnectionToClient>();
+	
+	/**
+	 * runs the replays of earlier messages & the deliveries of offline
+	 * messages, each on a virtual thread of its own, so that neither the
+	 * reader of the client nor the senders of other messages wait for the
+	 * disk or for a slow client
+	 */
+	ExecutorService deliveries = Executors.newVirtualThreadPerTaskExecutor();
+	
+	/**
+	 * the store of the private messages sent to users while offline, null if
+	 * they are refused
+	 */
+	MailboxStore mailboxes;
+	
+	/**
+	 * the login IDs of the users being sent their offline messages, so that
+	 * no user is sent them twice at once
+	 */
+	Set<String> mailDeliveries = ConcurrentHashMap.newKeySet();
   
 	//Constructors ****************************************************
 	/**
@@ -40,6 +171,12 @@ public class EchoServer extends AbstractServer {
 	 */
 	public EchoServer(int port) {
 		super(port);	
+		registerCommands();
+		setMessageRateLimit(MESSAGE_RATE, MESSAGE_BURST);
+		setCommandRateLimit(COMMAND_RATE, COMMAND_BURST);
+		setConnectionRateLimit(CONNECTION_RATE, CONNECTION_BURST);
+		setSlowConsumerThreshold(MAX_WRITE_LATENCY, MAX_PENDING_BYTES);
+		setOverflowPolicy(OVERFLOW_BLOCK); //no message lost, as slow clients are evicted
 	}
   
 	/**
@@ -58,308 +195,1053 @@ public class EchoServer extends AbstractServer {
 		// Initialization
 		super(port);
 		this.serverUI = serverUI;
+		registerCommands();
+		setMessageRateLimit(MESSAGE_RATE, MESSAGE_BURST);
+		setCommandRateLimit(COMMAND_RATE, COMMAND_BURST);
+		setConnectionRateLimit(CONNECTION_RATE, CONNECTION_BURST);
+		setSlowConsumerThreshold(MAX_WRITE_LATENCY, MAX_PENDING_BYTES);
+		setOverflowPolicy(OVERFLOW_BLOCK); //no message lost, as slow clients are evicted
 		
 	}
 
 	//Instance methods ************************************************
+	/**
+	 * this helper method registers the commands of the server console & the
+	 * commands clients can send; anything else is a chat message
+	 */
+	private void registerCommands() {
+		
+		// Process: registering the server console commands
+		consoleCommands.register("#quit", (server, line, arg) -> quit());
+		consoleCommands.register("#stop", (server, line, arg) -> stopServer());
+		consoleCommands.register("#close", (server, line, arg) -> closeServer());
+		consoleCommands.register("#start", (server, line, arg) -> startServer());
+		consoleCommands.register("#setport", (server, line, arg) -> setServerPort(line.substring(arg)));
+		consoleCommands.register("#getport", (server, line, arg) -> log.info(String.valueOf(getPort())));
+		consoleCommands.register("#stats", (server, line, arg) -> log.info(getMetrics().snapshot().stripTrailing()));
+		consoleCommands.register("#loglevel", (server, line, arg) -> setLogLevel(line.substring(arg)));
+		consoleCommands.register("#setlimit", (server, line, arg) -> setLimit(line.substring(arg)));
+		consoleCommands.register("#getlimits", (server, line, arg) -> showLimits());
+		consoleCommands.setUnknownCommandHandler((server, line, arg) -> log.error("ERROR - Invalid command."));
+		
+		// Process: registering the client commands
+		clientCommands.register("#login", (client, line, arg) -> login(line, arg, client));
+		clientCommands.register("#w", (client, line, arg) -> sendPrivateMessage(line.substring(arg), client));
+		clientCommands.register("#join", (client, line, arg) -> moveToRoom(line.substring(arg), client));
+		clientCommands.register("#leave", (client, line, arg) -> returnToLobby(client));
+		clientCommands.register("#rooms", (client, line, arg) -> listRooms(client));
+		clientCommands.register("#history", (client, line, arg) -> requestHistory(line.substring(arg), client));
+		
+	}
+	
+	/**
+	 * This method handles any messages typed at the server console.
+	 *
+	 * @param msg The message typed.
+	 */
 	public void handleMessageFromEndUser(Object msg) {
 
 		// Variable Declaration
   		String message = (String) msg;
   		
-  		// Process: checking if message is a command
-		if ((message).charAt(0) == '#') { //command
+  		// Process: running the command, or sending the message
+		if (!consoleCommands.dispatch(this, message)) { //not command
+			
+			// Output
+			serverUI.display(message);
 			
-			// Process: checking length of command
-			if (message.length() > 8) {
+			// Process: sending message to all clients
+			sendToAllClients("SERVER MSG> " + message);
+			
+		}
+		
+	}
+	
+	/**
+	 * this helper method changes the port, only while the server is closed
+	 * it is called when the user types the command #setport <port>
+	 * 
+	 * @param port
+	 * 	the text of the new port number
+	 */
+	private void setServerPort(String port) {
+		
+		// Process: checking for logged off client
+		if (!isListening() && getNumberOfClients() == 0) { //closed
+		
+			try {
+				
+				setPort(Integer.parseInt(port)); //setting port
 				
-				// Process: determining if command involves port
-				if (message.substring(0, 8).equals("#setport")) { //set port command
-					
-					// Process: checking for logged off client
-					if (!isListening() && getNumberOfClients() == 0) { //closed
-					
-						setPort(Integer.parseInt(message.substring(9))); //setting port
-						
-						// Output
-						System.out.println("port set to: " + getPort());
-						
-					}
-					else { //open server
-						
-						// Output
-						System.out.println("ERROR - Server is open. Cannot change port.");
-						
-					}
-					
-				}
-				else {
-					
-					// Output
-					System.out.println("ERROR - Invalid command.");
-					
-				}
+				// Output
+				log.info("port set to: " + getPort());
 				
 			}
-			else {
-			
-				// Process: determining which command was entered
-				switch(message) {
+			catch (NumberFormatException nfe) {
 				
-					case "#quit" :
-						
-						quit(); //quitting server
-						
-						break;
-						
-					case "#stop" :
-						
-						stopListening(); //stop listening
-						
-						// Output
-						serverStopped(); //stopping new connections
-						
-						break;
-						
-					case "#close" :
-						
-						// Output
-						serverStopped(); //stopping new connections
-						
-						try {
-							
-							close(); //closing server & disconnecting all clients					
-							
-						}
-						catch (IOException ioe) {
-
-							// Output
-							System.out.println("Could not close server.");
-							
-						}
-						
-						break;
-						
-					case "#start" :
-						
-						if (isListening()) { //already listening
-							
-							// Output
-							System.out.println("ERROR - Already listening for clients.");
-							
-						}
-						else {
-							
-							try {
-								
-								listen(); //start listening
-								
-							}
-							catch (IOException e) {
-
-								// Output
-								System.out.println("Could not listen for clients");
-								
-							}
-							
-						}
-						
-					case "#getport" :
-						
-						// Output
-						System.out.println(getPort());
-						
-						break;
-						
-					default : //not an actual command
-						
-						// Output
-						System.out.println("ERROR - Invalid command.");
-						
-				}
+				// Output
+				log.error("ERROR - Usage: #setport <port>");
 				
 			}
 			
 		}
-		else { //not command
+		else { //open server
 			
 			// Output
-			serverUI.display(message);
-			
-			// Process: sending message to all clients
-			sendToAllClients("SERVER MSG> " + message);
+			log.error("ERROR - Server is open. Cannot change port.");
 			
 		}
 		
+	}
+	
+	/**
+	 * this helper method changes the lowest level of the lines logged
+	 * it is called when the user types the command #loglevel <level>
+	 * 
+	 * @param level
+	 * 	the name of the level: debug, info, warn or error
+	 */
+	private void setLogLevel(String level) {
+		
+		try {
+			
+			log.setLevel(AsyncLogger.Level.valueOf(level.trim().toUpperCase()));
+			
+			// Output
+			log.log(log.getLevel(), "log level set to: " + log.getLevel());
+			
+		}
+		catch (IllegalArgumentException iae) {
+			
+			// Output
+			log.error("ERROR - Usage: #loglevel <debug|info|warn|error>");
+			
+		}
 		
 	}
 	
 	/**
-	 * This method handles any messages received from the client.
-	 *
-	 * @param msg The message received from the client.
-	 * @param client The connection from which the message originated.
+	 * this helper method changes one of the rate limits, a rate of 0 turning
+	 * it off; message and command limits apply to the clients connecting
+	 * afterwards
+	 * it is called when the user types the command
+	 * #setlimit <messages|commands|connections> <rate> <burst>
+	 * 
+	 * @param limit
+	 * 	the name of the limit, its rate per second and its burst
 	 */
-  	public void handleMessageFromClient(Object msg, ConnectionToClient client) {
-  		
-  		// Variable Declaration
-  		String message = (String) msg;
-  		
-  		// Process: checking message length
-  		if (message.length() >= 6) { //could be login command
-	  		
-  			if (message.length() >= 8) { //could be login command
-	  		
-		  		// Process: checking for login command
-		  		if (message.substring(0, 6).equals("#login")) { //login command
+	private void setLimit(String limit) {
 		
-		  			// Process: checking for already logged in
-		  			if (client.getInfo("loginID") == null) { //first time
-		  			
-			  			// Process: setting the client's login ID to the user's input
-			  			client.setInfo("loginID", message.substring(7));
-			  			
-			  			// Output
-			  			System.out.println("A new client is attempting to connect to the server.");
-			  			System.out.println(message.substring(7) + " has logged on.");
-			  			System.out.println("Message received: #login " + message.substring(7) + " from " + client);
-						
-						// Process: sending message to clients
-						this.sendToAllClients(message.substring(7) + " has logged on.");
-			  			
-		  			}
-		  			else { //invalid msg bc ID already recorded
-		  				
-		  				// Process: closing the client connection
-		  				try {
-		  					
-							client.close(); //closing
-							
-						}
-		  				catch (IOException ioe) { //error-handling
-							
-		  					// Output
-		  					System.out.println("ERROR - Could not terminate client connection.");
-		  					
-						}
-		  				
-		  			}
-		  			
-		  		}
-		  		else { //echo
-		  		
-			  		// Output
-					System.out.println("Message received: " + msg + " from " + client.getInfo("loginID"));
-			  		
-					// Process: sending message to clients
-					this.sendToAllClients(client.getInfo("loginID") + "> " + msg);
-					
-		  		}
-	  			
-	  		}
-  			else {
-  				
-  				if (message.substring(0, 6).equals("#login")) { //checking for incomplete login
-  					
-  					// Process: closing the client connection
-  					try {
-  						
-  					client.close(); //closing
-  					
-  					}
-  					catch (IOException ioe) { //error-handling
-  					
-  						// Output
-  						System.out.println("ERROR - Could not terminate client connection.");
-  						
-  					}
-  					
-  				}
-  				else { //echo
-  					
-  					// Output
-  					System.out.println("Message received: " + msg + " from " + client.getInfo("loginID"));
-  			  		
-  					// Process: sending message to clients
-  					this.sendToAllClients(client.getInfo("loginID") + "> " + msg);
-  					
-  				}
-  				
-  			}
-  			
-  		}
-  		else { //echo
-	  		
-	  		// Output
-  			System.out.println("Message received: " + msg + " from " + client.getInfo("loginID"));
-	  		
-			// Process: sending message to clients
-			this.sendToAllClients(client.getInfo("loginID") + "> " + msg);
+		// Variable Declaration
+		String[] words = limit.trim().split("\\s+");
+		
+		try {
 			
-  		}
+			if (words.length != 3) { //missing or extra words
+				throw new NumberFormatException();
+			}
+			
+			double rate = Double.parseDouble(words[1]);
+			int burst = Integer.parseInt(words[2]);
+			
+			if (!(rate >= 0) || burst < 1) { //out of range
+				throw new NumberFormatException();
+			}
+			
+			switch (words[0]) {
+				case "messages": setMessageRateLimit(rate, burst); break;
+				case "commands": setCommandRateLimit(rate, burst); break;
+				case "connections": setConnectionRateLimit(rate, burst); break;
+				default: throw new NumberFormatException(); //unknown limit
+			}
+			
+			// Output
+			showLimits();
+			
+		}
+		catch (NumberFormatException nfe) {
+			
+			// Output
+			log.error("ERROR - Usage: #setlimit <messages|commands|connections> <rate> <burst>");
+			
+		}
+		
+	}
 	
-  	}
-  	
-  	/**
-	 * this method terminates the server
-	 * it is called when the user types the command #quit
+	/**
+	 * this helper method shows the rate limits
+	 * it is called when the user types the command #getlimits
 	 */
-	private void quit() {
-
+	private void showLimits() {
+		
+		// Output
+		log.info("messages: " + describeLimit(getMessageRate(), getMessageBurst())
+				+ ", commands: " + describeLimit(getCommandRate(), getCommandBurst())
+				+ ", connections: " + describeLimit(getConnectionRate(), getConnectionBurst()));
+		
+	}
+	
+	/**
+	 * this helper method describes a rate limit
+	 * 
+	 * @param rate
+	 * 	the rate per second, 0 if not limited
+	 * @param burst
+	 * 	the burst
+	 * @return the description
+	 */
+	private static String describeLimit(double rate, int burst) {
+		
+		return rate > 0 ? rate + "/s, burst " + burst : "off";
+		
+	}
+	
+	/**
+	 * this helper method stops listening for new clients
+	 * it is called when the user types the command #stop
+	 */
+	private void stopServer() {
+		
+		stopListening(); //stop listening
+		
+		// Output
+		serverStopped(); //stopping new connections
+		
+	}
+	
+	/**
+	 * this helper method stops listening & disconnects all clients
+	 * it is called when the user types the command #close
+	 */
+	private void closeServer() {
+		
+		// Output
+		serverStopped(); //stopping new connections
+		
 		try {
 			
-			close(); //closing server & disconnecting all clients
+			close(); //closing server & disconnecting all clients					
 			
 		}
 		catch (IOException ioe) {
 
 			// Output
-			System.out.println("Could not close server.");
+			log.error("Could not close server.");
 			
 		}
 		
-		System.exit(0); //terminating
+	}
+	
+	/**
+	 * this helper method starts listening for new clients
+	 * it is called when the user types the command #start
+	 */
+	private void startServer() {
+		
+		if (isListening()) { //already listening
+			
+			// Output
+			log.error("ERROR - Already listening for clients.");
+			
+		}
+		else {
+			
+			try {
+				
+				listen(); //start listening
+				
+			}
+			catch (IOException e) {
+
+				// Output
+				log.error("Could not listen for clients");
+				
+			}
+			
+		}
 		
 	}
 	
 	/**
-  	 * this method overrides the one in the superclass
-  	 * it is called when the server is closed
-  	 */
-  	protected void serverClosed() {
+	 * This method handles any messages received from the client.
+	 *
+	 * @param msg The message received from the client.
+	 * @param client The connection from which the message originated.
+	 */
+  	public void handleMessageFromClient(Object msg, ConnectionToClient client) {
   		
-  		// Output
-		System.out.println("Server has been closed.");
+  		// Variable Declaration
+  		String message = (String) msg;
   		
+  		// Process: running the command, or relaying the chat message
+  		if (!clientCommands.dispatch(client, message)) { //echo
+  			
+  			// Output
+  			log.info("Message received: " + msg + " from " + client.getInfo("loginID"));
+  			
+  			// Process: sending message to the client's room, or to all clients
+  			relayMessage(message, client);
+  			
+  		}
+	
   	}
-    
-  	/**
-  	 * This method overrides the one in the superclass.  Called
-  	 * when the server starts listening for connections.
-  	 */
-  	protected void serverStarted() {
-  		System.out.println("Server listening for connections on port " + getPort());	
-  	}
-  
-  	/**
-  	* This method overrides the one in the superclass.  Called
-  	* when the server stops listening for connections.
-  	*/
-  	protected void serverStopped() {
-  		System.out.println("Server has stopped listening for connections.");	
-  	}
-  
+  	
   	/**
-  	 * Hook method called each time a client disconnects.
-  	 * The default implementation does nothing. The method
-  	 * may be overridden by subclasses but should remains synchronized.
-  	 *
-  	 * @param client the connection with the client.
+  	 * this helper method logs a client in under the login ID following "#login "
+  	 * an incomplete or repeated login terminates the connection
+  	 * 
+  	 * @param message
+  	 * 	the login command
+  	 * @param argStart
+  	 * 	the index of the login ID in the command
+  	 * @param client
+  	 * 	the connection of the client
   	 */
-  	synchronized protected void clientDisconnected(ConnectionToClient client) {
-	  
+  	private void login(String message, int argStart, ConnectionToClient client) {
+  		
+  		// Process: checking for a login ID & for already logged in
+  		if (argStart == message.length() || client.getInfo("loginID") != null) { //incomplete or repeated login
+  			
+  			// Process: closing the client connection
+  			try {
+  				
+  				client.close(); //closing
+  				
+  			}
+  			catch (IOException ioe) { //error-handling
+  				
+  				// Output
+  				log.error("ERROR - Could not terminate client connection.");
+  				
+  			}
+  			
+  			return;
+  			
+  		}
+  		
+  		// Variable Declaration
+  		String loginID = message.substring(argStart);
+  		
+  		// Process: claiming the login ID for this client
+  		if (loginIndex.putIfAbsent(loginID, client) != null) { //already in use
+  			
+  			rejectLogin(loginID, client);
+  			
+  			return;
+  			
+  		}
+  		
+  		// Process: setting the client's login ID to the user's input
+  		client.setInfo("loginID", loginID);
+  		
+  		// Output
+  		log.info("A new client is attempting to connect to the server.");
+  		log.info(loginID + " has logged on.");
+  		log.info("Message received: #login " + loginID + " from " + client);
+  		
+  		// Variable Declaration
+  		long upTo = getHistory().getLastSequence();
+  		Runnable announce = () -> {
+  			
+  			deliverMail(client, loginID);
+  			this.sendToAllClients(loginID + " has logged on.");
+  			
+  		};
+  		
+  		// Process: sending the client what was said before it joined & what was sent to it, then announcing it
+  		if (getHistory().isInMemory(null, LOGIN_HISTORY, upTo)) { //no need to read the journal
+  			
+  			try {
+  				
+  				queueHistory(client, getHistory().getRecent(null, LOGIN_HISTORY, upTo));
+  				
+  			}
+  			catch (IOException ioe) { //client gone
+  				
+  				// Output
+  				log.error("ERROR - Could not send earlier messages to " + loginID);
+  				
+  			}
+  			
+  			announce.run();
+  			
+  		}
+  		else { //older messages in the journal, read on a thread of their own
+  			
+  			// Process: holding back what is said meanwhile until the earlier messages are queued
+  			client.holdMessages();
+  			replayHistory(client, null, LOGIN_HISTORY, upTo, () -> {
+  				
+  				try {
+  					
+  					client.releaseMessages();
+  					
+  				}
+  				catch (IOException ioe) { //client gone
+  					
+  					return;
+  					
+  				}
+  				
+  				announce.run();
+  				
+  			});
+  			
+  		}
+  		
+  	}
+  	
+  	/**
+  	 * this helper method sends a client the earlier messages of its room, or
+  	 * of the lobby when it is not in a room
+  	 * it is called when the client sends the command #history <n>
+  	 * 
+  	 * @param count
+  	 * 	the text of the number of messages
+  	 * @param client
+  	 * 	the connection of the client
+  	 */
+  	private void requestHistory(String count, ConnectionToClient client) {
+  		
+  		// Variable Declaration
+  		int messages;
+  		
+  		try {
+  			
+  			messages = Integer.parseInt(count.trim());
+  			
+  		}
+  		catch (NumberFormatException nfe) {
+  			
+  			messages = 0; //not a number
+  			
+  		}
+  		
+  		// Process: checking the number of messages
+  		if (messages <= 0 || messages > MAX_HISTORY) { //out of range
+  			
+  			reply(client, "ERROR - Usage: #history <1-" + MAX_HISTORY + ">");
+  			
+  			return;
+  			
+  		}
+  		
+  		replayHistory(client, (String) client.getInfo("room"), messages, getHistory().getLastSequence(), null);
+  		
+  	}
+  	
+  	/**
+  	 * this helper method sends a client the latest messages of the lobby or of
+  	 * a room, from the history in memory and then the journal, on a thread of
+  	 * its own
+  	 * the messages are sent in batches, each waiting for the client's queue to
+  	 * drain, so that a long replay never fills it
+  	 * 
+  	 * @param client
+  	 * 	the connection of the client
+  	 * @param room
+  	 * 	the room, or null for the lobby
+  	 * @param count
+  	 * 	the most messages sent
+  	 * @param upTo
+  	 * 	the sequence number of the last message sent, so that messages sent
+  	 * 	meanwhile are not sent twice
+  	 * @param whenQueued
+  	 * 	what to do once the messages are queued for the client, or null
+  	 */
+  	private void replayHistory(ConnectionToClient client, String room, int count, long upTo, Runnable whenQueued) {
+  		
+  		deliveries.execute(() -> {
+  			
+  			try {
+  				
+  				queueHistory(client, getHistory().getLatest(room, count, upTo));
+  				
+  			}
+  			catch (IOException ioe) { //client gone, or journal unreadable
+  				
+  				// Output
+  				log.error("ERROR - Could not send earlier messages to " + client.getInfo("loginID"));
+  				
+  			}
+  			
+  			if (whenQueued != null) {
+  				
+  				whenQueued.run();
+  				
+  			}
+  			
+  		});
+  		
+  	}
+  	
+  	/**
+  	 * this helper method queues earlier messages for a client, HISTORY_BATCH
+  	 * messages at a time, each batch waiting for the client's queue to drain
+  	 * 
+  	 * @param client
+  	 * 	the connection of the client
+  	 * @param entries
+  	 * 	the messages, oldest first
+  	 * 
+  	 * @throws IOException
+  	 */
+  	private void queueHistory(ConnectionToClient client, List<MessageJournal.Entry> entries) throws IOException {
+  		
+  		// Process: sending the messages, one batch at a time
+  		for (int first = 0; first < entries.size(); first += HISTORY_BATCH) {
+  			
+  			// Variable Declaration
+  			StringBuilder batch = new StringBuilder();
+  			
+  			for (int i = first; i < Math.min(first + HISTORY_BATCH, entries.size()); i++) {
+  				
+  				appendLine(batch, entries.get(i).getTimestamp(), entries.get(i).getMessage());
+  				
+  			}
+  			
+  			awaitQueue(client);
+  			client.queueToClient(batch.toString());
+  			
+  		}
+  		
+  	}
+  	
+  	/**
+  	 * this helper method sends a user the private messages kept while the
+  	 * user was offline, on a thread of its own, in batches of MAIL_BATCH
+  	 * messages are only removed from the store once queued for the client
+  	 * 
+  	 * @param client
+  	 * 	the connection of the user
+  	 * @param loginID
+  	 * 	the login ID of the user
+  	 */
+  	private void deliverMail(ConnectionToClient client, String loginID) {
+  		
+  		// Process: checking for a store & for a delivery under way
+  		if (mailboxes == null || !mailDeliveries.add(loginID)) {
+  			
+  			return;
+  			
+  		}
+  		
+  		deliveries.execute(() -> {
+  			
+  			// Variable Declaration
+  			boolean delivered = false;
+  			
+  			try {
+  				
+  				// Process: sending the messages, one batch at a time
+  				List<MailboxStore.Mail> mail;
+  				
+  				while (!(mail = mailboxes.peek(loginID, MAIL_BATCH)).isEmpty()) {
+  					
+  					// Variable Declaration
+  					StringBuilder batch = new StringBuilder();
+  					
+  					for (MailboxStore.Mail message : mail) {
+  						
+  						appendLine(batch, message.getTimestamp(), message.getMessage());
+  						
+  					}
+  					
+  					awaitQueue(client);
+  					client.queueToClient(batch.toString());
+  					mailboxes.remove(loginID, mail.size());
+  					
+  				}
+  				
+  				delivered = true;
+  				
+  			}
+  			catch (IOException ioe) { //client gone, or store unreadable
+  				
+  				// Output
+  				log.error("ERROR - Could not deliver offline messages to " + loginID);
+  				
+  			}
+  			finally {
+  				
+  				mailDeliveries.remove(loginID);
+  				
+  			}
+  			
+  			// Process: delivering messages kept after the last batch was read
+  			if (delivered && mailboxes.getCount(loginID) > 0 && loginIndex.get(loginID) == client) {
+  				
+  				deliverMail(client, loginID);
+  				
+  			}
+  			
+  		});
+  		
+  	}
+  	
+  	/**
+  	 * this helper method adds a message sent earlier to a batch, on a line of
+  	 * its own after the time it was sent
+  	 * 
+  	 * @param batch
+  	 * 	the batch of messages
+  	 * @param timestamp
+  	 * 	the time the message was sent, in milliseconds since the epoch
+  	 * @param message
+  	 * 	the message
+  	 */
+  	private void appendLine(StringBuilder batch, long timestamp, String message) {
+  		
+  		if (batch.length() > 0) {
+  			
+  			batch.append(System.lineSeparator());
+  			
+  		}
+  		
+  		batch.append('(').append(HISTORY_TIME.format(Instant.ofEpochMilli(timestamp))).append(") ").append(message);
+  		
+  	}
+  	
+  	/**
+  	 * this helper method waits, for MAX_WRITE_LATENCY at most, until the
+  	 * messages queued for a client are few enough to queue more
+  	 * 
+  	 * @param client
+  	 * 	the connection of the client
+  	 */
+  	private void awaitQueue(ConnectionToClient client) {
+  		
+  		// Variable Declaration
+  		long deadline = System.currentTimeMillis() + MAX_WRITE_LATENCY;
+  		
+  		while ((client.getQueuedMessageCount() > HISTORY_QUEUE_LIMIT || client.getPendingBytes() > MAX_PENDING_BYTES / 4)
+  				&& System.currentTimeMillis() < deadline) {
+  			
+  			try {
+  				
+  				Thread.sleep(10);
+  				
+  			}
+  			catch (InterruptedException ie) {
+  				
+  				return;
+  				
+  			}
+  			
+  		}
+  		
+  	}
+  	
+  	/**
+  	 * this helper method relays a chat message to the members of the sender's
+  	 * room, or to all clients when the sender is not in a room
+  	 * 
+  	 * @param message
+  	 * 	the chat message
+  	 * @param client
+  	 * 	the connection of the sender
+  	 */
+  	private void relayMessage(String message, ConnectionToClient client) {
+  		
+  		// Variable Declaration
+  		Object room = client.getInfo("room");
+  		
+  		if (room == null) { //lobby
+  			
+  			this.sendToAllClients(client.getInfo("loginID") + "> " + message);
+  			
+  		}
+  		else { //room members only
+  			
+  			this.sendToRoom((String) room, "[" + room + "] " + client.getInfo("loginID") + "> " + message);
+  			
+  		}
+  		
+  	}
+  	
+  	/**
+  	 * this helper method moves a client into a room, leaving its previous room
+  	 * 
+  	 * @param room
+  	 * 	the name of the room to join
+  	 * @param client
+  	 * 	the connection of the client
+  	 */
+  	private void moveToRoom(String room, ConnectionToClient client) {
+  		
+  		// Process: checking for a room name
+  		if (room.isBlank()) { //no name
+  			
+  			reply(client, "ERROR - Usage: #join <room>");
+  			
+  			return;
+  			
+  		}
+  		
+  		// Process: leaving the previous room
+  		if (client.getInfo("room") != null) {
+  			
+  			returnToLobby(client);
+  			
+  		}
+  		
+  		// Process: joining the new room
+  		client.setInfo("room", room);
+  		joinRoom(room, client);
+  		
+  		this.sendToRoom(room, client.getInfo("loginID") + " has joined " + room + ".");
+  		
+  	}
+  	
+  	/**
+  	 * this helper method takes a client out of its room, back to the lobby
+  	 * 
+  	 * @param client
+  	 * 	the connection of the client
+  	 */
+  	private void returnToLobby(ConnectionToClient client) {
+  		
+  		// Variable Declaration
+  		Object room = client.getInfo("room");
+  		
+  		if (room == null) { //not in a room
+  			
+  			reply(client, "ERROR - Not in a room.");
+  			
+  		}
+  		else {
+  			
+  			this.sendToRoom((String) room, client.getInfo("loginID") + " has left " + room + ".");
+  			
+  			// Process: leaving the room
+  			leaveRoom((String) room, client);
+  			client.setInfo("room", null);
+  			
+  		}
+  		
+  	}
+  	
+  	/**
+  	 * this helper method sends the client the list of rooms & their sizes
+  	 * 
+  	 * @param client
+  	 * 	the connection of the client
+  	 */
+  	private void listRooms(ConnectionToClient client) {
+  		
+  		// Variable Declaration
+  		StringBuilder list = new StringBuilder("Rooms:");
+  		
+  		// Process: listing each room
+  		for (String room : getRoomNames()) {
+  			
+  			list.append(' ').append(room).append(" (").append(getRoomMembers(room).size()).append(')');
+  			
+  		}
+  		
+  		reply(client, list.toString());
+  		
+  	}
+  	
+  	/**
+  	 * this helper method sends a message to a single client, ignoring failures
+  	 * 
+  	 * @param client
+  	 * 	the connection of the client
+  	 * @param message
+  	 * 	the message to send
+  	 */
+  	private void reply(ConnectionToClient client, String message) {
+  		
+  		try {
+  			
+  			client.queueToClient(message);
+  			
+  		}
+  		catch (IOException ioe) {} //client is gone
+  		
+  	}
+  	
+  	/**
+  	 * this helper method delivers a private message to a single user, or
+  	 * keeps it until the user logs in if the user is offline
+  	 * 
+  	 * @param command
+  	 * 	the text following "#w ": the recipient's login ID, a space, then the message
+  	 * @param client
+  	 * 	the connection of the sender
+  	 */
+  	private void sendPrivateMessage(String command, ConnectionToClient client) {
+  		
+  		// Variable Declaration
+  		int space = command.indexOf(' ');
+  		Object from = client.getInfo("loginID");
+  		
+  		try {
+  			
+  			// Process: checking for a recipient and a message
+  			if (space <= 0 || from == null) { //malformed or not logged in
+  				
+  				client.sendToClient("ERROR - Usage: #w <user> <message>");
+  				
+  				return;
+  				
+  			}
+  			
+  			// Variable Declaration
+  			String to = command.substring(0, space);
+  			String message = from + " (private)> " + command.substring(space + 1);
+  			
+  			// Process: finding the recipient's connection
+  			ConnectionToClient recipient = loginIndex.get(to);
+  			
+  			if (recipient != null) { //logged in
+  				
+  				// Process: sending message to the recipient only
+  				recipient.queueToClient(message);
+  				
+  			}
+  			else if (mailboxes == null) { //offline messages refused
+  				
+  				client.sendToClient("ERROR - " + to + " is not logged in.");
+  				
+  			}
+  			else if (mailboxes.deposit(to, message)) { //kept for later
+  				
+  				client.sendToClient(to + " is not logged in. Message will be delivered at next login.");
+  				
+  				// Process: delivering it now if the recipient logged in meanwhile
+  				if ((recipient = loginIndex.get(to)) != null) {
+  					
+  					deliverMail(recipient, to);
+  					
+  				}
+  				
+  			}
+  			else if (mailboxes.getCount(to) >= mailboxes.getQuota()) { //quota reached
+  				
+  				client.sendToClient("ERROR - " + to + " has too many messages waiting. Message not sent.");
+  				
+  			}
+  			else { //store full
+  				
+  				client.sendToClient("ERROR - Too many messages are waiting for offline users. Message not sent.");
+  				
+  			}
+  			
+  		}
+  		catch (IOException ioe) { //error-handling
+  			
+  			// Output
+  			log.error("ERROR - Could not deliver private message from " + from);
+  			
+  		}
+  		
+  	}
+  	
+  	/**
+  	 * this helper method refuses a login ID already used by another connection
+  	 * and terminates the connection that attempted it
+  	 * 
+  	 * @param loginID
+  	 * 	the login ID already in use
+  	 * @param client
+  	 * 	the connection that attempted to log in
+  	 */
+  	private void rejectLogin(String loginID, ConnectionToClient client) {
+  		
+  		// Output
+  		log.warn("Rejected login: " + loginID + " is already logged in.");
+  		
+  		// Process: telling the client & closing its connection
+  		try {
+  			
+  			client.sendToClient("ERROR - " + loginID + " is already logged in.");
+  			client.close(); //closing
+  			
+  		}
+  		catch (IOException ioe) { //error-handling
+  			
+  			// Output
+  			log.error("ERROR - Could not terminate client connection.");
+  			
+  		}
+  		
+  	}
+  	
+  	/**
+  	 * this method overrides the one in the superclass
+  	 * it is called when a client sends messages faster than it may, and
+  	 * warns the client its message was not relayed
+  	 * 
+  	 * @param msg
+  	 * 	the message dropped
+  	 * @param client
+  	 * 	the connection of the client
+  	 */
+  	protected void messageRateLimited(Object msg, ConnectionToClient client) {
+  		
+  		if (isCommand(msg)) { //over the command budget
+  			
+  			reply(client, "ERROR - Too many commands. Command not run: " + msg);
+  			
+  		}
+  		else {
+  			
+  			reply(client, "ERROR - Too many messages. Message not sent: " + msg);
+  			
+  		}
+  		
+  	}
+  	
+  	/**
+  	 * this method overrides the one in the superclass
+  	 * it tells the commands, such as #login or #history, from the chat
+  	 * messages, so that they count against a budget of their own
+  	 * 
+  	 * @param msg
+  	 * 	the message received
+  	 * @return true if the message is a command
+  	 */
+  	protected boolean isCommand(Object msg) {
+  		
+  		return msg instanceof String && !((String) msg).isEmpty()
+  				&& ((String) msg).charAt(0) == CommandRouter.COMMAND_PREFIX;
+  		
+  	}
+  	
+  	/**
+  	 * this method overrides the one in the superclass
+  	 * it is called, on a thread of its own, once a client that could not keep
+  	 * up with the messages sent to it is disconnected, and tells the other
+  	 * clients without holding up the slow consumer monitor or other messages
+  	 * 
+  	 * @param client
+  	 * 	the connection of the client
+  	 */
+  	protected void clientEvicted(ConnectionToClient client) {
+  		
+  		// Output
+  		log.warn(client.getInfo("loginID") + " was not keeping up and has been disconnected.");
+  		
+  		// Process: sending message to clients
+  		this.sendToAllClients(client.getInfo("loginID") + " has been disconnected (connection too slow).");
+  		
+  	}
+  	
+  	/**
+  	 * this method returns the store of the messages sent to offline users
+  	 * 
+  	 * @return the store, or null if such messages are refused
+  	 */
+  	public MailboxStore getMailboxStore() {
+  		
+  		return mailboxes;
+  		
+  	}
+  	
+  	/**
+  	 * this method sets the store of the messages sent to offline users
+  	 * 
+  	 * @param mailboxes
+  	 * 	the store, or null to refuse such messages
+  	 */
+  	public void setMailboxStore(MailboxStore mailboxes) {
+  		
+  		this.mailboxes = mailboxes;
+  		
+  	}
+  	
+  	/**
+	 * this method terminates the server
+	 * it is called when the user types the command #quit
+	 */
+	private void quit() {
+
+		try {
+			
+			close(); //closing server & disconnecting all clients
+			
+		}
+		catch (IOException ioe) {
+
+			// Output
+			log.error("Could not close server.");
+			
+		}
+		
+		// Process: committing the journal & the offline messages to disk
+		if (getJournal() != null) {
+			
+			getJournal().close();
+			
+		}
+		
+		if (mailboxes != null) {
+			
+			try {
+				
+				mailboxes.close();
+				
+			}
+			catch (IOException ioe) {
+				
+				// Output
+				log.error("Could not close the offline messages.");
+				
+			}
+			
+		}
+		
+		System.exit(0); //terminating
+		
+	}
+	
+	/**
+  	 * this method overrides the one in the superclass
+  	 * it is called when the server is closed
+  	 */
+  	protected void serverClosed() {
+  		
+  		// Output
+		log.info("Server has been closed.");
+  		
+  	}
+    
+  	/**
+  	 * This method overrides the one in the superclass.  Called
+  	 * when the server starts listening for connections.
+  	 */
+  	protected void serverStarted() {
+  		log.info("Server listening for connections on port " + getPort());	
+  	}
+  
+  	/**
+  	* This method overrides the one in the superclass.  Called
+  	* when the server stops listening for connections.
+  	*/
+  	protected void serverStopped() {
+  		log.info("Server has stopped listening for connections.");	
+  	}
+  
+  	/**
+  	 * Hook method called each time a client disconnects.
+  	 * The default implementation does nothing. The method
+  	 * may be overridden by subclasses but should remains synchronized.
+  	 *
+  	 * @param client the connection with the client.
+  	 */
+  	synchronized protected void clientDisconnected(ConnectionToClient client) {
+	  
+  		// Process: releasing the client's login ID
+  		if (client.getInfo("loginID") != null) {
+  			
+  			loginIndex.remove(client.getInfo("loginID"), client);
+  			
+  		}
+  		
   		// Output
-  		System.out.println(client.getInfo("loginID") + " has disconnected!");
+  		log.info(client.getInfo("loginID") + " has disconnected!");
   		
   	}
 
@@ -405,7 +1287,7 @@ public class EchoServer extends AbstractServer {
   			sv.listen(); //Start listening for connections
   		} 
   		catch (Exception ex) {
-  			System.out.println("ERROR - Could not listen for clients!");
+  			AsyncLogger.getConsole().error("ERROR - Could not listen for clients!");
   		}
   	}
   	
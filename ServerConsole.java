@@ -1,6 +1,9 @@
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
 import common.*;
+import ocsf.server.MailboxStore;
+import ocsf.server.MessageJournal;
 
 public class ServerConsole implements ChatIF {
 	
@@ -10,6 +13,16 @@ public class ServerConsole implements ChatIF {
 	 */
 	static final int DEFAULT_PORT = 5555;
 	
+	/**
+	 * the default directory of the journal the chat messages are kept in
+	 */
+	static final String DEFAULT_JOURNAL = "journal";
+	
+	/**
+	 * the default file of the private messages kept for offline users
+	 */
+	static final String DEFAULT_MAILBOXES = "mailboxes.dat";
+	
 	/**
 	 * instance of EchoServer that created this console
 	 */
@@ -20,14 +33,23 @@ public class ServerConsole implements ChatIF {
 	 */
 	Scanner fromConsole;
 	
+	/**
+	 * the log shared with the server, written to the console in the background
+	 */
+	AsyncLogger log = AsyncLogger.getConsole();
+	
 	// Constructor Methods--------------------------------------------------------------
 	/**
 	 * constructor method
 	 * 
 	 * @param port
 	 * 	the port on which the server will listen
+	 * @param journal
+	 * 	the directory of the journal the chat messages are kept in
+	 * @param mailboxes
+	 * 	the file of the private messages kept for offline users
 	 */
-	public ServerConsole(int port) {
+	public ServerConsole(int port, String journal, String mailboxes) {
 		
 		// Initialization
 		fromConsole = new Scanner(System.in);
@@ -40,12 +62,38 @@ public class ServerConsole implements ChatIF {
 		catch (IOException ioe) { //error-handling
 
 			// Output
-			System.out.println("ERROR - Can't set up connection! Terminating server.");
+			log.error("ERROR - Can't set up connection! Terminating server.");
 
 			System.exit(1); //closing server
 			
 		}
 		
+		// Process: keeping the chat messages in the journal
+		try {
+			
+			server.setJournal(new MessageJournal(new File(journal)));
+			
+		}
+		catch (IOException ioe) { //error-handling
+			
+			// Output
+			log.error("ERROR - Could not open the journal! Messages will not be kept.");
+			
+		}
+		
+		// Process: keeping the private messages of offline users
+		try {
+			
+			server.setMailboxStore(new MailboxStore(new File(mailboxes)));
+			
+		}
+		catch (IOException ioe) { //error-handling
+			
+			// Output
+			log.error("ERROR - Could not open the offline messages! They will be refused.");
+			
+		}
+		
 		// Process: listening for connections
 		try {
 
@@ -55,7 +103,7 @@ public class ServerConsole implements ChatIF {
 		catch (Exception e) { //error-handling
 			
 			// Output
-			System.out.println("ERROR - Could not listen for clients!");
+			log.error("ERROR - Could not listen for clients!");
 
 		}
 		
@@ -89,7 +137,7 @@ public class ServerConsole implements ChatIF {
 		catch (Exception e) { //error-handling
 			
 			// Output
-			System.out.println("Unexpected error while reading from console!");
+			log.error("Unexpected error while reading from console!");
 			
 		}
 		
@@ -110,7 +158,7 @@ public class ServerConsole implements ChatIF {
 		 * should be prefixed by the string "SERVER MSG>". */
 		
 		// Output
-		System.out.println("SERVER MESSAGE> " + message);
+		log.info("SERVER MESSAGE> " + message);
 		
 	}
 	
@@ -134,7 +182,9 @@ public class ServerConsole implements ChatIF {
 		}
 
 		// Variable Declaration
-		ServerConsole chat = new ServerConsole(port);
+		String journal = args.length > 1 ? args[1] : DEFAULT_JOURNAL; //directory of the journal
+		String mailboxes = args.length > 2 ? args[2] : DEFAULT_MAILBOXES; //file of the offline messages
+		ServerConsole chat = new ServerConsole(port, journal, mailboxes);
 		
 		// User Input: waiting to read from console
 		chat.accept();
@@ -0,0 +1,150 @@
+package bench;
+
+import java.io.*;
+
+import ocsf.common.MessageCodec;
+import ocsf.common.ObjectFrames;
+import ocsf.common.SerializationCodec;
+
+/**
+ * This class compares the CPU cost of a broadcast when every recipient
+ * serializes the message on its own object stream, as the object stream
+ * protocol does, with the cost when the message is encoded once as a frame and
+ * the same bytes are written to every recipient. Sockets are replaced by
+ * streams discarding their output, so only encoding and copying are measured.
+ * <p>
+ * Run with <code>java bench.BroadcastEncodingBenchmark [recipients...]</code>;
+ * the default recipient counts are 10, 1000 and 10000.
+ */
+public class BroadcastEncodingBenchmark {
+
+	//Class variables *************************************************
+	/**
+	 * The number of broadcasts run before measuring.
+	 */
+	final static int WARMUP_BROADCASTS = 200;
+
+	/**
+	 * The minimum time measured for each case, in nanoseconds.
+	 */
+	final static long MEASURE_NANOS = 2000000000L;
+
+	/**
+	 * The chat line broadcast.
+	 */
+	final static String MESSAGE = "alice> the quick brown fox jumps over the lazy dog";
+
+	//Class methods ***************************************************
+	/**
+	 * Runs the comparison for each recipient count.
+	 *
+	 * @param args the recipient counts, 10 1000 10000 if none given.
+	 */
+	public static void main(String[] args) throws IOException {
+
+		int[] recipients = {10, 1000, 10000};
+
+		if (args.length > 0) {
+			recipients = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				recipients[i] = Integer.parseInt(args[i]);
+			}
+		}
+
+		System.out.println("recipients  per-stream us/broadcast  encode-once us/broadcast");
+
+		for (int count : recipients) {
+			double perStream = measure(new PerStream(count));
+			double encodeOnce = measure(new EncodeOnce(count));
+
+			System.out.printf("%10d  %23.2f  %24.2f%n", count, perStream / 1000.0, encodeOnce / 1000.0);
+		}
+
+	}
+
+	/**
+	 * Runs one case and returns the mean time of a broadcast.
+	 *
+	 * @param broadcast the case.
+	 * @return the mean time of a broadcast in nanoseconds.
+	 */
+	static double measure(Broadcast broadcast) throws IOException {
+
+		for (int i = 0; i < WARMUP_BROADCASTS; i++) {
+			broadcast.send(MESSAGE + i);
+		}
+
+		long count = 0;
+		long start = System.nanoTime();
+		long elapsed;
+
+		do {
+			// A new string each time, as a chat server would relay
+			broadcast.send(MESSAGE + count);
+			count++;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < MEASURE_NANOS);
+
+		return (double) elapsed / count;
+
+	}
+
+	//Inner classes ***************************************************
+	/**
+	 * One way of sending a message to every recipient.
+	 */
+	interface Broadcast {
+		void send(Object msg) throws IOException;
+	}
+
+	/**
+	 * Each recipient has an object stream and serializes the message itself.
+	 */
+	static class PerStream implements Broadcast {
+
+		ObjectOutputStream[] streams;
+
+		PerStream(int count) throws IOException {
+			streams = new ObjectOutputStream[count];
+			for (int i = 0; i < count; i++) {
+				streams[i] = new ObjectOutputStream(OutputStream.nullOutputStream());
+			}
+		}
+
+		public void send(Object msg) throws IOException {
+			for (ObjectOutputStream stream : streams) {
+				stream.writeObject(msg);
+				// Keep the handle tables from growing during the run
+				stream.reset();
+			}
+		}
+
+	}
+
+	/**
+	 * The message is encoded once and the frame written to every recipient.
+	 */
+	static class EncodeOnce implements Broadcast {
+
+		OutputStream[] streams;
+
+		MessageCodec codec = new SerializationCodec();
+
+		EncodeOnce(int count) {
+			streams = new OutputStream[count];
+			for (int i = 0; i < count; i++) {
+				streams[i] = OutputStream.nullOutputStream();
+			}
+		}
+
+		public void send(Object msg) throws IOException {
+			byte[] frame = ObjectFrames.encode(codec, msg);
+			for (OutputStream stream : streams) {
+				stream.write(frame);
+			}
+		}
+
+	}
+
+}
+//End of BroadcastEncodingBenchmark class
@@ -0,0 +1,123 @@
+package bench;
+
+import java.io.PrintStream;
+import java.util.concurrent.*;
+
+import ocsf.client.AbstractClient;
+import ocsf.server.AbstractServer;
+
+/**
+ * This class measures how many chat lines per second the chat server delivers
+ * over loopback as the number of clients grows. Every client is logged in and
+ * one of them sends a burst of lines, each relayed to all of them; the time
+ * runs until every client has received every line.
+ * <p>
+ * Run, on Java 21 or later, with <code>java bench.BroadcastThroughputBenchmark
+ * [clients...]</code>; the default client counts are 10, 100 and 500.
+ */
+public class BroadcastThroughputBenchmark {
+
+	//Class variables *************************************************
+	/**
+	 * The number of lines sent for each count of clients.
+	 */
+	final static int LINES = 2000;
+
+	/**
+	 * The longest wait, in seconds, for the lines to be delivered.
+	 */
+	final static int TIMEOUT = 120;
+
+	/**
+	 * The start of every line sent, after the sender's login ID.
+	 */
+	final static String PREFIX = "sender> line ";
+
+	//Class methods ***************************************************
+	/**
+	 * Runs the measurements for each engine and count of clients.
+	 *
+	 * @param args the counts of clients, 10 100 500 if none given.
+	 */
+	public static void main(String[] args) throws Exception {
+
+		int[] counts = {10, 100, 500};
+
+		if (args.length > 0) {
+			counts = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				counts[i] = Integer.parseInt(args[i]);
+			}
+		}
+
+		PrintStream out = Loopback.silenceConsole();
+
+		out.println("engine    clients  lines/s sent  deliveries/s");
+
+		for (int engine : Loopback.ENGINES) {
+			for (int count : counts) {
+				double seconds = measure(engine, count);
+
+				if (seconds < 0) {
+					out.printf("%-8s %8d  timed out%n", Loopback.ENGINE_NAMES[engine], count);
+				}
+				else {
+					out.printf("%-8s %8d  %12.0f  %12.0f%n", Loopback.ENGINE_NAMES[engine], count, LINES / seconds,
+							(double) LINES * count / seconds);
+				}
+			}
+		}
+
+		System.exit(0);
+
+	}
+
+	/**
+	 * Measures a burst of lines relayed to a number of clients.
+	 *
+	 * @param engine the engine of the server.
+	 * @param count the number of clients.
+	 * @return the seconds taken to deliver every line to every client, or -1
+	 * 	if they were not delivered in time.
+	 */
+	static double measure(int engine, int count) throws Exception {
+
+		AbstractServer server = Loopback.startEchoServer(engine);
+		CountDownLatch loggedOn = new CountDownLatch(count);
+		CountDownLatch delivered = new CountDownLatch(LINES * count);
+		AbstractClient[] clients = new AbstractClient[count];
+
+		for (int i = 0; i < count; i++) {
+			String loginID = i == 0 ? "sender" : "user" + i;
+
+			clients[i] = Loopback.connect(server, msg -> {
+				String line = (String) msg;
+				if (line.startsWith(PREFIX)) {
+					delivered.countDown();
+				}
+				else if (line.equals(loginID + " has logged on.")) {
+					loggedOn.countDown();
+				}
+			});
+			clients[i].sendToServer("#login " + loginID);
+		}
+
+		loggedOn.await(TIMEOUT, TimeUnit.SECONDS);
+		// Let the announcements of later logins reach the first clients
+		Thread.sleep(500);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < LINES; i++) {
+			clients[0].sendToServer("line " + i);
+		}
+		boolean done = delivered.await(TIMEOUT, TimeUnit.SECONDS);
+		long elapsed = System.nanoTime() - start;
+
+		Loopback.close(server, clients);
+
+		return done ? elapsed / 1e9 : -1;
+
+	}
+
+}
+//End of BroadcastThroughputBenchmark class
@@ -0,0 +1,190 @@
+package bench;
+
+import java.io.*;
+
+import ocsf.common.*;
+
+/**
+ * This class compares the message codecs on a typical chat line: the bytes
+ * each puts on the wire, and the time to encode a frame and decode it again.
+ * The object streams of the original protocol are measured as well, with a
+ * reset after every message as a long-lived connection would need.
+ * <p>
+ * Run with <code>java bench.CodecBenchmark</code>.
+ */
+public class CodecBenchmark {
+
+	//Class variables *************************************************
+	/**
+	 * The number of messages encoded before measuring.
+	 */
+	final static int WARMUP_MESSAGES = 100000;
+
+	/**
+	 * The number of messages measured for each codec.
+	 */
+	final static int MEASURED_MESSAGES = 1000000;
+
+	/**
+	 * The chat line encoded.
+	 */
+	final static String MESSAGE = "alice> the quick brown fox jumps over the lazy dog";
+
+	//Class methods ***************************************************
+	/**
+	 * Runs the comparison.
+	 *
+	 * @param args not used.
+	 */
+	public static void main(String[] args) throws Exception {
+
+		System.out.println("codec           bytes/message  ns/round-trip");
+
+		measureObjectStreams();
+
+		MessageCodec[] codecs = {new SerializationCodec(), new BinaryCodec(), new TextCodec()};
+		for (MessageCodec codec : codecs) {
+			measure(codec);
+		}
+
+	}
+
+	/**
+	 * Measures one codec.
+	 *
+	 * @param codec the codec.
+	 */
+	static void measure(MessageCodec codec) throws Exception {
+
+		int bytes = ObjectFrames.encode(codec, MESSAGE).length;
+		long sink = 0;
+
+		for (int i = 0; i < WARMUP_MESSAGES; i++) {
+			sink += roundTrip(codec);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < MEASURED_MESSAGES; i++) {
+			sink += roundTrip(codec);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		report(codec.getClass().getSimpleName(), bytes, elapsed, sink);
+
+	}
+
+	/**
+	 * Encodes and decodes the message once with a codec.
+	 *
+	 * @return a value depending on the result, so it is not optimized away.
+	 */
+	static long roundTrip(MessageCodec codec) throws Exception {
+
+		byte[] frame = ObjectFrames.encode(codec, MESSAGE);
+		Object msg = codec.decode(frame, ObjectFrames.HEADER_LENGTH, frame.length - ObjectFrames.HEADER_LENGTH);
+		return msg.hashCode();
+
+	}
+
+	/**
+	 * Measures a pair of object streams, as used without frames.
+	 */
+	static void measureObjectStreams() throws Exception {
+
+		PipedBytes pipe = new PipedBytes();
+		ObjectOutputStream output = new ObjectOutputStream(pipe);
+		output.flush();
+		ObjectInputStream input = new ObjectInputStream(pipe.input());
+		long sink = 0;
+
+		for (int i = 0; i < WARMUP_MESSAGES; i++) {
+			sink += roundTrip(output, input);
+		}
+
+		long writtenBefore = pipe.written;
+		long start = System.nanoTime();
+		for (int i = 0; i < MEASURED_MESSAGES; i++) {
+			sink += roundTrip(output, input);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		report("ObjectStreams", (int) ((pipe.written - writtenBefore) / MEASURED_MESSAGES), elapsed, sink);
+
+	}
+
+	/**
+	 * Sends the message once over a pair of object streams.
+	 *
+	 * @return a value depending on the result, so it is not optimized away.
+	 */
+	static long roundTrip(ObjectOutputStream output, ObjectInputStream input) throws Exception {
+
+		// A new string each time, so no back reference is written
+		output.writeObject(new String(MESSAGE));
+		output.reset();
+		output.flush();
+		return input.readObject().hashCode();
+
+	}
+
+	/**
+	 * Prints the result of one codec.
+	 */
+	static void report(String name, int bytes, long elapsed, long sink) {
+
+		System.out.printf("%-16s %13d  %13.1f%n", name, bytes, (double) elapsed / MEASURED_MESSAGES);
+
+		// Keep the results alive
+		if (sink == 42)
+			System.out.println();
+
+	}
+
+	//Inner classes ***************************************************
+	/**
+	 * An in-memory pipe: bytes written are read back by its input stream.
+	 */
+	static class PipedBytes extends OutputStream {
+
+		byte[] buffer = new byte[1 << 16];
+		int writePos = 0;
+		int readPos = 0;
+		long written = 0;
+
+		public void write(int b) {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) {
+			if (writePos + len > buffer.length) {
+				// Everything written before has been read, start over
+				System.arraycopy(buffer, readPos, buffer, 0, writePos - readPos);
+				writePos -= readPos;
+				readPos = 0;
+			}
+			System.arraycopy(b, off, buffer, writePos, len);
+			writePos += len;
+			written += len;
+		}
+
+		InputStream input() {
+			return new InputStream() {
+				public int read() {
+					return readPos < writePos ? buffer[readPos++] & 0xff : -1;
+				}
+
+				public int read(byte[] b, int off, int len) {
+					int n = Math.min(len, writePos - readPos);
+					if (n <= 0)
+						return -1;
+					System.arraycopy(buffer, readPos, b, off, n);
+					readPos += n;
+					return n;
+				}
+			};
+		}
+
+	}
+
+}
+//End of CodecBenchmark class
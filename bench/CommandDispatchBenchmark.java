@@ -0,0 +1,134 @@
+package bench;
+
+import java.lang.management.ManagementFactory;
+
+import common.CommandRouter;
+
+/**
+ * This class measures the bytes allocated and the time taken to decide what
+ * to do with a line received by the server, before it is broadcast: with the
+ * command router, and with the substring checks it replaced. A plain chat
+ * line must go through the router without allocating anything.
+ * <p>
+ * Run with <code>java bench.CommandDispatchBenchmark</code>.
+ */
+public class CommandDispatchBenchmark {
+
+	//Class variables *************************************************
+	/**
+	 * The number of lines handled before measuring.
+	 */
+	final static int WARMUP_LINES = 1000000;
+
+	/**
+	 * The number of lines measured.
+	 */
+	final static int MEASURED_LINES = 10000000;
+
+	/**
+	 * A plain chat line.
+	 */
+	final static String MESSAGE = "the quick brown fox jumps over the lazy dog";
+
+	/**
+	 * A command line.
+	 */
+	final static String COMMAND = "#join lobby";
+
+	/**
+	 * The lines seen by the handlers, so the work is not optimized away.
+	 */
+	static long handled = 0;
+
+	//Class methods ***************************************************
+	/**
+	 * Runs the measurements.
+	 *
+	 * @param args not used.
+	 */
+	public static void main(String[] args) {
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		CommandRouter<Object> router = new CommandRouter<Object>();
+		String[] names = {"#login", "#w", "#join", "#leave", "#rooms"};
+		for (String name : names) {
+			router.register(name, (context, line, arg) -> handled += arg);
+		}
+
+		System.out.println("dispatch        line     bytes/line  ns/line");
+
+		measure(threads, "substrings", MESSAGE, line -> legacyDispatch(line));
+		measure(threads, "router", MESSAGE, line -> router.dispatch(null, line));
+		measure(threads, "substrings", COMMAND, line -> legacyDispatch(line));
+		measure(threads, "router", COMMAND, line -> router.dispatch(null, line));
+
+		// Keep the results alive
+		if (handled == 42)
+			System.out.println();
+
+	}
+
+	/**
+	 * Measures one way of handling a line.
+	 */
+	static void measure(com.sun.management.ThreadMXBean threads, String name, String line, Dispatcher dispatcher) {
+
+		long thread = Thread.currentThread().threadId();
+
+		for (int i = 0; i < WARMUP_LINES; i++) {
+			if (!dispatcher.dispatch(line))
+				handled++;
+		}
+
+		long allocated = threads.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		for (int i = 0; i < MEASURED_LINES; i++) {
+			if (!dispatcher.dispatch(line))
+				handled++;
+		}
+		long elapsed = System.nanoTime() - start;
+		allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+
+		System.out.printf("%-15s %-8s %10.2f  %7.1f%n", name, line == MESSAGE ? "plain" : "command",
+				(double) allocated / MEASURED_LINES, (double) elapsed / MEASURED_LINES);
+
+	}
+
+	/**
+	 * The checks made by the server before the router, for the commands it
+	 * registers.
+	 *
+	 * @return true if the line is a command.
+	 */
+	static boolean legacyDispatch(String message) {
+
+		if (message.startsWith("#w ")) {
+			handled += message.substring(3).length();
+			return true;
+		}
+		if (message.startsWith("#join ")) {
+			handled += message.substring(6).length();
+			return true;
+		}
+		if (message.equals("#leave") || message.equals("#rooms"))
+			return true;
+		if (message.length() >= 8 && message.substring(0, 6).equals("#login")) {
+			handled += message.substring(7).length();
+			return true;
+		}
+		if (message.length() >= 6 && message.substring(0, 6).equals("#login"))
+			return true;
+		return false;
+
+	}
+
+	//Inner interfaces ************************************************
+	/**
+	 * One way of handling a line.
+	 */
+	interface Dispatcher {
+		boolean dispatch(String line);
+	}
+
+}
+//End of CommandDispatchBenchmark class
@@ -0,0 +1,491 @@
+package bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import ocsf.client.AbstractClient;
+import ocsf.common.Histogram;
+
+/**
+ * This class drives a chat server with many simulated users, to find the load
+ * it saturates at. Every user connects, logs in, and optionally joins a room;
+ * then the users send chat lines at a target rate, in steps of increasing
+ * rates. Each line carries the time it was due to be sent, and every user
+ * receiving it records how long it took to arrive. Lines are due on a fixed
+ * schedule, so a server that falls behind shows in the latencies rather than
+ * slowing the senders down.
+ * <p>
+ * The chat server limits the connections from one address; users are spread
+ * over several loopback addresses, 127.0.0.1 and up, enough for each to stay
+ * within the burst the server allows by default, or as many as
+ * <code>-sources</code> says.
+ * <p>
+ * Run with <code>java bench.LoadGenerator [options]</code>:
+ *
+ * <pre>
+ * -host name       the server host, localhost by default
+ * -port n          the server port, 5555 by default
+ * -users n         the number of users, 1000 by default
+ * -rate r[,r...]   the lines per second of each step, 1000 by default
+ * -duration s      the seconds each step lasts, 10 by default
+ * -room n          the number of users per room, 0 to stay in the lobby
+ * -sources n       the number of loopback addresses connected from, by default
+ *                  one per SOURCE_CONNECTIONS users
+ * -senders n       the number of threads sending, 4 by default
+ * -framed          use the framed protocol, for a server using frames
+ * </pre>
+ */
+public class LoadGenerator {
+
+	//Class variables *************************************************
+	/**
+	 * What comes before the time a line was due, once the server has put the
+	 * login ID of the sender in front of it.
+	 */
+	final static String MARKER = "> load ";
+
+	/**
+	 * The number of users connected per second.
+	 */
+	final static int CONNECTION_RATE = 500;
+
+	/**
+	 * The most users connected from one address by default: the burst of
+	 * connections the chat server allows from one address, its
+	 * <code>CONNECTION_BURST</code>.
+	 */
+	final static int SOURCE_CONNECTIONS = 100;
+
+	/**
+	 * The most loopback addresses connected from, 127.0.0.1 to 127.0.0.254.
+	 */
+	final static int MAX_SOURCES = 254;
+
+	/**
+	 * The longest wait, in seconds, for all users to log in.
+	 */
+	final static int LOGIN_TIMEOUT = 60;
+
+	/**
+	 * The longest wait, in seconds, for the lines of a step to arrive once
+	 * sending stops.
+	 */
+	final static int DRAIN_TIMEOUT = 10;
+
+	//Instance variables **********************************************
+	/**
+	 * The server host.
+	 */
+	String host = "localhost";
+
+	/**
+	 * The server port.
+	 */
+	int port = 5555;
+
+	/**
+	 * The number of users.
+	 */
+	int users = 1000;
+
+	/**
+	 * The lines per second of each step.
+	 */
+	int[] rates = {1000};
+
+	/**
+	 * The seconds each step lasts.
+	 */
+	int duration = 10;
+
+	/**
+	 * The number of users per room, 0 for the lobby.
+	 */
+	int roomSize = 0;
+
+	/**
+	 * The number of loopback addresses connected from, 0 for one per
+	 * SOURCE_CONNECTIONS users.
+	 */
+	int sources = 0;
+
+	/**
+	 * The number of sending threads.
+	 */
+	int senders = 4;
+
+	/**
+	 * Indicates if the users exchange frames.
+	 */
+	boolean framed = false;
+
+	/**
+	 * The simulated users.
+	 */
+	SimulatedUser[] sessions;
+
+	/**
+	 * Counts down as users are told they logged on.
+	 */
+	CountDownLatch loggedOn;
+
+	/**
+	 * The latencies of the current step, in nanoseconds.
+	 */
+	volatile Histogram latencies = new Histogram();
+
+	/**
+	 * The lines sent during the current step.
+	 */
+	LongAdder sent = new LongAdder();
+
+	/**
+	 * The lines received during the current step, by all users.
+	 */
+	LongAdder received = new LongAdder();
+
+	/**
+	 * The lines refused by the server for exceeding a user's message rate.
+	 */
+	LongAdder rateLimited = new LongAdder();
+
+	/**
+	 * The lines that could not be sent.
+	 */
+	LongAdder failed = new LongAdder();
+
+	/**
+	 * The users disconnected since they logged in.
+	 */
+	LongAdder disconnected = new LongAdder();
+
+	//Class methods ***************************************************
+	/**
+	 * Parses the options and runs the load.
+	 *
+	 * @param args the options.
+	 */
+	public static void main(String[] args) throws Exception {
+
+		LoadGenerator load = new LoadGenerator();
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String option = args[i];
+
+				if (option.equals("-framed")) {
+					load.framed = true;
+					continue;
+				}
+
+				String value = args[++i];
+				switch (option) {
+					case "-host": load.host = value; break;
+					case "-port": load.port = Integer.parseInt(value); break;
+					case "-users": load.users = Integer.parseInt(value); break;
+					case "-duration": load.duration = Integer.parseInt(value); break;
+					case "-room": load.roomSize = Integer.parseInt(value); break;
+					case "-sources": load.sources = Integer.parseInt(value); break;
+					case "-senders": load.senders = Integer.parseInt(value); break;
+					case "-rate":
+						String[] steps = value.split(",");
+						load.rates = new int[steps.length];
+						for (int j = 0; j < steps.length; j++) {
+							load.rates[j] = Integer.parseInt(steps[j]);
+						}
+						break;
+					default: throw new IllegalArgumentException("unknown option " + option);
+				}
+			}
+		}
+		catch (RuntimeException ex) {
+			System.out.println("ERROR - " + ex.getMessage());
+			System.out.println("Usage: java bench.LoadGenerator [-host name] [-port n] [-users n] [-rate r[,r...]]"
+					+ " [-duration s] [-room n] [-sources n] [-senders n] [-framed]");
+			return;
+		}
+
+		load.run();
+		System.exit(0);
+
+	}
+
+	//Instance methods ************************************************
+	/**
+	 * Logs the users in, then runs each step and prints its results.
+	 */
+	void run() throws Exception {
+
+		senders = Math.max(1, Math.min(senders, users));
+
+		if (sources <= 0) {
+			sources = Math.min(MAX_SOURCES, (users + SOURCE_CONNECTIONS - 1) / SOURCE_CONNECTIONS);
+		}
+
+		if (!logIn()) {
+			return;
+		}
+
+		System.out.println(" target  sent/s  delivered/s  delivered%  p50 ms  p90 ms  p99 ms  p99.9 ms  max ms"
+				+ "  limited  failed  disconnected");
+
+		for (int rate : rates) {
+			runStep(rate);
+		}
+
+		for (SimulatedUser session : sessions) {
+			try {
+				session.closeConnection();
+			}
+			catch (IOException ex) {}
+		}
+
+	}
+
+	/**
+	 * Connects every user, at a steady pace, and waits for them to log in.
+	 *
+	 * @return true if every user logged in.
+	 */
+	boolean logIn() throws Exception {
+
+		sessions = new SimulatedUser[users];
+		loggedOn = new CountDownLatch(users);
+		long start = System.nanoTime();
+		int connectFailures = 0;
+
+		for (int i = 0; i < users; i++) {
+			// Keep to the connection rate
+			long due = start + (long) i * 1000000000L / CONNECTION_RATE;
+			long wait = due - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+
+			sessions[i] = new SimulatedUser("user" + i);
+			sessions[i].setFramed(framed);
+			sessions[i].setVirtualReader(true);
+			if (sources > 1) {
+				sessions[i].setLocalAddress(InetAddress.getByAddress(new byte[] {127, 0, 0, (byte) (1 + i % sources)}));
+			}
+
+			try {
+				sessions[i].openConnection();
+				sessions[i].sendToServer("#login user" + i);
+			}
+			catch (IOException ex) {
+				connectFailures++;
+			}
+		}
+
+		// Users cut off before logging in never will, so stop as soon as only they are left
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(LOGIN_TIMEOUT);
+		while (!loggedOn.await(100, TimeUnit.MILLISECONDS)) {
+			long lost = connectFailures + disconnected.sum();
+
+			if (lost >= loggedOn.getCount() || System.nanoTime() > deadline) {
+				System.out.println("ERROR - " + loggedOn.getCount() + " of " + users + " users did not log in ("
+						+ connectFailures + " could not connect, " + disconnected.sum() + " were cut off).");
+				if (connectFailures < users) { // the server is up, but turned some users away
+					System.out.println("The server limits the connections from one address; spread the users"
+							+ " over more addresses than " + sources + " with -sources.");
+				}
+				return false;
+			}
+		}
+
+		// Then into rooms, if any
+		if (roomSize > 0) {
+			for (int i = 0; i < users; i++) {
+				sessions[i].sendToServer("#join load" + i / roomSize);
+			}
+		}
+
+		System.out.printf("%d users logged in in %.1f s%n", users, (System.nanoTime() - start) / 1e9);
+
+		// Let the announcements settle before measuring
+		Thread.sleep(1000);
+		disconnected.reset();
+
+		return true;
+
+	}
+
+	/**
+	 * Sends lines at a rate for the duration of a step, waits for them to
+	 * arrive, and prints the results.
+	 *
+	 * @param rate the lines per second.
+	 */
+	void runStep(int rate) throws Exception {
+
+		latencies = new Histogram();
+		sent.reset();
+		received.reset();
+		rateLimited.reset();
+		failed.reset();
+
+		long start = System.nanoTime();
+		long end = start + duration * 1000000000L;
+		Thread[] threads = new Thread[senders];
+
+		for (int s = 0; s < senders; s++) {
+			final int first = s;
+			threads[s] = new Thread(() -> send(first, rate, start, end), "Sender " + s);
+			threads[s].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		// Wait for the lines in flight, until none arrives for a while
+		long expected = sent.sum() * fanOut();
+		long last = -1;
+		for (int i = 0; i < DRAIN_TIMEOUT * 10 && received.sum() < expected && received.sum() != last; i++) {
+			last = received.sum();
+			Thread.sleep(100);
+		}
+
+		Histogram step = latencies;
+		System.out.printf("%7d  %6.0f  %11.0f  %10.1f  %6.2f  %6.2f  %6.2f  %8.2f  %6.1f  %7d  %6d  %12d%n", rate,
+				sent.sum() / seconds, received.sum() / seconds, expected == 0 ? 0 : 100.0 * received.sum() / expected,
+				step.getValueAtPercentile(50) / 1e6, step.getValueAtPercentile(90) / 1e6,
+				step.getValueAtPercentile(99) / 1e6, step.getValueAtPercentile(99.9) / 1e6, step.getMax() / 1e6,
+				rateLimited.sum(), failed.sum(), disconnected.sum());
+
+	}
+
+	/**
+	 * Sends the lines of one sending thread: its share of the rate, spread
+	 * over its share of the users.
+	 *
+	 * @param first the index of the first user of the thread.
+	 * @param rate the lines per second of all threads.
+	 * @param start when the step started.
+	 * @param end when the step ends.
+	 */
+	void send(int first, int rate, long start, long end) {
+
+		long interval = (long) senders * 1000000000L / rate;
+		long due = start + first * interval / senders;
+		int user = first;
+
+		while (due < end) {
+			long wait = due - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+
+			// The time the line was due, not sent, so that falling behind
+			// counts against the server
+			try {
+				sessions[user].sendToServer("load " + due);
+				sent.increment();
+			}
+			catch (IOException ex) {
+				failed.increment();
+			}
+
+			due += interval;
+			user += senders;
+			if (user >= users) {
+				user = first;
+			}
+		}
+
+	}
+
+	/**
+	 * @return the number of users receiving each line.
+	 */
+	int fanOut() {
+
+		return roomSize > 0 ? Math.min(roomSize, users) : users;
+
+	}
+
+	//Inner classes ***************************************************
+	/**
+	 * A user logging in and recording the latency of every line it receives.
+	 */
+	class SimulatedUser extends AbstractClient {
+
+		/**
+		 * the login ID of the user
+		 */
+		String loginID;
+
+		/**
+		 * Constructs a user, not yet connected.
+		 */
+		SimulatedUser(String loginID) {
+
+			super(host, port);
+			this.loginID = loginID;
+
+		}
+
+		/**
+		 * Records the latency of load lines, and notes the other replies of
+		 * interest.
+		 */
+		protected void handleMessageFromServer(Object msg) {
+
+			long now = System.nanoTime();
+			String text = msg.toString();
+
+			// Earlier messages come several to a message, a line each
+			if (text.indexOf('\n') < 0) {
+				handleLine(text, now);
+			}
+			else {
+				text.lines().forEach(line -> handleLine(line, now));
+			}
+
+		}
+
+		/**
+		 * Handles one line from the server. Earlier messages, replayed at
+		 * login and shown after the time they were sent, are ignored.
+		 *
+		 * @param line the line.
+		 * @param now the time the line arrived.
+		 */
+		void handleLine(String line, long now) {
+
+			if (line.startsWith("(")) {
+				return;
+			}
+
+			int marker = line.indexOf(MARKER);
+
+			if (marker >= 0) {
+				latencies.record(now - Long.parseLong(line.substring(marker + MARKER.length()).trim()));
+				received.increment();
+			}
+			else if (line.startsWith("ERROR - Too many messages")) {
+				rateLimited.increment();
+			}
+			else if (line.equals(loginID + " has logged on.")) {
+				loggedOn.countDown();
+			}
+
+		}
+
+		/**
+		 * Counts the users cut off by the server.
+		 */
+		protected void connectionException(Exception exception) {
+
+			disconnected.increment();
+
+		}
+
+	}
+
+}
+//End of LoadGenerator class
@@ -0,0 +1,119 @@
+package bench;
+
+import java.io.PrintStream;
+import java.util.concurrent.*;
+
+import ocsf.client.AbstractClient;
+import ocsf.server.AbstractServer;
+
+/**
+ * This class measures how fast the chat server takes in a storm of logins
+ * over loopback: many clients connect and send <code>#login</code> at once,
+ * and the time runs until each has been told it has logged on. As each login
+ * is announced to every client already there, the work grows with the square
+ * of the number of clients.
+ * <p>
+ * Run, on Java 21 or later, with <code>java bench.LoginStormBenchmark
+ * [clients...]</code>; the default client counts are 100 and 500.
+ */
+public class LoginStormBenchmark {
+
+	//Class variables *************************************************
+	/**
+	 * The number of threads connecting the clients.
+	 */
+	final static int CONNECTING_THREADS = 16;
+
+	/**
+	 * The longest wait, in seconds, for the logins to complete.
+	 */
+	final static int TIMEOUT = 120;
+
+	//Class methods ***************************************************
+	/**
+	 * Runs the measurements for each engine and count of clients.
+	 *
+	 * @param args the counts of clients, 100 500 if none given.
+	 */
+	public static void main(String[] args) throws Exception {
+
+		int[] counts = {100, 500};
+
+		if (args.length > 0) {
+			counts = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				counts[i] = Integer.parseInt(args[i]);
+			}
+		}
+
+		PrintStream out = Loopback.silenceConsole();
+
+		out.println("engine    clients     ms  logins/s");
+
+		for (int engine : Loopback.ENGINES) {
+			for (int count : counts) {
+				double seconds = measure(engine, count);
+
+				if (seconds < 0) {
+					out.printf("%-8s %8d  timed out%n", Loopback.ENGINE_NAMES[engine], count);
+				}
+				else {
+					out.printf("%-8s %8d  %5.0f  %8.0f%n", Loopback.ENGINE_NAMES[engine], count, seconds * 1000,
+							count / seconds);
+				}
+			}
+		}
+
+		System.exit(0);
+
+	}
+
+	/**
+	 * Measures a storm of logins.
+	 *
+	 * @param engine the engine of the server.
+	 * @param count the number of clients.
+	 * @return the seconds taken for every client to log in, or -1 if they did
+	 * 	not in time.
+	 */
+	static double measure(int engine, int count) throws Exception {
+
+		AbstractServer server = Loopback.startEchoServer(engine);
+		CountDownLatch loggedOn = new CountDownLatch(count);
+		AbstractClient[] clients = new AbstractClient[count];
+		ExecutorService connecting = Executors.newFixedThreadPool(CONNECTING_THREADS);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			final int index = i;
+
+			connecting.execute(() -> {
+				String loginID = "user" + index;
+
+				try {
+					clients[index] = Loopback.connect(server, msg -> {
+						if (msg.equals(loginID + " has logged on.")) {
+							loggedOn.countDown();
+						}
+					});
+					clients[index].sendToServer("#login " + loginID);
+				}
+				catch (Exception ex) {
+					System.err.println(loginID + " could not log in: " + ex);
+				}
+			});
+		}
+
+		boolean done = loggedOn.await(TIMEOUT, TimeUnit.SECONDS);
+		long elapsed = System.nanoTime() - start;
+
+		connecting.shutdown();
+		connecting.awaitTermination(TIMEOUT, TimeUnit.SECONDS);
+		Loopback.close(server, clients);
+
+		return done ? elapsed / 1e9 : -1;
+
+	}
+
+}
+//End of LoginStormBenchmark class
@@ -0,0 +1,184 @@
+package bench;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import ocsf.client.AbstractClient;
+import ocsf.server.AbstractServer;
+
+/**
+ * This class sets up the servers and clients that the loopback benchmarks run
+ * on, and computes the figures they print. The chat server is the
+ * <code>EchoServer</code> of the application, loaded by name since it is not
+ * in a package, with its message and connection rate limits lifted so that
+ * the benchmarks measure the server rather than the limits.
+ * <p>
+ * Like the rest of the application, the benchmarks need Java 21 or later, for
+ * the virtual threads of the server and client.
+ */
+class Loopback {
+
+	//Class variables *************************************************
+	/**
+	 * The names of the engines, indexed by the engine constants of
+	 * <code>AbstractServer</code>.
+	 */
+	final static String[] ENGINE_NAMES = {"threads", "nio", "virtual"};
+
+	/**
+	 * The engines compared by default.
+	 */
+	final static int[] ENGINES = {AbstractServer.THREAD_PER_CONNECTION, AbstractServer.VIRTUAL_THREADS,
+			AbstractServer.NIO_SELECTOR};
+
+	/**
+	 * The port of the next server started; every server gets a port of its
+	 * own, so that one closing does not hold up the next.
+	 */
+	static int nextPort = 15555;
+
+	/**
+	 * The standard output, kept to print the results once the console
+	 * output of the server is discarded.
+	 */
+	static PrintStream results = System.out;
+
+	//Class methods ***************************************************
+	/**
+	 * Discards what the servers print, such as every chat message received,
+	 * and returns the stream to print the results to.
+	 *
+	 * @return the standard output.
+	 */
+	static PrintStream silenceConsole() {
+
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		return results;
+
+	}
+
+	/**
+	 * Starts a chat server on a port of its own.
+	 *
+	 * @param engine the engine serving connections.
+	 * @return the server, listening.
+	 */
+	static AbstractServer startEchoServer(int engine) throws Exception {
+
+		int port = nextPort++;
+		AbstractServer server = (AbstractServer) Class.forName("EchoServer").getConstructor(int.class)
+				.newInstance(port);
+
+		server.setMessageRateLimit(0, 0);
+		server.setConnectionRateLimit(0, 0);
+
+		return listen(server, engine);
+
+	}
+
+	/**
+	 * Starts a server with the given engine, framed when the engine requires
+	 * it, and waits until it listens.
+	 *
+	 * @param server the server.
+	 * @param engine the engine serving connections.
+	 * @return the server.
+	 */
+	static AbstractServer listen(AbstractServer server, int engine) throws Exception {
+
+		server.setEngine(engine);
+		server.setFramed(engine == AbstractServer.NIO_SELECTOR);
+		server.listen();
+
+		while (!server.isListening()) {
+			Thread.sleep(10);
+		}
+
+		return server;
+
+	}
+
+	/**
+	 * Connects a client to a server, with the protocol of the server.
+	 *
+	 * @param server the server.
+	 * @param handler what to do with each message from the server.
+	 * @return the client, connected.
+	 */
+	static AbstractClient connect(AbstractServer server, Consumer<Object> handler) throws IOException {
+
+		AbstractClient client = new AbstractClient("localhost", server.getPort()) {
+			protected void handleMessageFromServer(Object msg) {
+				handler.accept(msg);
+			}
+		};
+
+		if (server.isFramed()) {
+			client.setCodec(server.getCodec());
+		}
+		client.openConnection();
+
+		return client;
+
+	}
+
+	/**
+	 * Closes clients and their server, ignoring failures.
+	 *
+	 * @param server the server.
+	 * @param clients the clients.
+	 */
+	static void close(AbstractServer server, AbstractClient... clients) {
+
+		for (AbstractClient client : clients) {
+			try {
+				if (client != null) {
+					client.closeConnection();
+				}
+			}
+			catch (IOException ex) {}
+		}
+
+		try {
+			server.close();
+		}
+		catch (IOException ex) {}
+
+	}
+
+	/**
+	 * Returns a percentile of sorted samples.
+	 *
+	 * @param sorted the samples, in increasing order.
+	 * @param percent the percentile, from 0 to 100.
+	 * @return the sample below which the given percent of samples fall.
+	 */
+	static long percentile(long[] sorted, double percent) {
+
+		int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+
+	}
+
+	/**
+	 * Sorts samples and returns their mean.
+	 *
+	 * @param samples the samples, sorted on return.
+	 * @return the mean.
+	 */
+	static double sortAndAverage(long[] samples) {
+
+		Arrays.sort(samples);
+
+		double sum = 0;
+		for (long sample : samples) {
+			sum += sample;
+		}
+
+		return sum / samples.length;
+
+	}
+
+}
+//End of Loopback class
@@ -0,0 +1,94 @@
+package bench;
+
+import java.io.PrintStream;
+import java.util.concurrent.*;
+
+import ocsf.client.AbstractClient;
+import ocsf.server.AbstractServer;
+
+/**
+ * This class measures the time a chat line takes to come back to the client
+ * that sent it, over loopback: from <code>sendToServer</code>, through the
+ * chat server relaying it, to <code>handleMessageFromServer</code>. One line
+ * is in flight at a time, for each engine of the server.
+ * <p>
+ * Run, on Java 21 or later, with <code>java bench.RoundTripBenchmark
+ * [round-trips]</code>; the default is 20000 measured round trips per engine.
+ */
+public class RoundTripBenchmark {
+
+	//Class variables *************************************************
+	/**
+	 * The number of round trips before measuring.
+	 */
+	final static int WARMUP_ROUND_TRIPS = 5000;
+
+	/**
+	 * The chat line sent.
+	 */
+	final static String MESSAGE = "the quick brown fox jumps over the lazy dog";
+
+	//Class methods ***************************************************
+	/**
+	 * Runs the measurements for each engine.
+	 *
+	 * @param args the number of measured round trips, 20000 if none given.
+	 */
+	public static void main(String[] args) throws Exception {
+
+		int roundTrips = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		PrintStream out = Loopback.silenceConsole();
+
+		out.println("engine    mean us    p50 us    p99 us  p99.9 us    max us");
+
+		for (int engine : Loopback.ENGINES) {
+			long[] samples = measure(engine, roundTrips);
+			double mean = Loopback.sortAndAverage(samples);
+
+			out.printf("%-8s %8.1f  %8.1f  %8.1f  %8.1f  %8.1f%n", Loopback.ENGINE_NAMES[engine], mean / 1000.0,
+					Loopback.percentile(samples, 50) / 1000.0, Loopback.percentile(samples, 99) / 1000.0,
+					Loopback.percentile(samples, 99.9) / 1000.0, samples[samples.length - 1] / 1000.0);
+		}
+
+		System.exit(0);
+
+	}
+
+	/**
+	 * Measures the round trips with one engine.
+	 *
+	 * @param engine the engine of the server.
+	 * @param roundTrips the number of round trips measured.
+	 * @return the time of each round trip in nanoseconds.
+	 */
+	static long[] measure(int engine, int roundTrips) throws Exception {
+
+		AbstractServer server = Loopback.startEchoServer(engine);
+		BlockingQueue<Object> replies = new LinkedBlockingQueue<Object>();
+		AbstractClient client = Loopback.connect(server, replies::add);
+
+		// Log in, and wait for the server to announce it
+		client.sendToServer("#login bench");
+		replies.take();
+
+		for (int i = 0; i < WARMUP_ROUND_TRIPS; i++) {
+			client.sendToServer(MESSAGE);
+			replies.take();
+		}
+
+		long[] samples = new long[roundTrips];
+		for (int i = 0; i < roundTrips; i++) {
+			long start = System.nanoTime();
+			client.sendToServer(MESSAGE);
+			replies.take();
+			samples[i] = System.nanoTime() - start;
+		}
+
+		Loopback.close(server, client);
+
+		return samples;
+
+	}
+
+}
+//End of RoundTripBenchmark class
@@ -0,0 +1,126 @@
+package bench;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.*;
+
+import ocsf.client.AbstractClient;
+import ocsf.common.*;
+import ocsf.server.*;
+
+/**
+ * This class measures what <code>sendToClient</code> costs the thread calling
+ * it, over loopback: the time and the bytes allocated to serialize a chat
+ * line and write it to the socket of the client, with the object streams of
+ * the original protocol and with each codec of the framed protocol.
+ * <p>
+ * Run, on Java 21 or later, with <code>java bench.SendToClientBenchmark
+ * [messages]</code>; the default is 200000 measured messages per protocol.
+ */
+public class SendToClientBenchmark {
+
+	//Class variables *************************************************
+	/**
+	 * The number of messages sent before measuring.
+	 */
+	final static int WARMUP_MESSAGES = 50000;
+
+	/**
+	 * The chat line sent.
+	 */
+	final static String MESSAGE = "alice> the quick brown fox jumps over the lazy dog";
+
+	//Class methods ***************************************************
+	/**
+	 * Runs the measurements for each protocol.
+	 *
+	 * @param args the number of measured messages, 200000 if none given.
+	 */
+	public static void main(String[] args) throws Exception {
+
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		PrintStream out = Loopback.silenceConsole();
+
+		out.println("protocol        ns/message  bytes allocated/message");
+
+		measure(out, "object streams", null, messages);
+
+		MessageCodec[] codecs = {new SerializationCodec(), new BinaryCodec(), new TextCodec()};
+		for (MessageCodec codec : codecs) {
+			measure(out, codec.getClass().getSimpleName(), codec, messages);
+		}
+
+		System.exit(0);
+
+	}
+
+	/**
+	 * Measures one protocol.
+	 *
+	 * @param out where to print the results.
+	 * @param name the name of the protocol.
+	 * @param codec the codec of the framed protocol, or null for object
+	 * 	streams.
+	 * @param messages the number of messages measured.
+	 */
+	static void measure(PrintStream out, String name, MessageCodec codec, int messages) throws Exception {
+
+		AbstractServer server = new AbstractServer(Loopback.nextPort++) {
+			protected void handleMessageFromClient(Object msg, ConnectionToClient client) {}
+		};
+		if (codec != null) {
+			server.setCodec(codec);
+		}
+		server.listen();
+		while (!server.isListening()) {
+			Thread.sleep(10);
+		}
+
+		Semaphore received = new Semaphore(0);
+		AbstractClient client = Loopback.connect(server, msg -> received.release());
+
+		while (server.getNumberOfClients() == 0) {
+			Thread.sleep(10);
+		}
+		ConnectionToClient connection = server.getConnectedClients().iterator().next();
+
+		send(connection, received, WARMUP_MESSAGES);
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().threadId();
+		long allocated = threads.getThreadAllocatedBytes(thread);
+		long elapsed = send(connection, received, messages);
+		allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+
+		out.printf("%-16s %9.0f  %23.1f%n", name, (double) elapsed / messages, (double) allocated / messages);
+
+		Loopback.close(server, client);
+
+	}
+
+	/**
+	 * Sends messages to a client and waits for it to receive them all, so
+	 * that the next run starts with an idle socket.
+	 *
+	 * @return the nanoseconds spent in <code>sendToClient</code>.
+	 */
+	static long send(ConnectionToClient connection, Semaphore received, int messages) throws Exception {
+
+		long elapsed = 0;
+
+		for (int i = 0; i < messages; i++) {
+			// A new string each time, as a chat server would relay
+			String msg = new String(MESSAGE);
+			long start = System.nanoTime();
+			connection.sendToClient(msg);
+			elapsed += System.nanoTime() - start;
+		}
+
+		received.acquire(messages);
+
+		return elapsed;
+
+	}
+
+}
+//End of SendToClientBenchmark class
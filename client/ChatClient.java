@@ -17,7 +17,7 @@ import java.io.*;
  * @author Fran&ccedil;ois B&eacute;langer
  * @version July 2000
  */
-public class ChatClient extends AbstractClient {
+final public class ChatClient extends AbstractClient {
 	
 	//Instance variables **********************************************
 	/**
@@ -30,6 +30,11 @@ public class ChatClient extends AbstractClient {
 	 * the login ID of the client
 	 */
 	String loginID;
+	
+	/**
+	 * the commands typed by the user, by name
+	 */
+	CommandRouter<ChatClient> commands = new CommandRouter<ChatClient>();
 
 	//Constructors ****************************************************
 	/**
@@ -45,6 +50,7 @@ public class ChatClient extends AbstractClient {
 		
 		// Initialization
 	    this.clientUI = clientUI;
+	    registerCommands();
 	    
 	    // Process: checking for null user ID
 	    if (loginID == null) {
@@ -83,152 +89,141 @@ public class ChatClient extends AbstractClient {
 	 */
 	public void handleMessageFromClientUI(String message) {
 		
-		// Process: checking if message is a command
-		if (message.charAt(0) == '#') { //command
+		// Process: running the command, or sending the message to the server
+		if (!commands.dispatch(this, message)) { //not command
 			
-			// Process: checking length of command
-			if (message.length() > 8) {
-				
-				// Process: determining if command involves host/port
-				if (message.substring(0, 8).equals("#sethost")) { //set host command
-					
-					// Process: checking for logged off client
-					if (!isConnected()) { //not yet connected
-					
-						setHost(message.substring(9)); //setting host
-						
-						// Output
-						clientUI.display("Host set to: " + getHost());
-						
-					}
-					else { //already connected
-						
-						// Output
-						clientUI.display("ERROR - Client already logged in. Cannot change host name.");
-						
-					}
-					
-				}
-				else if (message.substring(0, 8).equals("#setport")) { //set port command
-					
-					// Process: checking for logged off client
-					if (!isConnected()) { //not yet connected
-					
-						setPort(Integer.parseInt(message.substring(9))); //setting port
-						
-						// Output
-						clientUI.display("Port set to: " + getPort());
-						
-					}
-					else { //already connected
-						
-						// Output
-						clientUI.display("ERROR - Client already logged in. Cannot change port.");
-						
-					}
-					
-				}
-				else if (message.substring(0, 6).equals("#login")) { //login command
-					
-					tryLogin(message); //try to login
-					
-				}
-				else { //invalid command
-					
-					// Output
-					clientUI.display("ERROR - Invalid command.");
-					
-				}
-				
-			}
-			else if (message.length() > 6) { //could be login command
-				
-				// Process: checking for login command
-				if (message.substring(0, 6).equals("#login")) { //command
-					
-					tryLogin(message); //checking login command conditions
-					
-				}
-				else { //other command
-					
-					checkSwitchCase(message);
-					
-				}
-				
-			}
-			else { //other command
-				
-				checkSwitchCase(message);
-				
-			}
+			sendMessage(message);
 			
 		}
-		else { //not command
+	}
+	
+	/**
+	 * this helper method registers the commands handled by the client & the ones
+	 * passed on as is to the server: private messages, rooms & history
+	 */
+	private void registerCommands() {
+		
+		// Process: registering the client commands
+		commands.register("#quit", (client, line, arg) -> quit());
+		commands.register("#logoff", (client, line, arg) -> logoff());
+		commands.register("#gethost", (client, line, arg) -> clientUI.display(getHost()));
+		commands.register("#getport", (client, line, arg) -> clientUI.display(String.valueOf(getPort())));
+		commands.register("#sethost", (client, line, arg) -> changeHost(line.substring(arg)));
+		commands.register("#setport", (client, line, arg) -> changePort(line.substring(arg)));
+		commands.register("#login", (client, line, arg) -> tryLogin(line, arg));
+		commands.setUnknownCommandHandler((client, line, arg) -> clientUI.display("ERROR - Invalid command."));
+		
+		// Process: registering the server commands
+		commands.register("#w", (client, line, arg) -> sendMessage(line));
+		commands.register("#join", (client, line, arg) -> sendMessage(line));
+		commands.register("#leave", (client, line, arg) -> sendMessage(line));
+		commands.register("#rooms", (client, line, arg) -> sendMessage(line));
+		commands.register("#history", (client, line, arg) -> sendMessage(line));
+		
+	}
+	
+	/**
+	 * this helper method sends a message to the server, terminating the client
+	 * if it cannot be sent
+	 * @param message
+	 * 	the message to send
+	 */
+	private void sendMessage(String message) {
+		
+		// Process: sending message to server
+		try {
 			
-			// Process: sending message to server
-			try {
-				
-				sendToServer(message); //sending msg to server
-				
-			}
-			catch(IOException e) {
-				
-				// Output
-				clientUI.display("Could not send message to server.  Terminating client.");
-				
-				quit(); //terminating client connection
-				
-			}
+			sendToServer(message); //sending msg to server
+			
+		}
+		catch(IOException e) {
+			
+			// Output
+			clientUI.display("Could not send message to server.  Terminating client.");
+			
+			quit(); //terminating client connection
 			
 		}
+		
 	}
 	
 	/**
-	 * this helper method searches through the cases of possible commands
-	 * @param message
-	 * 	the input from the user
+	 * this helper method closes the connection, keeping the client running
+	 * it is called when the user types the command #logoff
 	 */
-	private void checkSwitchCase(String message) {
+	private void logoff() {
 		
-		// Process: determining which command was entered
-		switch(message) {
+		try {
+			
+			closeConnection(); //closing connection
 		
-			case "#quit" :
-				
-				quit(); //terminating client connection
-				
-				break;
-				
-			case "#logoff" :
-				
-				try {
-					
-					closeConnection(); //closing connection
-				
-				}
-				catch (IOException e) {}
-				
-				break;
-				
-			case "#gethost" :
-				
-				// Output
-				clientUI.display(getHost());
-				
-				break;
+		}
+		catch (IOException e) {}
+		
+	}
+	
+	/**
+	 * this helper method changes the host, only while logged off
+	 * @param host
+	 * 	the new host name
+	 */
+	private void changeHost(String host) {
+		
+		// Process: checking for logged off client
+		if (host.isEmpty()) { //no host given
+			
+			// Output
+			clientUI.display("ERROR - Usage: #sethost <host>");
+			
+		}
+		else if (!isConnected()) { //not yet connected
+		
+			setHost(host); //setting host
+			
+			// Output
+			clientUI.display("Host set to: " + getHost());
+			
+		}
+		else { //already connected
+			
+			// Output
+			clientUI.display("ERROR - Client already logged in. Cannot change host name.");
+			
+		}
+		
+	}
+	
+	/**
+	 * this helper method changes the port, only while logged off
+	 * @param port
+	 * 	the text of the new port number
+	 */
+	private void changePort(String port) {
+		
+		// Process: checking for logged off client
+		if (!isConnected()) { //not yet connected
+		
+			try {
 				
-			case "#getport" :
+				setPort(Integer.parseInt(port)); //setting port
 				
 				// Output
-				clientUI.display(String.valueOf(getPort()));
-				
-				break;
+				clientUI.display("Port set to: " + getPort());
 				
-			default : //not an actual command
+			}
+			catch (NumberFormatException nfe) {
 				
 				// Output
-				clientUI.display("ERROR - Invalid command.");
+				clientUI.display("ERROR - Usage: #setport <port>");
 				
+			}
+			
+		}
+		else { //already connected
+			
+			// Output
+			clientUI.display("ERROR - Client already logged in. Cannot change port.");
+			
 		}
 		
 	}
@@ -237,17 +232,29 @@ public class ChatClient extends AbstractClient {
 	 * this helper method attempts to log the user back in when the command is detected
 	 * @param message
 	 * 	the message inputted by the users
+	 * @param argStart
+	 * 	the index of the login ID in the message
 	 */
-	private void tryLogin(String message) {
+	private void tryLogin(String message, int argStart) {
 		
 		if (!isConnected()) { //not yet connected
 			
+			// Process: checking for a login ID
+			if (argStart == message.length()) { //no login ID
+				
+				// Output
+				clientUI.display("ERROR - Usage: #login <loginID>");
+				
+				return;
+				
+			}
+			
 			try {
 				
 				openConnection(); //opening connection
 				
 				// Initialization
-				this.loginID = message.substring(7);
+				this.loginID = message.substring(argStart);
 				
 				// Process: sending login message to server
 			    sendToServer("#login " + loginID);
@@ -266,20 +273,7 @@ public class ChatClient extends AbstractClient {
 			// Output
 			clientUI.display("ERROR - Already logged in.");
 			
-			// Process: sending message to server
-			try {
-				
-				sendToServer(message); //sending msg to server
-				
-			}
-			catch(IOException e) {
-				
-				// Output
-				clientUI.display("Could not send message to server.  Terminating client.");
-				
-				quit(); //terminating client connection
-				
-			}
+			sendMessage(message);
 			
 		}
 		
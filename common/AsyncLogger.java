@@ -0,0 +1,388 @@
+package common;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class writes log lines to the console without making the threads that
+ * log wait for it. Lines are put in a bounded ring buffer, without locking,
+ * and a background thread writes whatever has gathered to
+ * <code>System.out</code> in one call every few milliseconds. Lines below the
+ * level of the logger are dropped before being queued; lines logged while the
+ * buffer is full are dropped and counted, never waited for.
+ * <p>
+ * Lines still queued when the virtual machine exits are written by a
+ * shutdown hook.
+ */
+public class AsyncLogger {
+
+	//Inner enums *****************************************************
+	/**
+	 * The levels of log lines, from the least to the most important.
+	 */
+	public enum Level {
+		DEBUG, INFO, WARN, ERROR
+	}
+
+	//Class variables *************************************************
+	/**
+	 * The number of lines the ring buffer holds, a power of two.
+	 */
+	final public static int DEFAULT_CAPACITY = 8192;
+
+	/**
+	 * The time, in milliseconds, the writer sleeps when there is nothing to
+	 * write; lines logged meanwhile are written together when it wakes up.
+	 */
+	final static long FLUSH_INTERVAL = 10;
+
+	/**
+	 * the logger of the console, shared by the whole application
+	 */
+	private static AsyncLogger console;
+
+	// Instance Variables--------------------------------------------------------------
+	/**
+	 * the lines queued, indexed by their position modulo the capacity
+	 */
+	private final String[] lines;
+
+	/**
+	 * the sequence of each slot: its position when it may be written, one
+	 * more when it holds a line to be read
+	 */
+	private final AtomicLongArray sequences;
+
+	/**
+	 * the capacity minus one, masking positions into indexes
+	 */
+	private final int mask;
+
+	/**
+	 * the position the next line is queued at
+	 */
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * the position the next line is read from, only changed by the thread
+	 * holding the lock of the logger
+	 */
+	private long head = 0;
+
+	/**
+	 * the number of lines dropped because the buffer was full
+	 */
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * the number of dropped lines already reported in the log, only changed
+	 * by the thread holding the lock of the logger
+	 */
+	private long reportedDrops = 0;
+
+	/**
+	 * the lowest level of the lines logged
+	 */
+	private volatile Level level = Level.INFO;
+
+	// Constructor Methods--------------------------------------------------------------
+	/**
+	 * constructor method; the writer thread is started by <code>create</code>,
+	 * once the logger is fully constructed
+	 *
+	 * @param capacity
+	 * 	the number of lines the buffer holds, rounded up to a power of two
+	 */
+	private AsyncLogger(int capacity) {
+
+		// Initialization
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+
+		lines = new String[size];
+		sequences = new AtomicLongArray(size);
+		mask = size - 1;
+
+		for (int i = 0; i < size; i++) {
+
+			sequences.set(i, i);
+
+		}
+
+	}
+
+	// Class Methods-------------------------------------------------------------------
+	/**
+	 * this method creates a logger & starts its writer thread, flushing the
+	 * lines still queued at exit
+	 *
+	 * @param capacity
+	 * 	the number of lines the buffer holds, rounded up to a power of two
+	 * @return the logger
+	 */
+	public static AsyncLogger create(int capacity) {
+
+		// Initialization
+		AsyncLogger logger = new AsyncLogger(capacity);
+
+		// Process: starting the writer, & flushing at exit
+		Thread writer = new Thread(logger::writeLoop, "Log writer");
+		writer.setDaemon(true);
+		writer.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread(logger::flush, "Log flush"));
+
+		return logger;
+
+	}
+
+	/**
+	 * this method returns the logger of the console, creating it on first use
+	 *
+	 * @return the shared logger
+	 */
+	public static synchronized AsyncLogger getConsole() {
+
+		if (console == null) {
+
+			console = create(DEFAULT_CAPACITY);
+
+		}
+
+		return console;
+
+	}
+
+	// Instance Methods----------------------------------------------------------------
+	/**
+	 * this method returns the lowest level of the lines logged
+	 *
+	 * @return the level
+	 */
+	public Level getLevel() {
+
+		return level;
+
+	}
+
+	/**
+	 * this method sets the lowest level of the lines logged
+	 *
+	 * @param level
+	 * 	the level
+	 */
+	public void setLevel(Level level) {
+
+		this.level = level;
+
+	}
+
+	/**
+	 * this method tells if lines of a level are logged, so that callers can
+	 * skip building lines that would be dropped
+	 *
+	 * @param level
+	 * 	the level
+	 * @return true if the lines are logged
+	 */
+	public boolean isEnabled(Level level) {
+
+		return level.compareTo(this.level) >= 0;
+
+	}
+
+	/**
+	 * this method returns the number of lines dropped because the buffer was
+	 * full
+	 *
+	 * @return the number of lines dropped
+	 */
+	public long getDroppedCount() {
+
+		return dropped.get();
+
+	}
+
+	/**
+	 * this method logs a line at the DEBUG level
+	 *
+	 * @param line
+	 * 	the line
+	 */
+	public void debug(String line) {
+
+		log(Level.DEBUG, line);
+
+	}
+
+	/**
+	 * this method logs a line at the INFO level
+	 *
+	 * @param line
+	 * 	the line
+	 */
+	public void info(String line) {
+
+		log(Level.INFO, line);
+
+	}
+
+	/**
+	 * this method logs a line at the WARN level
+	 *
+	 * @param line
+	 * 	the line
+	 */
+	public void warn(String line) {
+
+		log(Level.WARN, line);
+
+	}
+
+	/**
+	 * this method logs a line at the ERROR level
+	 *
+	 * @param line
+	 * 	the line
+	 */
+	public void error(String line) {
+
+		log(Level.ERROR, line);
+
+	}
+
+	/**
+	 * this method queues a line for the writer, unless its level is filtered
+	 * out or the buffer is full
+	 *
+	 * @param level
+	 * 	the level of the line
+	 * @param line
+	 * 	the line
+	 */
+	public void log(Level level, String line) {
+
+		// Process: filtering by level
+		if (!isEnabled(level)) {
+
+			return;
+
+		}
+
+		// Process: claiming a free slot
+		long position = tail.get();
+		int index;
+
+		while (true) {
+
+			index = (int) position & mask;
+			long available = sequences.get(index) - position;
+
+			if (available == 0) { //free slot
+
+				if (tail.compareAndSet(position, position + 1)) {
+
+					break;
+
+				}
+
+				position = tail.get();
+
+			}
+			else if (available < 0) { //buffer full
+
+				dropped.incrementAndGet();
+
+				return;
+
+			}
+			else { //claimed by another thread
+
+				position = tail.get();
+
+			}
+
+		}
+
+		// Process: publishing the line
+		lines[index] = line;
+		sequences.set(index, position + 1);
+
+	}
+
+	/**
+	 * this method writes the lines queued so far, from the calling thread
+	 */
+	public synchronized void flush() {
+
+		// Variable Declaration
+		StringBuilder batch = null;
+
+		// Process: taking every published line
+		while (true) {
+
+			int index = (int) head & mask;
+
+			if (sequences.get(index) != head + 1) { //nothing more published
+
+				break;
+
+			}
+
+			if (batch == null) {
+
+				batch = new StringBuilder();
+
+			}
+
+			batch.append(lines[index]).append(System.lineSeparator());
+			lines[index] = null;
+			sequences.set(index, head + lines.length);
+			head++;
+
+		}
+
+		long lost = dropped.get() - reportedDrops;
+		reportedDrops += lost;
+
+		if (lost > 0) {
+
+			if (batch == null) {
+
+				batch = new StringBuilder();
+
+			}
+
+			batch.append("(").append(lost).append(" log lines dropped)").append(System.lineSeparator());
+
+		}
+
+		// Output: one write for the whole batch
+		if (batch != null) {
+
+			PrintStream out = System.out;
+			out.print(batch);
+			out.flush();
+
+		}
+
+	}
+
+	/**
+	 * this helper method is run by the writer thread, writing the lines as
+	 * they gather
+	 */
+	private void writeLoop() {
+
+		while (true) {
+
+			flush();
+			LockSupport.parkNanos(FLUSH_INTERVAL * 1000000L);
+
+		}
+
+	}
+
+}
+//End of AsyncLogger class
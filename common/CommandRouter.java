@@ -0,0 +1,262 @@
+package common;
+
+/**
+ * This class routes the commands typed by users, such as "#login bob", to the
+ * handler registered for the command name. The name is the first token of the
+ * line, up to the first space. It is looked up in a hash table directly from
+ * the characters of the line, so routing a line allocates nothing, and a line
+ * that is not a command is recognized by its first character alone.
+ *
+ * @param <T> the type of the context handed to the handlers, such as the
+ * 	connection the line came from
+ */
+public class CommandRouter<T> {
+
+	//Inner interfaces ************************************************
+	/**
+	 * A handler for one command.
+	 *
+	 * @param <T> the type of the context
+	 */
+	public interface Handler<T> {
+
+		/**
+		 * Handles a command line.
+		 *
+		 * @param context
+		 * 	the context given to <code>dispatch</code>
+		 * @param line
+		 * 	the whole command line
+		 * @param argStart
+		 * 	the index of the first character after the command name and the
+		 * 	space following it, or the length of the line if there is nothing
+		 * 	after the name
+		 */
+		void handle(T context, String line, int argStart);
+
+	}
+
+	//Class variables *************************************************
+	/**
+	 * The first character of every command.
+	 */
+	final public static char COMMAND_PREFIX = '#';
+
+	// Instance Variables--------------------------------------------------------------
+	/**
+	 * the command names, in an open addressing hash table
+	 */
+	private String[] names = new String[16];
+
+	/**
+	 * the handler of each name, at the same index as the name
+	 */
+	private Handler<T>[] handlers = newHandlers(16);
+
+	/**
+	 * the number of commands registered
+	 */
+	private int size = 0;
+
+	/**
+	 * the handler of command lines whose name is not registered, if any
+	 */
+	private Handler<T> unknownCommandHandler;
+
+	// Instance Methods----------------------------------------------------------------
+	/**
+	 * this method registers the handler of a command, replacing any previous one
+	 *
+	 * @param name
+	 * 	the command name, prefix included, e.g. "#login"
+	 * @param handler
+	 * 	the handler of the command
+	 */
+	public void register(String name, Handler<T> handler) {
+
+		// Process: checking the name
+		if (name.isEmpty() || name.charAt(0) != COMMAND_PREFIX || name.indexOf(' ') >= 0) {
+
+			throw new IllegalArgumentException("invalid command name: " + name);
+
+		}
+
+		// Process: keeping the table at most half full
+		if ((size + 1) * 2 > names.length) {
+
+			resize(names.length * 2);
+
+		}
+
+		// Variable Declaration
+		int slot = find(name, name.length());
+
+		if (names[slot] == null) { //new command
+
+			names[slot] = name;
+			size++;
+
+		}
+
+		handlers[slot] = handler;
+
+	}
+
+	/**
+	 * this method sets the handler of command lines whose name is not registered
+	 *
+	 * @param handler
+	 * 	the handler, or null to leave such lines unhandled
+	 */
+	public void setUnknownCommandHandler(Handler<T> handler) {
+
+		this.unknownCommandHandler = handler;
+
+	}
+
+	/**
+	 * this method tells if a command name is registered
+	 *
+	 * @param name
+	 * 	the command name, prefix included
+	 * @return true if the name has a handler
+	 */
+	public boolean isRegistered(String name) {
+
+		return names[find(name, name.length())] != null;
+
+	}
+
+	/**
+	 * this method hands a line to the handler of its command
+	 *
+	 * @param context
+	 * 	the context passed on to the handler
+	 * @param line
+	 * 	the line typed
+	 * @return true if a handler took the line, false if the line is not a
+	 * 	command, or is an unknown command and there is no handler for those
+	 */
+	public boolean dispatch(T context, String line) {
+
+		// Process: checking if line is a command
+		if (line.isEmpty() || line.charAt(0) != COMMAND_PREFIX) { //plain message
+
+			return false;
+
+		}
+
+		// Variable Declaration
+		int nameEnd = line.indexOf(' ');
+
+		if (nameEnd < 0) { //no argument
+
+			nameEnd = line.length();
+
+		}
+
+		int argStart = Math.min(nameEnd + 1, line.length());
+		int slot = find(line, nameEnd);
+
+		// Process: calling the handler
+		if (names[slot] != null) { //registered command
+
+			handlers[slot].handle(context, line, argStart);
+
+			return true;
+
+		}
+		else if (unknownCommandHandler != null) { //unknown command
+
+			unknownCommandHandler.handle(context, line, argStart);
+
+			return true;
+
+		}
+
+		return false;
+
+	}
+
+	/**
+	 * this helper method finds the slot of a command name, or the empty slot
+	 * where it would go
+	 *
+	 * @param line
+	 * 	a string starting with the name
+	 * @param length
+	 * 	the length of the name
+	 * @return the index of the slot
+	 */
+	private int find(String line, int length) {
+
+		// Variable Declaration: same hash as String.hashCode() of the name
+		int hash = 0;
+
+		for (int i = 0; i < length; i++) {
+
+			hash = 31 * hash + line.charAt(i);
+
+		}
+
+		int mask = names.length - 1;
+		int slot = (hash ^ (hash >>> 16)) & mask;
+
+		// Process: probing until the name or an empty slot is found
+		while (names[slot] != null
+				&& !(names[slot].length() == length && line.regionMatches(0, names[slot], 0, length))) {
+
+			slot = (slot + 1) & mask;
+
+		}
+
+		return slot;
+
+	}
+
+	/**
+	 * this helper method moves the commands to a larger table
+	 *
+	 * @param capacity
+	 * 	the new number of slots, a power of two
+	 */
+	private void resize(int capacity) {
+
+		// Variable Declaration
+		String[] oldNames = names;
+		Handler<T>[] oldHandlers = handlers;
+
+		names = new String[capacity];
+		handlers = newHandlers(capacity);
+
+		// Process: reinserting every command
+		for (int i = 0; i < oldNames.length; i++) {
+
+			if (oldNames[i] != null) {
+
+				int slot = find(oldNames[i], oldNames[i].length());
+				names[slot] = oldNames[i];
+				handlers[slot] = oldHandlers[i];
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * this helper method creates an array of handlers
+	 *
+	 * @param capacity
+	 * 	the length of the array
+	 * @return the array
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> Handler<T>[] newHandlers(int capacity) {
+
+		return (Handler<T>[]) new Handler<?>[capacity];
+
+	}
+
+}
+//End of CommandRouter class
@@ -7,6 +7,12 @@ package ocsf.client;
 import java.io.*;
 import java.net.*;
 
+import ocsf.common.CountingOutputStream;
+import ocsf.common.MessageCodec;
+import ocsf.common.ObjectFrames;
+import ocsf.common.ResetPolicy;
+import ocsf.common.SocketConfig;
+
 /**
  * The <code> AbstractClient </code> contains all the methods necessary to set
  * up the client side of a client-server architecture. When a client is thus
@@ -19,6 +25,13 @@ import java.net.*;
  * Several public service methods are provided to application that use this
  * framework.
  * <p>
+ * By default messages travel over a pair of object streams. A client talking
+ * to a server that uses the selector engine must switch to the framed protocol
+ * with <code>setFramed</code>, or by setting the
+ * <code>ocsf.client.framed</code> system property to true. Frames hold
+ * messages encoded by a <code>MessageCodec</code>, which must be the same on
+ * both ends.
+ * <p>
  * Project Name: OCSF (Object Client-Server Framework)
  * <p>
  * 
@@ -45,11 +58,72 @@ public abstract class AbstractClient implements Runnable {
 	 */
 	private ObjectOutputStream	output;
 
+	/**
+	 * Counts the bytes written by <code>output</code>.
+	 */
+	private CountingOutputStream	outputCounter;
+
+	/**
+	 * Decides when <code>output</code> is reset.
+	 */
+	private ResetPolicy			resetPolicy		= ResetPolicy.DEFAULT;
+
+	/**
+	 * The number of messages written since <code>output</code> was reset.
+	 */
+	private long				messagesSinceReset;
+
+	/**
+	 * The byte count of <code>outputCounter</code> when <code>output</code>
+	 * was last reset.
+	 */
+	private long				bytesAtReset;
+
+	/**
+	 * The number of times <code>output</code> has been reset.
+	 */
+	private long				resetCount		= 0;
+
 	/**
 	 * The stream to handle data from the server.
 	 */
 	private ObjectInputStream	input;
 
+	/**
+	 * The stream to handle frames going to the server in framed mode.
+	 */
+	private OutputStream		frameOutput;
+
+	/**
+	 * The stream to handle frames from the server in framed mode.
+	 */
+	private DataInputStream		frameInput;
+
+	/**
+	 * Indicates if messages are exchanged as frames rather than over object
+	 * streams.
+	 * 
+	 * @see ocsf.common.ObjectFrames
+	 */
+	private boolean				framed		= Boolean.getBoolean("ocsf.client.framed");
+
+	/**
+	 * The codec encoding the messages in frames.
+	 */
+	private MessageCodec		codec		= ObjectFrames.defaultCodec();
+
+	/**
+	 * Indicates if the thread reading data from the server is a virtual
+	 * thread. Read from the <code>ocsf.client.virtual</code> system property
+	 * by default.
+	 */
+	private boolean				virtualReader	= Boolean.getBoolean("ocsf.client.virtual");
+
+	/**
+	 * The options of the socket, and the size of the buffers of its streams.
+	 */
+	private SocketConfig		socketConfig	= SocketConfig.DEFAULT;
+
 	/**
 	 * The thread created to read data from the server.
 	 */
@@ -71,6 +145,11 @@ public abstract class AbstractClient implements Runnable {
 	 */
 	private int					port;
 
+	/**
+	 * The local address the socket is bound to, or null for any.
+	 */
+	private InetAddress			localAddress;
+
 	// CONSTRUCTORS *****************************************************
 
 	/**
@@ -103,9 +182,27 @@ public abstract class AbstractClient implements Runnable {
 
 		// Create the sockets and the data streams
 		try {
-			clientSocket = new Socket(host, port);
-			output = new ObjectOutputStream(clientSocket.getOutputStream());
-			input = new ObjectInputStream(clientSocket.getInputStream());
+			// The options are set before connecting, as the receive buffer
+			// size is agreed on during the handshake
+			int bufferSize = socketConfig.getStreamBufferSize();
+			clientSocket = new Socket();
+			socketConfig.apply(clientSocket);
+			if (localAddress != null)
+				clientSocket.bind(new InetSocketAddress(localAddress, 0));
+			clientSocket.connect(new InetSocketAddress(host, port));
+
+			if (framed) {
+				frameOutput = new BufferedOutputStream(clientSocket.getOutputStream(), bufferSize);
+				frameInput = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream(), bufferSize));
+			} else {
+				outputCounter = new CountingOutputStream(
+						new BufferedOutputStream(clientSocket.getOutputStream(), bufferSize));
+				output = new ObjectOutputStream(outputCounter);
+				output.flush(); // the server waits for the stream header
+				messagesSinceReset = 0;
+				bytesAtReset = outputCounter.getCount();
+				input = new ObjectInputStream(new BufferedInputStream(clientSocket.getInputStream(), bufferSize));
+			}
 		} catch (IOException ex)
 		// All three of the above must be closed when there is a failure
 		// to create any of them
@@ -118,7 +215,8 @@ public abstract class AbstractClient implements Runnable {
 			throw ex; // Rethrow the exception.
 		}
 
-		clientReader = new Thread(this); // Create the data reader thread
+		// Create the data reader thread
+		clientReader = virtualReader ? Thread.ofVirtual().unstarted(this) : new Thread(this);
 		readyToStop = false;
 		clientReader.start(); // Start the thread
 	}
@@ -132,11 +230,22 @@ public abstract class AbstractClient implements Runnable {
 	 * @exception IOException
 	 *                if an I/O error occurs when sending
 	 */
-	final public void sendToServer(Object msg) throws IOException {
-		if (clientSocket == null || output == null)
+	final synchronized public void sendToServer(Object msg) throws IOException {
+		if (clientSocket == null || (output == null && frameOutput == null))
 			throw new SocketException("socket does not exist");
 
+		// Each message goes out in one write, header included
+		if (frameOutput != null) {
+			frameOutput.write(ObjectFrames.encode(codec, msg));
+			frameOutput.flush();
+			return;
+		}
+
 		output.writeObject(msg);
+		messagesSinceReset++;
+		if (resetPolicy.isResetDue(messagesSinceReset, outputCounter.getCount() - bytesAtReset))
+			resetOutput();
+		output.flush();
 	}
 
 	/**
@@ -144,8 +253,12 @@ public abstract class AbstractClient implements Runnable {
 	 * buffer repeatedly. This would not normally be used, but is necessary
     * in some circumstances when Java refuses to send data that it thinks has been sent.
 	 */
-	final public void forceResetAfterSend() throws IOException {
-      output.reset();
+	final synchronized public void forceResetAfterSend() throws IOException {
+		// Frames do not share any stream state, there is nothing to reset
+		if (frameOutput != null)
+			return;
+
+		resetOutput();
 	}
 
 	/**
@@ -193,6 +306,109 @@ public abstract class AbstractClient implements Runnable {
 		this.port = port;
 	}
 
+	/**
+	 * @return true if messages are exchanged as frames.
+	 */
+	final public boolean isFramed() {
+		return framed;
+	}
+
+	/**
+	 * Selects the framed protocol, needed to talk to a server using the
+	 * selector engine. The change only takes effect at the time of the next
+	 * call to openConnection().
+	 * 
+	 * @param framed
+	 *            true to exchange frames, false to use object streams.
+	 */
+	final public void setFramed(boolean framed) {
+		this.framed = framed;
+	}
+
+	/**
+	 * @return the policy deciding when the object output stream is reset.
+	 */
+	final public ResetPolicy getResetPolicy() {
+		return resetPolicy;
+	}
+
+	/**
+	 * Sets the policy deciding when the object output stream is reset. The
+	 * change takes effect with the next message sent.
+	 * 
+	 * @param resetPolicy
+	 *            the policy.
+	 */
+	final public void setResetPolicy(ResetPolicy resetPolicy) {
+		this.resetPolicy = resetPolicy;
+	}
+
+	/**
+	 * @return the number of times the object output stream has been reset,
+	 *         over all connections.
+	 */
+	final public long getResetCount() {
+		return resetCount;
+	}
+
+	/**
+	 * @return the codec encoding the messages in frames.
+	 */
+	final public MessageCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Sets the codec encoding the messages in frames, and selects the framed
+	 * protocol. The change only takes effect at the time of the next call to
+	 * openConnection().
+	 * 
+	 * @param codec
+	 *            the codec, the same as the server's.
+	 */
+	final public void setCodec(MessageCodec codec) {
+		this.codec = codec;
+		this.framed = true;
+	}
+
+	/**
+	 * @return true if the reader thread is a virtual thread.
+	 */
+	final public boolean isVirtualReader() {
+		return virtualReader;
+	}
+
+	/**
+	 * Selects whether data from the server is read by a virtual thread
+	 * instead of a platform thread. The change only takes effect at the time
+	 * of the next call to openConnection().
+	 * 
+	 * @param virtualReader
+	 *            true to read from a virtual thread.
+	 */
+	final public void setVirtualReader(boolean virtualReader) {
+		this.virtualReader = virtualReader;
+	}
+
+	/**
+	 * @return the options of the socket.
+	 */
+	final public SocketConfig getSocketConfig() {
+		return socketConfig;
+	}
+
+	/**
+	 * Sets the options of the socket, and the size of the buffers of its
+	 * streams. The change only takes effect at the time of the next call to
+	 * openConnection().
+	 * 
+	 * @param socketConfig
+	 *            the socket configuration.
+	 */
+	final public void setSocketConfig(SocketConfig socketConfig) {
+		this.socketConfig = socketConfig;
+	}
+
 	/**
 	 * @return the host name.
 	 */
@@ -211,6 +427,25 @@ public abstract class AbstractClient implements Runnable {
 		this.host = host;
 	}
 
+	/**
+	 * @return the local address the socket is bound to, null for any.
+	 */
+	final public InetAddress getLocalAddress() {
+		return localAddress;
+	}
+
+	/**
+	 * Sets the local address the socket is bound to, on a host with several
+	 * addresses. The change only takes effect at the time of the next call
+	 * to openConnection().
+	 * 
+	 * @param localAddress
+	 *            the local address, or null to let the system choose.
+	 */
+	final public void setLocalAddress(InetAddress localAddress) {
+		this.localAddress = localAddress;
+	}
+
 	/**
 	 * returns the client's description.
 	 * 
@@ -239,7 +474,7 @@ public abstract class AbstractClient implements Runnable {
 				// Get data from Server and send it to the handler
 				// The thread waits indefinitely at the following
 				// statement until something is received from the server
-				msg = input.readObject();
+				msg = frameInput != null ? ObjectFrames.read(codec, frameInput) : input.readObject();
 
 				// Concrete subclasses do what they want with the
 				// msg by implementing the following method
@@ -300,6 +535,20 @@ public abstract class AbstractClient implements Runnable {
 
 	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
+	/**
+	 * Resets the object output stream, dropping its references to the objects
+	 * already sent.
+	 * 
+	 * @exception IOException
+	 *                if an I/O error occurs when writing the reset marker.
+	 */
+	private void resetOutput() throws IOException {
+		output.reset();
+		messagesSinceReset = 0;
+		bytesAtReset = outputCounter.getCount();
+		resetCount++;
+	}
+
 	/**
 	 * Closes all aspects of the connection to the server.
 	 * 
@@ -319,13 +568,23 @@ public abstract class AbstractClient implements Runnable {
 			// Close the input stream
 			if (input != null)
 				input.close();
+
+			// Close the frame streams
+			if (frameOutput != null)
+				frameOutput.close();
+
+			if (frameInput != null)
+				frameInput.close();
 		} finally {
 			// Set the streams and the sockets to NULL no matter what
 			// Doing so allows, but does not require, any finalizers
 			// of these objects to reclaim system resources if and
 			// when they are garbage collected.
 			output = null;
+			outputCounter = null;
 			input = null;
+			frameOutput = null;
+			frameInput = null;
 			clientSocket = null;
 		}
 	}
@@ -0,0 +1,171 @@
+package ocsf.common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The <code> BinaryCodec </code> encodes the common message types with a one
+ * byte tag followed by their value: strings as UTF-8, numbers and booleans in
+ * big-endian binary, byte arrays as they are. Other objects fall back to Java
+ * serialization behind their own tag, so anything serializable can still be
+ * sent.
+ */
+public class BinaryCodec implements MessageCodec {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Tag of a null message.
+	 */
+	final static int					NULL			= 0;
+
+	/**
+	 * Tag of a string, followed by its UTF-8 bytes.
+	 */
+	final static int					STRING			= 1;
+
+	/**
+	 * Tag of an integer, followed by four bytes.
+	 */
+	final static int					INTEGER			= 2;
+
+	/**
+	 * Tag of a long, followed by eight bytes.
+	 */
+	final static int					LONG			= 3;
+
+	/**
+	 * Tag of a double, followed by eight bytes.
+	 */
+	final static int					DOUBLE			= 4;
+
+	/**
+	 * Tag of a boolean, followed by one byte.
+	 */
+	final static int					BOOLEAN			= 5;
+
+	/**
+	 * Tag of a byte array, followed by its bytes.
+	 */
+	final static int					BYTES			= 6;
+
+	/**
+	 * Tag of any other object, followed by its serialized form.
+	 */
+	final static int					SERIALIZED		= 127;
+
+	/**
+	 * The codec used for objects of other types.
+	 */
+	private final static MessageCodec	serialization	= new SerializationCodec();
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Writes the tag and the value of the message.
+	 *
+	 * @param msg
+	 *            the message to encode.
+	 * @param out
+	 *            the stream receiving the bytes.
+	 * @exception IOException
+	 *                if the message is of another type and not serializable.
+	 */
+	public void encode(Object msg, OutputStream out) throws IOException {
+		if (msg == null) {
+			out.write(NULL);
+		} else if (msg instanceof String) {
+			out.write(STRING);
+			out.write(((String) msg).getBytes(StandardCharsets.UTF_8));
+		} else if (msg instanceof Integer) {
+			out.write(INTEGER);
+			writeLong(out, ((Integer) msg).intValue(), 4);
+		} else if (msg instanceof Long) {
+			out.write(LONG);
+			writeLong(out, ((Long) msg).longValue(), 8);
+		} else if (msg instanceof Double) {
+			out.write(DOUBLE);
+			writeLong(out, Double.doubleToRawLongBits(((Double) msg).doubleValue()), 8);
+		} else if (msg instanceof Boolean) {
+			out.write(BOOLEAN);
+			out.write(((Boolean) msg).booleanValue() ? 1 : 0);
+		} else if (msg instanceof byte[]) {
+			out.write(BYTES);
+			out.write((byte[]) msg);
+		} else {
+			out.write(SERIALIZED);
+			serialization.encode(msg, out);
+		}
+	}
+
+	/**
+	 * Reads a message according to its tag.
+	 *
+	 * @param data
+	 *            the buffer holding the bytes.
+	 * @param offset
+	 *            the index of the first byte.
+	 * @param length
+	 *            the number of bytes.
+	 * @return the decoded message.
+	 * @exception IOException
+	 *                if the tag is unknown or the value truncated.
+	 * @exception ClassNotFoundException
+	 *                if the class of a serialized message cannot be found.
+	 */
+	public Object decode(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+		if (length < 1)
+			throw new StreamCorruptedException("empty message");
+
+		int start = offset + 1;
+		int size = length - 1;
+
+		switch (data[offset]) {
+			case NULL:
+				return null;
+			case STRING:
+				return new String(data, start, size, StandardCharsets.UTF_8);
+			case INTEGER:
+				return Integer.valueOf((int) readLong(data, start, size, 4));
+			case LONG:
+				return Long.valueOf(readLong(data, start, size, 8));
+			case DOUBLE:
+				return Double.valueOf(Double.longBitsToDouble(readLong(data, start, size, 8)));
+			case BOOLEAN:
+				return Boolean.valueOf(readLong(data, start, size, 1) != 0);
+			case BYTES:
+				byte[] bytes = new byte[size];
+				System.arraycopy(data, start, bytes, 0, size);
+				return bytes;
+			case SERIALIZED:
+				return serialization.decode(data, start, size);
+			default:
+				throw new StreamCorruptedException("unknown message tag " + data[offset]);
+		}
+	}
+
+	// METHODS TO BE USED FROM WITHIN THE CODEC ONLY --------------------
+
+	/**
+	 * Writes the low bytes of a value in big-endian order.
+	 */
+	private static void writeLong(OutputStream out, long value, int bytes) throws IOException {
+		for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+			out.write((int) (value >>> shift));
+		}
+	}
+
+	/**
+	 * Reads a big-endian value of the given number of bytes.
+	 */
+	private static long readLong(byte[] data, int offset, int size, int bytes) throws IOException {
+		if (size != bytes)
+			throw new StreamCorruptedException("expected " + bytes + " bytes, found " + size);
+
+		long value = 0;
+		for (int i = 0; i < bytes; i++) {
+			value = (value << 8) | (data[offset + i] & 0xff);
+		}
+		return bytes == 4 ? (int) value : value;
+	}
+}
+// End of BinaryCodec class
@@ -0,0 +1,76 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * A <code> CountingInputStream </code> passes on everything read from another
+ * stream and counts the bytes.
+ */
+public class CountingInputStream extends FilterInputStream {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The number of bytes read so far.
+	 */
+	private long	count	= 0;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a stream counting the bytes read from another.
+	 *
+	 * @param in
+	 *            the stream read from.
+	 */
+	public CountingInputStream(InputStream in) {
+		super(in);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Reads one byte.
+	 */
+	public int read() throws IOException {
+		int b = in.read();
+		if (b >= 0)
+			count++;
+		return b;
+	}
+
+	/**
+	 * Reads part of an array in one call to the underlying stream.
+	 */
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = in.read(b, off, len);
+		if (n > 0)
+			count += n;
+		return n;
+	}
+
+	/**
+	 * Skips bytes, counting them as read.
+	 */
+	public long skip(long n) throws IOException {
+		long skipped = in.skip(n);
+		count += skipped;
+		return skipped;
+	}
+
+	/**
+	 * Marks are not supported, so that no byte is counted twice.
+	 */
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * Returns the number of bytes read so far.
+	 *
+	 * @return the number of bytes.
+	 */
+	public long getCount() {
+		return count;
+	}
+}
+// End of CountingInputStream class
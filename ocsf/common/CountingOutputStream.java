@@ -0,0 +1,56 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * A <code> CountingOutputStream </code> passes everything written to it on to
+ * another stream and counts the bytes.
+ */
+public class CountingOutputStream extends FilterOutputStream {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The number of bytes written so far.
+	 */
+	private long	count	= 0;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a stream counting the bytes written to another.
+	 *
+	 * @param out
+	 *            the stream written to.
+	 */
+	public CountingOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Writes one byte.
+	 */
+	public void write(int b) throws IOException {
+		out.write(b);
+		count++;
+	}
+
+	/**
+	 * Writes part of an array in one call to the underlying stream.
+	 */
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		count += len;
+	}
+
+	/**
+	 * Returns the number of bytes written so far.
+	 *
+	 * @return the number of bytes.
+	 */
+	public long getCount() {
+		return count;
+	}
+}
+// End of CountingOutputStream class
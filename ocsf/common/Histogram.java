@@ -0,0 +1,151 @@
+package ocsf.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A <code> Histogram </code> counts recorded values, such as latencies in
+ * nanoseconds, in buckets whose width grows with the value, so that
+ * percentiles are known to within one percent over the whole range of a
+ * <code>long</code> in a few thousand counters.
+ * <p>
+ * Values below 128 have a bucket each. Above, each power of two is split in 64
+ * buckets of equal width. Recording a value increments the counter of its
+ * bucket without taking a lock, so any number of threads may record at once.
+ * Percentiles are read from the counters as they are; values recorded while
+ * they are read may or may not be counted.
+ */
+final public class Histogram {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The number of buckets each power of two is split in, as a power of two.
+	 */
+	private final static int	SUB_BUCKET_BITS	= 6;
+
+	/**
+	 * The number of buckets: every exponent up to that of the largest
+	 * <code>long</code>, each with its sub-buckets.
+	 */
+	private final static int	BUCKET_COUNT	= (64 - SUB_BUCKET_BITS) << SUB_BUCKET_BITS;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The number of values recorded in each bucket.
+	 */
+	private final AtomicLongArray	counts			= new AtomicLongArray(BUCKET_COUNT);
+
+	/**
+	 * The number of values recorded.
+	 */
+	private final LongAdder			count			= new LongAdder();
+
+	/**
+	 * The sum of the values recorded.
+	 */
+	private final LongAdder			sum				= new LongAdder();
+
+	/**
+	 * The largest value recorded.
+	 */
+	private final AtomicLong		max				= new AtomicLong();
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Records a value. Negative values are recorded as 0.
+	 *
+	 * @param value
+	 *            the value.
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+
+		counts.incrementAndGet(bucketOf(value));
+		count.increment();
+		sum.add(value);
+
+		long largest;
+		while (value > (largest = max.get()) && !max.compareAndSet(largest, value))
+			;
+	}
+
+	/**
+	 * @return the number of values recorded.
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return the largest value recorded, 0 if none was.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return the mean of the values recorded, 0 if none was.
+	 */
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * Returns the value below which a given percent of the values recorded
+	 * fall: the largest value of the bucket holding that percentile, and no
+	 * more than the largest value recorded.
+	 *
+	 * @param percent
+	 *            the percentile, from 0 to 100.
+	 * @return the value at the percentile, 0 if no value was recorded.
+	 */
+	public long getValueAtPercentile(double percent) {
+		long total = 0;
+		long[] snapshot = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+
+		if (total == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(Math.min(100.0, percent) / 100.0 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(highestValueOf(i), max.get());
+		}
+
+		return max.get();
+	}
+
+	/**
+	 * Returns the bucket of a value.
+	 */
+	private static int bucketOf(long value) {
+		// The exponent is how far the value is shifted to fit in the
+		// sub-buckets of its power of two
+		int exponent = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS - 1);
+		return (exponent << SUB_BUCKET_BITS) + (int) (value >>> exponent);
+	}
+
+	/**
+	 * Returns the largest value falling in a bucket.
+	 */
+	private static long highestValueOf(int bucket) {
+		if (bucket < 2 << SUB_BUCKET_BITS)
+			return bucket;
+
+		int exponent = (bucket >>> SUB_BUCKET_BITS) - 1;
+		long subBucket = bucket - (exponent << SUB_BUCKET_BITS);
+		return ((subBucket + 1) << exponent) - 1;
+	}
+}
+// End of Histogram class
@@ -0,0 +1,43 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * A <code> MessageCodec </code> turns the messages exchanged in frames into
+ * bytes and back. The client and the server must use the same codec. Codecs
+ * hold no state between messages and may be shared by any number of
+ * connections and threads.
+ *
+ * @see ocsf.common.ObjectFrames
+ */
+public interface MessageCodec {
+	/**
+	 * Writes the bytes of a message, without any length prefix.
+	 *
+	 * @param msg
+	 *            the message to encode.
+	 * @param out
+	 *            the stream receiving the bytes.
+	 * @exception IOException
+	 *                if the message cannot be encoded by this codec.
+	 */
+	public abstract void encode(Object msg, OutputStream out) throws IOException;
+
+	/**
+	 * Reads a message from the bytes written by <code>encode</code>.
+	 *
+	 * @param data
+	 *            the buffer holding the bytes.
+	 * @param offset
+	 *            the index of the first byte.
+	 * @param length
+	 *            the number of bytes.
+	 * @return the decoded message.
+	 * @exception IOException
+	 *                if the bytes are not a valid message.
+	 * @exception ClassNotFoundException
+	 *                if the class of the message cannot be found.
+	 */
+	public abstract Object decode(byte[] data, int offset, int length) throws IOException, ClassNotFoundException;
+}
+// End of MessageCodec interface
@@ -0,0 +1,277 @@
+package ocsf.common;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.*;
+
+/**
+ * A <code> MetricsRegistry </code> holds named measures of a running server:
+ * counters, gauges read when asked for, and histograms of latencies. Counters
+ * are <code>LongAdder</code>s and histograms are lock-free, so that threads
+ * recording on hot paths never wait for one another.
+ * <p>
+ * The measures can be read all at once as a plain-text snapshot, one per line
+ * in the order of their names, or through JMX once the registry is registered
+ * as an MBean. Each counter and gauge is then an attribute; each histogram is
+ * a group of attributes for its count, mean, percentiles and maximum.
+ */
+final public class MetricsRegistry {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The statistics of a histogram exposed through JMX, as suffixes of its
+	 * name.
+	 */
+	private final static String[]	HISTOGRAM_STATISTICS	= { "count", "mean", "p50", "p90", "p99", "p999",
+			"max" };
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The measures by name: <code>LongAdder</code>s, <code>LongSupplier</code>s
+	 * and <code>Histogram</code>s.
+	 */
+	private final ConcurrentSkipListMap<String, Object>	metrics	= new ConcurrentSkipListMap<String, Object>();
+
+	/**
+	 * The name the registry is registered under as an MBean, if it is.
+	 */
+	private ObjectName									mbeanName;
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Returns the counter of a name, creating it if needed.
+	 *
+	 * @param name
+	 *            the name of the counter.
+	 * @return the counter.
+	 * @exception IllegalArgumentException
+	 *                if the name is taken by another kind of measure.
+	 */
+	public LongAdder counter(String name) {
+		return get(name, LongAdder.class, new LongAdder());
+	}
+
+	/**
+	 * Returns the histogram of a name, creating it if needed.
+	 *
+	 * @param name
+	 *            the name of the histogram.
+	 * @return the histogram.
+	 * @exception IllegalArgumentException
+	 *                if the name is taken by another kind of measure.
+	 */
+	public Histogram histogram(String name) {
+		return get(name, Histogram.class, new Histogram());
+	}
+
+	/**
+	 * Adds a gauge, whose value is read whenever it is asked for, replacing
+	 * any gauge of the same name.
+	 *
+	 * @param name
+	 *            the name of the gauge.
+	 * @param value
+	 *            reads the value of the gauge.
+	 * @exception IllegalArgumentException
+	 *                if the name is taken by another kind of measure.
+	 */
+	public void gauge(String name, LongSupplier value) {
+		Object previous = metrics.put(name, value);
+
+		if (previous != null && !(previous instanceof LongSupplier)) {
+			metrics.put(name, previous);
+			throw new IllegalArgumentException(name + " is not a gauge");
+		}
+	}
+
+	/**
+	 * Returns the current value of a counter or gauge.
+	 *
+	 * @param name
+	 *            the name of the counter or gauge.
+	 * @return its value, or 0 if there is none of that name.
+	 */
+	public long getValue(String name) {
+		Object metric = metrics.get(name);
+
+		if (metric instanceof LongAdder)
+			return ((LongAdder) metric).sum();
+		if (metric instanceof LongSupplier)
+			return ((LongSupplier) metric).getAsLong();
+		return 0;
+	}
+
+	/**
+	 * Returns every measure as text, one per line in the order of the names.
+	 * Histograms show their count, mean, percentiles and maximum.
+	 *
+	 * @return the snapshot.
+	 */
+	public String snapshot() {
+		StringBuilder text = new StringBuilder();
+
+		for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+			text.append(entry.getKey()).append(' ');
+
+			if (entry.getValue() instanceof Histogram) {
+				Histogram histogram = (Histogram) entry.getValue();
+				text.append("count=").append(histogram.getCount());
+				text.append(" mean=").append(Math.round(histogram.getMean()));
+				text.append(" p50=").append(histogram.getValueAtPercentile(50));
+				text.append(" p90=").append(histogram.getValueAtPercentile(90));
+				text.append(" p99=").append(histogram.getValueAtPercentile(99));
+				text.append(" p99.9=").append(histogram.getValueAtPercentile(99.9));
+				text.append(" max=").append(histogram.getMax());
+			} else
+				text.append(getValue(entry.getKey()));
+
+			text.append(System.lineSeparator());
+		}
+
+		return text.toString();
+	}
+
+	/**
+	 * Registers the registry with the platform MBean server, so that its
+	 * measures can be read through JMX. A registry is registered under one
+	 * name at most; registering it again moves it to the new name.
+	 *
+	 * @param name
+	 *            the object name, such as <code>ocsf.server:type=Server</code>.
+	 * @exception JMException
+	 *                if the name is malformed or already taken.
+	 */
+	public synchronized void registerMBean(String name) throws JMException {
+		unregisterMBean();
+
+		ObjectName objectName = new ObjectName(name);
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), objectName);
+		mbeanName = objectName;
+	}
+
+	/**
+	 * Removes the registry from the platform MBean server, if registered.
+	 */
+	public synchronized void unregisterMBean() {
+		if (mbeanName == null)
+			return;
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+		} catch (JMException ex) {
+		}
+		mbeanName = null;
+	}
+
+	/**
+	 * Returns the measure of a name and kind, adding the given one if there
+	 * is none yet.
+	 */
+	private <T> T get(String name, Class<T> kind, T created) {
+		Object metric = metrics.putIfAbsent(name, created);
+
+		if (metric == null)
+			return created;
+		if (!kind.isInstance(metric))
+			throw new IllegalArgumentException(name + " is not a " + kind.getSimpleName());
+		return kind.cast(metric);
+	}
+
+	/**
+	 * Reads an attribute of the MBean: a counter or gauge by its name, or a
+	 * statistic of a histogram by the name of the histogram and the
+	 * statistic.
+	 */
+	private Object readAttribute(String attribute) throws AttributeNotFoundException {
+		Object metric = metrics.get(attribute);
+
+		if (metric != null && !(metric instanceof Histogram))
+			return getValue(attribute);
+
+		int dot = attribute.lastIndexOf('.');
+		if (dot > 0 && metrics.get(attribute.substring(0, dot)) instanceof Histogram) {
+			Histogram histogram = (Histogram) metrics.get(attribute.substring(0, dot));
+
+			switch (attribute.substring(dot + 1)) {
+			case "count":
+				return histogram.getCount();
+			case "mean":
+				return Math.round(histogram.getMean());
+			case "p50":
+				return histogram.getValueAtPercentile(50);
+			case "p90":
+				return histogram.getValueAtPercentile(90);
+			case "p99":
+				return histogram.getValueAtPercentile(99);
+			case "p999":
+				return histogram.getValueAtPercentile(99.9);
+			case "max":
+				return histogram.getMax();
+			}
+		}
+
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * The MBean exposing the measures, as read-only attributes of type
+	 * <code>long</code>. The attributes follow the measures added after
+	 * registration.
+	 */
+	private class MetricsMBean implements DynamicMBean {
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			return readAttribute(attribute);
+		}
+
+		public AttributeList getAttributes(String[] attributes) {
+			AttributeList list = new AttributeList();
+
+			for (String attribute : attributes) {
+				try {
+					list.add(new Attribute(attribute, readAttribute(attribute)));
+				} catch (AttributeNotFoundException ex) {
+				}
+			}
+			return list;
+		}
+
+		public MBeanInfo getMBeanInfo() {
+			ArrayList<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+
+			for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+				if (entry.getValue() instanceof Histogram) {
+					for (String statistic : HISTOGRAM_STATISTICS)
+						attributes.add(new MBeanAttributeInfo(entry.getKey() + "." + statistic, "long",
+								statistic + " of " + entry.getKey(), true, false, false));
+				} else
+					attributes.add(new MBeanAttributeInfo(entry.getKey(), "long", entry.getKey(), true, false,
+							false));
+			}
+
+			return new MBeanInfo(MetricsRegistry.class.getName(), "OCSF metrics",
+					attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+		}
+
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+		}
+
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+			throw new MBeanException(new UnsupportedOperationException(actionName));
+		}
+	}
+}
+// End of MetricsRegistry class
@@ -0,0 +1,132 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * The <code> ObjectFrames </code> class encodes and decodes the framed wire
+ * format used when a connection does not run over a pair of long-lived object
+ * streams. Each frame is a four byte big-endian length followed by that many
+ * bytes holding one message, encoded by a <code>MessageCodec</code>. A frame
+ * can be decoded without any state from the frames that preceded it.
+ * <p>
+ * The codec used by default is named by the <code>ocsf.codec</code> system
+ * property: "serialization" (the default), "text" or "binary".
+ *
+ * @see ocsf.common.MessageCodec
+ */
+final public class ObjectFrames {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The number of bytes in the length prefix of a frame.
+	 */
+	final public static int	HEADER_LENGTH		= 4;
+
+	/**
+	 * The largest frame payload accepted when decoding. Anything bigger is
+	 * taken to be a corrupted or hostile stream.
+	 */
+	final public static int	MAX_FRAME_LENGTH	= 16 * 1024 * 1024;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * This class only has static methods.
+	 */
+	private ObjectFrames() {
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Returns the codec named by the <code>ocsf.codec</code> system property.
+	 *
+	 * @return a new instance of the codec.
+	 */
+	public static MessageCodec defaultCodec() {
+		String name = System.getProperty("ocsf.codec", "serialization");
+
+		if (name.equalsIgnoreCase("text"))
+			return new TextCodec();
+		if (name.equalsIgnoreCase("binary"))
+			return new BinaryCodec();
+		return new SerializationCodec();
+	}
+
+	/**
+	 * Encodes a message as a complete frame, length prefix included.
+	 *
+	 * @param codec
+	 *            the codec encoding the message.
+	 * @param msg
+	 *            the message to encode.
+	 * @return the bytes of the frame.
+	 * @exception IOException
+	 *                if the message cannot be encoded.
+	 */
+	public static byte[] encode(MessageCodec codec, Object msg) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+
+		// Reserve room for the length, patched once the size is known
+		bytes.write(new byte[HEADER_LENGTH]);
+		codec.encode(msg, bytes);
+
+		byte[] frame = bytes.toByteArray();
+		writeLength(frame, 0, checkLength(frame.length - HEADER_LENGTH));
+		return frame;
+	}
+
+	/**
+	 * Reads one whole frame from a blocking stream and decodes it.
+	 *
+	 * @param codec
+	 *            the codec decoding the message.
+	 * @param input
+	 *            the stream to read from.
+	 * @return the decoded object.
+	 * @exception IOException
+	 *                if an I/O error occurs or the frame is invalid.
+	 * @exception ClassNotFoundException
+	 *                if the class of the object cannot be found.
+	 */
+	public static Object read(MessageCodec codec, DataInputStream input) throws IOException, ClassNotFoundException {
+		int length = checkLength(input.readInt());
+		byte[] payload = new byte[length];
+		input.readFully(payload);
+		return codec.decode(payload, 0, length);
+	}
+
+	/**
+	 * Checks that a frame length read from the wire is acceptable.
+	 *
+	 * @param length
+	 *            the length read.
+	 * @return the same length.
+	 * @exception StreamCorruptedException
+	 *                if the length is negative or too large.
+	 */
+	public static int checkLength(int length) throws StreamCorruptedException {
+		if (length < 0 || length > MAX_FRAME_LENGTH)
+			throw new StreamCorruptedException("invalid frame length " + length);
+
+		return length;
+	}
+
+	/**
+	 * Writes a frame length in big-endian order.
+	 *
+	 * @param data
+	 *            the buffer to write into.
+	 * @param offset
+	 *            the index of the first byte of the length.
+	 * @param length
+	 *            the length to write.
+	 */
+	public static void writeLength(byte[] data, int offset, int length) {
+		data[offset] = (byte) (length >>> 24);
+		data[offset + 1] = (byte) (length >>> 16);
+		data[offset + 2] = (byte) (length >>> 8);
+		data[offset + 3] = (byte) length;
+	}
+}
+// End of ObjectFrames class
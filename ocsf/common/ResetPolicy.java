@@ -0,0 +1,117 @@
+package ocsf.common;
+
+/**
+ * A <code> ResetPolicy </code> decides when an object output stream is reset.
+ * An object stream keeps a reference to every object written to it until it is
+ * reset, so that it can write back references instead of writing an object
+ * twice. On a long-lived connection this table grows without end unless the
+ * stream is reset from time to time. Resetting costs one byte on the wire, and
+ * class descriptions are written again after a reset.
+ * <p>
+ * Policies are immutable and may be shared by any number of streams.
+ */
+final public class ResetPolicy {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Never reset automatically; only <code>forceResetAfterSend</code> resets.
+	 */
+	final public static ResetPolicy	NEVER			= new ResetPolicy(0, 0);
+
+	/**
+	 * Reset after every message, so no object is ever retained.
+	 */
+	final public static ResetPolicy	EVERY_MESSAGE	= new ResetPolicy(1, 0);
+
+	/**
+	 * The policy used by default: reset after every 1000 messages.
+	 */
+	final public static ResetPolicy	DEFAULT			= new ResetPolicy(1000, 0);
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The number of messages after which the stream is reset, 0 for no limit.
+	 */
+	private final long				messageLimit;
+
+	/**
+	 * The number of bytes after which the stream is reset, 0 for no limit.
+	 */
+	private final long				byteLimit;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a policy.
+	 *
+	 * @param messageLimit
+	 *            the number of messages between resets, 0 for no limit.
+	 * @param byteLimit
+	 *            the number of bytes between resets, 0 for no limit.
+	 */
+	private ResetPolicy(long messageLimit, long byteLimit) {
+		this.messageLimit = messageLimit;
+		this.byteLimit = byteLimit;
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Returns a policy resetting the stream every so many messages.
+	 *
+	 * @param messages
+	 *            the number of messages between resets.
+	 * @return the policy.
+	 */
+	public static ResetPolicy everyMessages(long messages) {
+		if (messages <= 0)
+			throw new IllegalArgumentException("messages must be positive");
+
+		return new ResetPolicy(messages, 0);
+	}
+
+	/**
+	 * Returns a policy resetting the stream once so many bytes have been
+	 * written since the last reset.
+	 *
+	 * @param bytes
+	 *            the number of bytes between resets.
+	 * @return the policy.
+	 */
+	public static ResetPolicy everyBytes(long bytes) {
+		if (bytes <= 0)
+			throw new IllegalArgumentException("bytes must be positive");
+
+		return new ResetPolicy(0, bytes);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Tells if a stream is due for a reset.
+	 *
+	 * @param messages
+	 *            the number of messages written since the last reset.
+	 * @param bytes
+	 *            the number of bytes written since the last reset.
+	 * @return true if the stream should be reset now.
+	 */
+	public boolean isResetDue(long messages, long bytes) {
+		return (messageLimit > 0 && messages >= messageLimit) || (byteLimit > 0 && bytes >= byteLimit);
+	}
+
+	/**
+	 * Returns a description of the policy.
+	 *
+	 * @return the description.
+	 */
+	public String toString() {
+		if (messageLimit > 0)
+			return messageLimit == 1 ? "every message" : "every " + messageLimit + " messages";
+		if (byteLimit > 0)
+			return "every " + byteLimit + " bytes";
+		return "never";
+	}
+}
+// End of ResetPolicy class
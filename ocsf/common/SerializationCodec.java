@@ -0,0 +1,51 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * The <code> SerializationCodec </code> encodes messages with Java
+ * serialization. Any serializable object can be sent, at the cost of a stream
+ * header and class descriptions in every message. This is the default codec.
+ */
+public class SerializationCodec implements MessageCodec {
+	/**
+	 * Serializes the message on an object stream of its own.
+	 *
+	 * @param msg
+	 *            the message to encode.
+	 * @param out
+	 *            the stream receiving the bytes.
+	 * @exception IOException
+	 *                if the message is not serializable.
+	 */
+	public void encode(Object msg, OutputStream out) throws IOException {
+		ObjectOutputStream output = new ObjectOutputStream(out);
+		output.writeObject(msg);
+		output.flush();
+	}
+
+	/**
+	 * Deserializes a message.
+	 *
+	 * @param data
+	 *            the buffer holding the bytes.
+	 * @param offset
+	 *            the index of the first byte.
+	 * @param length
+	 *            the number of bytes.
+	 * @return the decoded message.
+	 * @exception IOException
+	 *                if the bytes are not a serialized object.
+	 * @exception ClassNotFoundException
+	 *                if the class of the message cannot be found.
+	 */
+	public Object decode(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+		ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(data, offset, length));
+		try {
+			return input.readObject();
+		} finally {
+			input.close();
+		}
+	}
+}
+// End of SerializationCodec class
@@ -0,0 +1,243 @@
+package ocsf.common;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * A <code> SocketConfig </code> holds the options of the sockets between
+ * clients and server: the sizes of the socket buffers of the system,
+ * <code>TCP_NODELAY</code>, <code>SO_KEEPALIVE</code>, <code>SO_LINGER</code>,
+ * and the size of the buffers of the streams wrapping the sockets.
+ * <p>
+ * Configurations are immutable. Each <code>with</code> method returns a copy
+ * with one option changed, starting from <code>DEFAULT</code>:
+ *
+ * <pre>
+ * server.setSocketConfig(SocketConfig.DEFAULT.withSendBufferSize(1 &lt;&lt; 20).withKeepAlive(true));
+ * </pre>
+ */
+final public class SocketConfig {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The configuration used by default: the buffer sizes of the system,
+	 * <code>TCP_NODELAY</code> on, no keepalive, no linger, and streams
+	 * buffered by 8 kilobytes.
+	 */
+	final public static SocketConfig	DEFAULT	= new SocketConfig(0, 0, true, false, -1, 8192);
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The size of the send buffer of the system, 0 for its default.
+	 */
+	private final int					sendBufferSize;
+
+	/**
+	 * The size of the receive buffer of the system, 0 for its default.
+	 */
+	private final int					receiveBufferSize;
+
+	/**
+	 * Indicates if Nagle's algorithm is off.
+	 */
+	private final boolean				tcpNoDelay;
+
+	/**
+	 * Indicates if keepalive probes are sent on idle connections.
+	 */
+	private final boolean				keepAlive;
+
+	/**
+	 * The time, in seconds, closing waits for unsent data, -1 for not
+	 * waiting.
+	 */
+	private final int					linger;
+
+	/**
+	 * The size of the buffers of the streams wrapping the socket.
+	 */
+	private final int					streamBufferSize;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a configuration.
+	 */
+	private SocketConfig(int sendBufferSize, int receiveBufferSize, boolean tcpNoDelay, boolean keepAlive,
+			int linger, int streamBufferSize) {
+		this.sendBufferSize = sendBufferSize;
+		this.receiveBufferSize = receiveBufferSize;
+		this.tcpNoDelay = tcpNoDelay;
+		this.keepAlive = keepAlive;
+		this.linger = linger;
+		this.streamBufferSize = streamBufferSize;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Returns a copy with another send buffer size.
+	 *
+	 * @param size
+	 *            the size in bytes, 0 for the default of the system.
+	 * @return the new configuration.
+	 */
+	public SocketConfig withSendBufferSize(int size) {
+		if (size < 0)
+			throw new IllegalArgumentException("size must not be negative");
+
+		return new SocketConfig(size, receiveBufferSize, tcpNoDelay, keepAlive, linger, streamBufferSize);
+	}
+
+	/**
+	 * Returns a copy with another receive buffer size. On the server, the size
+	 * is set on the listening socket, so that it applies from the handshake of
+	 * each connection.
+	 *
+	 * @param size
+	 *            the size in bytes, 0 for the default of the system.
+	 * @return the new configuration.
+	 */
+	public SocketConfig withReceiveBufferSize(int size) {
+		if (size < 0)
+			throw new IllegalArgumentException("size must not be negative");
+
+		return new SocketConfig(sendBufferSize, size, tcpNoDelay, keepAlive, linger, streamBufferSize);
+	}
+
+	/**
+	 * Returns a copy with <code>TCP_NODELAY</code> on or off.
+	 *
+	 * @param on
+	 *            true to send small segments without waiting.
+	 * @return the new configuration.
+	 */
+	public SocketConfig withTcpNoDelay(boolean on) {
+		return new SocketConfig(sendBufferSize, receiveBufferSize, on, keepAlive, linger, streamBufferSize);
+	}
+
+	/**
+	 * Returns a copy with <code>SO_KEEPALIVE</code> on or off.
+	 *
+	 * @param on
+	 *            true to probe idle connections.
+	 * @return the new configuration.
+	 */
+	public SocketConfig withKeepAlive(boolean on) {
+		return new SocketConfig(sendBufferSize, receiveBufferSize, tcpNoDelay, on, linger, streamBufferSize);
+	}
+
+	/**
+	 * Returns a copy with another <code>SO_LINGER</code> time.
+	 *
+	 * @param seconds
+	 *            how long closing waits for unsent data, -1 for not waiting.
+	 * @return the new configuration.
+	 */
+	public SocketConfig withLinger(int seconds) {
+		return new SocketConfig(sendBufferSize, receiveBufferSize, tcpNoDelay, keepAlive, Math.max(-1, seconds),
+				streamBufferSize);
+	}
+
+	/**
+	 * Returns a copy with another stream buffer size.
+	 *
+	 * @param size
+	 *            the size in bytes.
+	 * @return the new configuration.
+	 */
+	public SocketConfig withStreamBufferSize(int size) {
+		if (size <= 0)
+			throw new IllegalArgumentException("size must be positive");
+
+		return new SocketConfig(sendBufferSize, receiveBufferSize, tcpNoDelay, keepAlive, linger, size);
+	}
+
+	/**
+	 * @return the send buffer size, 0 for the default of the system.
+	 */
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	/**
+	 * @return the receive buffer size, 0 for the default of the system.
+	 */
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	/**
+	 * @return true if Nagle's algorithm is off.
+	 */
+	public boolean isTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	/**
+	 * @return true if idle connections are probed.
+	 */
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * @return the <code>SO_LINGER</code> time in seconds, -1 for not waiting.
+	 */
+	public int getLinger() {
+		return linger;
+	}
+
+	/**
+	 * @return the size of the buffers of the streams.
+	 */
+	public int getStreamBufferSize() {
+		return streamBufferSize;
+	}
+
+	/**
+	 * Sets the options on a connected socket, or one about to connect.
+	 *
+	 * @param socket
+	 *            the socket.
+	 * @exception SocketException
+	 *                if an option cannot be set.
+	 */
+	public void apply(Socket socket) throws SocketException {
+		if (sendBufferSize > 0)
+			socket.setSendBufferSize(sendBufferSize);
+		if (receiveBufferSize > 0)
+			socket.setReceiveBufferSize(receiveBufferSize);
+		socket.setTcpNoDelay(tcpNoDelay);
+		socket.setKeepAlive(keepAlive);
+		socket.setSoLinger(linger >= 0, Math.max(0, linger));
+	}
+
+	/**
+	 * Sets the options inherited by accepted sockets on a listening channel,
+	 * before it is bound.
+	 *
+	 * @param channel
+	 *            the listening channel.
+	 * @exception IOException
+	 *                if an option cannot be set.
+	 */
+	public void apply(ServerSocketChannel channel) throws IOException {
+		if (receiveBufferSize > 0)
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+	}
+
+	/**
+	 * Returns a description of the configuration.
+	 *
+	 * @return the description.
+	 */
+	public String toString() {
+		return "sndbuf=" + (sendBufferSize > 0 ? sendBufferSize : "default") + " rcvbuf="
+				+ (receiveBufferSize > 0 ? receiveBufferSize : "default") + " nodelay=" + tcpNoDelay + " keepalive="
+				+ keepAlive + " linger=" + linger + " streambuf=" + streamBufferSize;
+	}
+}
+// End of SocketConfig class
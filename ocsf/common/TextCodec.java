@@ -0,0 +1,44 @@
+package ocsf.common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The <code> TextCodec </code> encodes messages as UTF-8 text, which is all a
+ * chat needs. Only character sequences can be sent, and every message is
+ * received as a <code>String</code>.
+ */
+public class TextCodec implements MessageCodec {
+	/**
+	 * Writes the UTF-8 bytes of the message.
+	 *
+	 * @param msg
+	 *            the message to encode.
+	 * @param out
+	 *            the stream receiving the bytes.
+	 * @exception IOException
+	 *                if the message is not a character sequence.
+	 */
+	public void encode(Object msg, OutputStream out) throws IOException {
+		if (!(msg instanceof CharSequence))
+			throw new NotSerializableException(msg == null ? "null" : msg.getClass().getName());
+
+		out.write(msg.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Reads the message as UTF-8 text.
+	 *
+	 * @param data
+	 *            the buffer holding the bytes.
+	 * @param offset
+	 *            the index of the first byte.
+	 * @param length
+	 *            the number of bytes.
+	 * @return the message, a <code>String</code>.
+	 */
+	public Object decode(byte[] data, int offset, int length) {
+		return new String(data, offset, length, StandardCharsets.UTF_8);
+	}
+}
+// End of TextCodec class
@@ -5,9 +5,21 @@
 package ocsf.server;
 
 import java.net.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.io.*;
 
+import ocsf.common.Histogram;
+import ocsf.common.MessageCodec;
+import ocsf.common.MetricsRegistry;
+import ocsf.common.ObjectFrames;
+import ocsf.common.ResetPolicy;
+import ocsf.common.SocketConfig;
+
 /**
 * The <code> AbstractServer </code> class maintains a thread that waits
 * for connection attempts from clients. When a connection attempt occurs
@@ -23,6 +35,25 @@ import java.io.*;
 * Several public service methods are provided to applications that use
 * this framework, and several hook methods are also available<p>
 *
+* Two engines are available to serve connections. By default every
+* client gets a thread of its own. With <code> VIRTUAL_THREADS </code>
+* that thread is a virtual thread, so idle clients cost little more
+* than their socket. With <code> NIO_SELECTOR </code>
+* a small pool of event loop threads serves all the clients through
+* selectors. The hook methods are called in the same way by all
+* engines.<p>
+*
+* The selector engine always exchanges frames with clients, and the
+* other engines do so when <code> setFramed </code> is turned on;
+* clients must then use the framed protocol of
+* <code> AbstractClient </code>, with the same
+* <code> MessageCodec </code>. Framed messages sent to all clients
+* are encoded only once.<p>
+*
+* Clients may join named rooms; <code> sendToRoom </code> then reaches
+* the members of a room only, at a cost proportional to the size of
+* the room rather than to the number of connected clients.<p>
+*
 * Project Name: OCSF (Object Client-Server Framework)<p>
 *
 * @author Dr Robert Lagani&egrave;re
@@ -34,12 +65,171 @@ import java.io.*;
 */
 public abstract class AbstractServer implements Runnable
 {
+  // CLASS VARIABLES ************************************************
+
+  /**
+   * Engine serving each client with a thread of its own.
+   */
+  final public static int THREAD_PER_CONNECTION = 0;
+
+  /**
+   * Engine serving all clients with a pool of selector event loops.
+   */
+  final public static int NIO_SELECTOR = 1;
+
+  /**
+   * Engine serving each client with a virtual thread of its own.
+   */
+  final public static int VIRTUAL_THREADS = 2;
+
+  /**
+   * Overflow policy dropping the oldest queued message of a client
+   * whose outbound queue is full.
+   */
+  final public static int OVERFLOW_DROP_OLDEST = 0;
+
+  /**
+   * Overflow policy disconnecting a client whose outbound queue is
+   * full.
+   */
+  final public static int OVERFLOW_DISCONNECT = 1;
+
+  /**
+   * Overflow policy making the sender wait until a client whose
+   * outbound queue is full has room again.
+   */
+  final public static int OVERFLOW_BLOCK = 2;
+
+  /**
+   * Slow consumer policy disconnecting a client that falls behind.
+   */
+  final public static int SLOW_CONSUMER_DISCONNECT = 0;
+
+  /**
+   * Slow consumer policy skipping the messages sent to all clients,
+   * or to a room, for a client that falls behind, until it catches up.
+   * A client of a threaded engine without an outbound queue is
+   * disconnected instead, since its senders block on its socket.
+   */
+  final public static int SLOW_CONSUMER_SKIP = 1;
+
+  /**
+   * The time, in milliseconds, between two checks of every client for
+   * falling behind.
+   */
+  final static int SLOW_CONSUMER_CHECK_INTERVAL = 100;
+
+  /**
+   * The number of free direct buffers of each size kept for the frames
+   * of messages sent to many clients.
+   */
+  final static int FRAME_POOL_BUFFERS = 16;
+
+  /**
+   * The number of messages kept in memory for all clients and for each
+   * room.
+   */
+  final public static int HISTORY_CAPACITY = 256;
+
   // INSTANCE VARIABLES *********************************************
 
   /**
-   * The server socket: listens for clients who want to connect.
+   * The counters and histograms of the server. The counters below are
+   * its measures, kept in fields for the hot paths.
+   */
+  private MetricsRegistry metrics = new MetricsRegistry();
+
+  /**
+   * The number of connections accepted, before their streams are set
+   * up.
+   */
+  private LongAdder acceptedConnectionCount =
+    metrics.counter("connections.accepted");
+
+  /**
+   * The number of messages received from clients.
+   */
+  private LongAdder receivedMessageCount = metrics.counter("messages.in");
+
+  /**
+   * The number of messages written to clients.
+   */
+  private LongAdder sentMessageCount = metrics.counter("messages.out");
+
+  /**
+   * The number of bytes received from clients.
+   */
+  private LongAdder receivedByteCount = metrics.counter("bytes.in");
+
+  /**
+   * The number of bytes of the messages written to clients.
+   */
+  private LongAdder sentByteCount = metrics.counter("bytes.out");
+
+  /**
+   * The number of times a message sent to all clients or to a room
+   * could not be given to one of them.
+   */
+  private LongAdder broadcastFailureCount =
+    metrics.counter("broadcast.failures");
+
+  /**
+   * The time, in nanoseconds, <code>handleMessageFromClient</code>
+   * takes.
+   */
+  private Histogram handlerLatency = metrics.histogram("handler.latency.ns");
+
+  /**
+   * The time, in nanoseconds, a message sent to all clients or to a
+   * room takes to be given to every one of them.
+   */
+  private Histogram broadcastLatency =
+    metrics.histogram("broadcast.fanout.ns");
+
+  /**
+   * The journal messages sent to all clients or to a room are appended
+   * to, null if they are not kept.
+   */
+  private volatile MessageJournal journal;
+
+  /**
+   * The latest messages sent to all clients and to each room.
+   */
+  private MessageHistory history = new MessageHistory(HISTORY_CAPACITY);
+
+  /**
+   * Held while a message is numbered by the journal and added to the
+   * history, so that the rings of the history get their messages in
+   * the order of their sequence numbers. A lock rather than a monitor,
+   * as appending may wait for the disk.
+   */
+  private final ReentrantLock recordLock = new ReentrantLock();
+
+  /**
+   * The time, in nanoseconds, appending a message to the journal takes.
+   */
+  private Histogram journalLatency = metrics.histogram("journal.append.ns");
+
+  /**
+   * The number of messages that could not be appended to the journal.
+   */
+  private LongAdder journalFailureCount = metrics.counter("journal.failures");
+
+  /**
+   * The server socket channels: listen for clients who want to connect.
+   * There is one channel per acceptor when several acceptors are used
+   * and the platform supports <code>SO_REUSEPORT</code>, so that the
+   * system spreads new connections among them. Otherwise the acceptors
+   * all share a single channel.
    */
-  private ServerSocket serverSocket = null;
+  private volatile ServerSocketChannel[] serverChannels = null;
+
+  /**
+   * The registrations of the server socket channels with the selectors
+   * the acceptors wait on for new connections, one per acceptor.
+   * Stopping the server wakes the selectors up.
+   */
+  private SelectionKey[] acceptKeys;
 
   /**
    * The connection listener thread.
@@ -52,13 +242,10 @@ public abstract class AbstractServer implements Runnable
   private int port;
 
   /**
-   * The server timeout while for accepting connections.
-   * After timing out, the server will check to see if a command to
-   * stop the server has been issued; it not it will resume accepting
-   * connections.
-   * Set to half a second by default.
+   * The number of threads accepting connections.
+   * Set to 1 by default.
    */
-  private int timeout = 500;
+  private int acceptorCount = 1;
 
   /**
    * The maximum queue length; i.e. the maximum number of clients that
@@ -67,9 +254,82 @@ public abstract class AbstractServer implements Runnable
    */
   private int backlog = 10;
 
+  /**
+   * The time, in milliseconds, a new client has to send the header of
+   * its object stream before it is disconnected. 0 means forever.
+   * Set to 10 seconds by default.
+   */
+  private int handshakeTimeout = 10000;
+
+  /**
+   * The number of clients disconnected before their streams were set
+   * up, because they failed or took too long to send the header.
+   */
+  private LongAdder failedHandshakeCount = metrics.counter("handshakes.failed");
+
+  /**
+   * The number of messages per second each client may send, beyond
+   * its burst. 0 means no limit, the default.
+   */
+  private double messageRate = 0;
+
+  /**
+   * The number of messages a client may send at once.
+   */
+  private int messageBurst;
+
+  /**
+   * The number of commands per second each client may send, beyond
+   * its burst. 0 means no limit, the default.
+   */
+  private double commandRate = 0;
+
+  /**
+   * The number of commands a client may send at once.
+   */
+  private int commandBurst;
+
+  /**
+   * The number of connections per second accepted from one address,
+   * beyond its burst. 0 means no limit, the default.
+   */
+  private double connectionRate = 0;
+
+  /**
+   * The number of connections accepted at once from one address.
+   */
+  private int connectionBurst;
+
+  /**
+   * The connection rate limiter of each address that connected
+   * recently.
+   */
+  private ConcurrentHashMap<InetAddress, TokenBucket> connectionBuckets =
+    new ConcurrentHashMap<InetAddress, TokenBucket>();
+
+  /**
+   * The number of limiters above which the full ones, of addresses
+   * that have not connected for a while, are forgotten.
+   */
+  private volatile int connectionBucketSweepSize = 1024;
+
+  /**
+   * The number of messages dropped because their client exceeded its
+   * message rate.
+   */
+  private LongAdder rateLimitedMessageCount = metrics.counter("messages.rate.limited");
+
+  /**
+   * The number of connections refused because their address exceeded
+   * its connection rate.
+   */
+  private LongAdder rejectedConnectionCount = metrics.counter("connections.rejected");
+
   /**
    * The thread group associated with client threads. Each member of the
-   * thread group is a <code> ConnectionToClient </code>.
+   * thread group is a <code> ConnectionToClient </code>. The group only
+   * routes uncaught exceptions; the server keeps track of its clients
+   * in <code>connections</code>.
    */
   private ThreadGroup clientThreadGroup;
 
@@ -77,7 +337,175 @@ public abstract class AbstractServer implements Runnable
    * Indicates if the listening thread is ready to stop.  Set to
    * false by default.
    */
-  private boolean readyToStop = false;
+  private volatile boolean readyToStop = false;
+
+  /**
+   * The engine used to serve connections. Read from the
+   * <code>ocsf.server.engine</code> system property ("threads",
+   * "virtual" or "nio") when not given to the constructor.
+   */
+  private int engine;
+
+  /**
+   * The number of event loop threads of the selector engine.
+   * Set to the number of processors by default.
+   */
+  private int eventLoopCount =
+    Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Indicates if messages from all clients are handled one at a time,
+   * synchronized on the server. Set to false by default, so that only
+   * the messages of each client are handled in order.
+   */
+  private volatile boolean globalMessageOrdering = false;
+
+  /**
+   * Indicates if the threaded engines exchange frames rather than use
+   * object streams. Read from the <code>ocsf.server.framed</code>
+   * system property by default. The selector engine always uses frames.
+   *
+   * @see ocsf.common.ObjectFrames
+   */
+  private boolean framed = Boolean.getBoolean("ocsf.server.framed");
+
+  /**
+   * The codec encoding the messages in frames.
+   */
+  private MessageCodec codec = ObjectFrames.defaultCodec();
+
+  /**
+   * Decides when the object output streams of clients are reset, so
+   * that they do not keep every object ever sent.
+   */
+  private ResetPolicy resetPolicy = ResetPolicy.DEFAULT;
+
+  /**
+   * The number of times the object output stream of a client has
+   * been reset.
+   */
+  private LongAdder streamResetCount = metrics.counter("streams.reset");
+
+  /**
+   * The number of messages each client can have waiting in its
+   * outbound queue. When 0, messages sent to all clients are written
+   * directly by the sending thread. Set to 1024 by default.
+   */
+  private int outboundQueueCapacity = 1024;
+
+  /**
+   * What to do when the outbound queue of a client is full.
+   * Set to <code>OVERFLOW_DISCONNECT</code> by default, so that no
+   * sender ever waits for a client that stopped reading.
+   */
+  private int overflowPolicy = OVERFLOW_DISCONNECT;
+
+  /**
+   * The longest a write to a client may wait, in nanoseconds, before
+   * the client is taken to fall behind. 0 means no limit, the default.
+   */
+  private long maxWriteLatency = 0;
+
+  /**
+   * The most bytes that may wait in memory for the channel of a
+   * client before the client is taken to fall behind. 0 means no
+   * limit, the default.
+   */
+  private long maxPendingBytes = 0;
+
+  /**
+   * What to do with a client that falls behind.
+   * Set to <code>SLOW_CONSUMER_DISCONNECT</code> by default.
+   */
+  private int slowConsumerPolicy = SLOW_CONSUMER_DISCONNECT;
+
+  /**
+   * The number of times a client was found to fall behind.
+   */
+  private LongAdder evictedClientCount = metrics.counter("clients.evicted");
+
+  /**
+   * How long, in microseconds, the writer of a client waits for more
+   * messages once its outbound queue is empty, before writing the
+   * messages gathered to the socket. Set to 0 by default: the messages
+   * queued while writing are still gathered, but no more are waited for.
+   */
+  private long flushDelay = 0;
+
+  /**
+   * The options of the sockets of clients, and the size of the
+   * buffers of their streams.
+   */
+  private SocketConfig socketConfig = SocketConfig.DEFAULT;
+
+  /**
+   * The number of times the messages gathered for a client were
+   * written to its socket.
+   */
+  private LongAdder flushCount = metrics.counter("flushes");
+
+  /**
+   * The number of messages written by those flushes.
+   */
+  private LongAdder flushedMessageCount = metrics.counter("flushes.messages");
+
+  /**
+   * Checks every client for falling behind at regular intervals, while
+   * the server is open. Without it, a client whose writes block the
+   * only thread sending messages would never be found out.
+   */
+  private ScheduledExecutorService slowConsumerMonitor;
+
+  /**
+   * The direct buffers the frames of messages sent to many clients of
+   * the selector engine are encoded in.
+   */
+  private BufferPool framePool = new BufferPool(FRAME_POOL_BUFFERS);
+
+  /**
+   * Runs the tasks that write queued messages to clients. Each task may
+   * block on a slow client, so each runs on a virtual thread of its own.
+   */
+  private ExecutorService writerExecutor =
+    Executors.newVirtualThreadPerTaskExecutor();
+
+  /**
+   * Runs the hooks called when a client is evicted, each on a virtual
+   * thread of its own, so that a hook sending messages never holds up
+   * the slow consumer monitor or a message being sent to all clients.
+   */
+  private ExecutorService evictionExecutor =
+    Executors.newVirtualThreadPerTaskExecutor();
+
+  /**
+   * The number of messages added to outbound queues.
+   */
+  private LongAdder queuedMessageCount = metrics.counter("messages.queued");
+
+  /**
+   * The number of messages dropped from outbound queues.
+   */
+  private LongAdder droppedMessageCount = metrics.counter("messages.dropped");
+
+  /**
+   * The selector engine, while the server is open with that engine.
+   */
+  private NioEngine nioEngine;
+
+  /**
+   * The connections of all connected clients, whatever the engine.
+   * Connections are added and removed without locking, and iterating
+   * over the set sees each connection present for the whole iteration.
+   */
+  private Set<ConnectionToClient> connections =
+    ConcurrentHashMap.newKeySet();
+
+  /**
+   * The members of each room, by room name. A room exists while it has
+   * members.
+   */
+  private ConcurrentHashMap<String, Set<ConnectionToClient>> rooms =
+    new ConcurrentHashMap<String, Set<ConnectionToClient>>();
 
 
 // CONSTRUCTOR ******************************************************
@@ -88,8 +516,21 @@ public abstract class AbstractServer implements Runnable
    * @param port the port number on which to listen.
    */
   public AbstractServer(int port)
+  {
+    this(port, engineFromProperty());
+  }
+
+  /**
+   * Constructs a new server using the given engine.
+   *
+   * @param port the port number on which to listen.
+   * @param engine <code>THREAD_PER_CONNECTION</code>,
+   *  <code>VIRTUAL_THREADS</code> or <code>NIO_SELECTOR</code>.
+   */
+  public AbstractServer(int port, int engine)
   {
     this.port = port;
+    setEngine(engine);
 
     this.clientThreadGroup =
       new ThreadGroup("ConnectionToClient threads")
@@ -102,6 +543,8 @@ public abstract class AbstractServer implements Runnable
           clientException((ConnectionToClient)thread, exception);
         }
       };
+
+    metrics.gauge("connections.active", () -> connections.size());
   }
 
 
@@ -119,12 +562,46 @@ public abstract class AbstractServer implements Runnable
   {
     if (!isListening())
     {
-      if (serverSocket == null)
+      if (serverChannels == null)
+      {
+        serverChannels = openServerChannels();
+      }
+
+      if (engine == NIO_SELECTOR && nioEngine == null)
+      {
+        nioEngine = new NioEngine(this, eventLoopCount);
+      }
+
+      if (slowConsumerMonitor == null)
+      {
+        slowConsumerMonitor = Executors.newSingleThreadScheduledExecutor(
+          task -> {
+            Thread monitor = new Thread(task, "Slow consumer monitor");
+            monitor.setDaemon(true);
+            return monitor;
+          });
+        slowConsumerMonitor.scheduleWithFixedDelay(this::checkSlowConsumers,
+          SLOW_CONSUMER_CHECK_INTERVAL, SLOW_CONSUMER_CHECK_INTERVAL,
+          TimeUnit.MILLISECONDS);
+      }
+
+      // Each acceptor waits on its own selector, for its own channel
+      // or for the one shared by all
+      acceptKeys = new SelectionKey[acceptorCount];
+      for (int i = 0; i < acceptorCount; i++)
+      {
+        acceptKeys[i] = serverChannels[i % serverChannels.length]
+          .register(Selector.open(), SelectionKey.OP_ACCEPT);
+      }
+
+      // Visible through JMX while open; a name taken by another server
+      // in the same virtual machine only loses the JMX view
+      try
       {
-        serverSocket = new ServerSocket(getPort(), backlog);
+        metrics.registerMBean("ocsf.server:type=Server,port=" + port);
       }
+      catch (javax.management.JMException ex) {}
 
-      serverSocket.setSoTimeout(timeout);
       readyToStop = false;
       connectionListener = new Thread(this);
       connectionListener.start();
@@ -133,10 +610,12 @@ public abstract class AbstractServer implements Runnable
 
   /**
    * Causes the server to stop accepting new connections.
+   * The acceptors are woken up, so they stop at once.
    */
   final public void stopListening()
   {
     readyToStop = true;
+    wakeUpAcceptors();
   }
 
   /**
@@ -153,27 +632,44 @@ public abstract class AbstractServer implements Runnable
    */
   final synchronized public void close() throws IOException
   {
-    if (serverSocket == null)
+    ServerSocketChannel[] channels = serverChannels;
+
+    if (channels == null)
       return;
-      stopListening();
+
+    // Connections finishing their handshake from now on are refused
+    serverChannels = null;
+    stopListening();
     try
     {
-      serverSocket.close();
+      for (ServerSocketChannel channel : channels)
+      {
+        channel.close();
+      }
     }
     finally
     {
       // Close the client sockets of the already connected clients
-      Thread[] clientThreadList = getClientConnections();
-      for (int i=0; i<clientThreadList.length; i++)
+      for (ConnectionToClient client : connections)
       {
          try
          {
-           ((ConnectionToClient)clientThreadList[i]).close();
+           client.close();
          }
          // Ignore all exceptions when closing clients.
          catch(Exception ex) {}
       }
-      serverSocket = null;
+      if (nioEngine != null)
+      {
+        nioEngine.shutdown();
+        nioEngine = null;
+      }
+      if (slowConsumerMonitor != null)
+      {
+        slowConsumerMonitor.shutdown();
+        slowConsumerMonitor = null;
+      }
+      metrics.unregisterMBean();
       serverClosed();
     }
   }
@@ -185,57 +681,202 @@ public abstract class AbstractServer implements Runnable
    * can be overriden, but if so it should still perform the general
    * function of sending to all clients, perhaps after some kind
    * of filtering is done. Any exception thrown while
-   * sending the message to a particular client is ignored.
+   * sending the message to a particular client is ignored, and
+   * counted in the <code>broadcast.failures</code> measure.
+   * The message is added to the outbound queue of each client, so
+   * the call does not wait for the clients' sockets unless a queue is
+   * full and the overflow policy is <code>OVERFLOW_BLOCK</code>.
+   * Clients using frames are all written the same bytes, serialized
+   * once. With the selector engine, those bytes are copied once to a
+   * pooled direct buffer, and each channel writes a view of it.
+   * The message is first added to the history of the server, and
+   * appended to its journal if it has one.
    *
    * @param msg   Object The message to be sent
    */
   public void sendToAllClients(Object msg)
   {
-    Thread[] clientThreadList = getClientConnections();
+    record(null, msg);
+
+    SharedMessage shared = new SharedMessage(msg, framePool);
+    long start = System.nanoTime();
 
-    for (int i=0; i<clientThreadList.length; i++)
+    try
     {
-      try
+      for (ConnectionToClient client : connections)
       {
-        ((ConnectionToClient)clientThreadList[i]).sendToClient(msg);
+        try
+        {
+          client.queueShared(shared);
+        }
+        catch (Exception ex)
+        {
+          broadcastFailureCount.increment();
+        }
       }
-      catch (Exception ex) {}
+    }
+    finally
+    {
+      shared.release();
+      broadcastLatency.record(System.nanoTime() - start);
     }
   }
 
-
-// ACCESSING METHODS ------------------------------------------------
-
   /**
-   * Returns true if the server is ready to accept new clients.
+   * Sends a message to every member of a room. As with
+   * <code>sendToAllClients</code>, the message is queued for each
+   * member, encoded only once for framed members, and any exception
+   * thrown while sending to a particular member is ignored. Nothing is
+   * sent, nor kept in the history, if the room has no members.
    *
-   * @return true if the server is listening.
+   * @param room  the name of the room.
+   * @param msg   the message to be sent.
    */
-  final public boolean isListening()
+  public void sendToRoom(String room, Object msg)
   {
-    return (connectionListener != null);
-  }
+    Set<ConnectionToClient> members = rooms.get(room);
 
-  /**
-   * Returns an array containing the existing
-   * client connections. This can be used by
-   * concrete subclasses to implement messages that do something with
-   * each connection (e.g. kill it, send a message to it etc.).
-   * Remember that after this array is obtained, some clients
-   * in this migth disconnect. New clients can also connect,
-   * these later will not appear in the array.
-   *
-   * @return an array of <code>Thread</code> containing
+    if (members == null)
+      return;
+
+    record(room, msg);
+
+    SharedMessage shared = new SharedMessage(msg, framePool);
+    long start = System.nanoTime();
+
+    try
+    {
+      for (ConnectionToClient client : members)
+      {
+        try
+        {
+          client.queueShared(shared);
+        }
+        catch (Exception ex)
+        {
+          broadcastFailureCount.increment();
+        }
+      }
+    }
+    finally
+    {
+      shared.release();
+      broadcastLatency.record(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Adds a client to the members of a room, creating the room if it
+   * does not exist. A client may be a member of several rooms.
+   *
+   * @param room   the name of the room.
+   * @param client the client joining.
+   */
+  final public void joinRoom(String room, final ConnectionToClient client)
+  {
+    client.joinedRoom(room);
+    rooms.compute(room,
+      (name, members) ->
+      {
+        if (members == null)
+          members = ConcurrentHashMap.newKeySet();
+        members.add(client);
+        return members;
+      });
+  }
+
+  /**
+   * Removes a client from the members of a room. The room disappears
+   * with its last member.
+   *
+   * @param room   the name of the room.
+   * @param client the client leaving.
+   */
+  final public void leaveRoom(String room, final ConnectionToClient client)
+  {
+    client.leftRoom(room);
+    rooms.computeIfPresent(room,
+      (name, members) ->
+      {
+        members.remove(client);
+        if (!members.isEmpty())
+          return members;
+
+        history.forget(name);
+        return null;
+      });
+  }
+
+
+// ACCESSING METHODS ------------------------------------------------
+
+  /**
+   * Returns true if the server is ready to accept new clients.
+   *
+   * @return true if the server is listening.
+   */
+  final public boolean isListening()
+  {
+    return (connectionListener != null);
+  }
+
+  /**
+   * Returns an array containing the existing
+   * client connections. This can be used by
+   * concrete subclasses to implement messages that do something with
+   * each connection (e.g. kill it, send a message to it etc.).
+   * Remember that after this array is obtained, some clients
+   * in this migth disconnect. New clients can also connect,
+   * these later will not appear in the array.
+   *
+   * @return an array of <code>Thread</code> containing
    * <code>ConnectionToClient</code> instances.
+   * @see #getConnectedClients()
+   */
+  final public Thread[] getClientConnections()
+  {
+    return connections.toArray(new Thread[0]);
+  }
+
+  /**
+   * Returns the existing client connections without copying them.
+   * The collection cannot be modified and reflects clients connecting
+   * and disconnecting while it is iterated: each client connected for
+   * the whole iteration is seen exactly once, others may or may not
+   * be seen. Iterating never blocks other threads.
+   *
+   * @return the connected clients.
+   */
+  final public Collection<ConnectionToClient> getConnectedClients()
+  {
+    return Collections.unmodifiableSet(connections);
+  }
+
+  /**
+   * Returns the names of the rooms that have members.
+   *
+   * @return a read-only view of the room names.
    */
-  synchronized final public Thread[] getClientConnections()
+  final public Set<String> getRoomNames()
   {
-    Thread[] clientThreadList = new
-      Thread[clientThreadGroup.activeCount()];
+    return Collections.unmodifiableSet(rooms.keySet());
+  }
 
-    clientThreadGroup.enumerate(clientThreadList);
+  /**
+   * Returns the members of a room without copying them. Iteration
+   * behaves as for <code>getConnectedClients</code>.
+   *
+   * @param room the name of the room.
+   * @return the members, empty if the room does not exist.
+   */
+  final public Collection<ConnectionToClient> getRoomMembers(String room)
+  {
+    Set<ConnectionToClient> members = rooms.get(room);
+
+    if (members == null)
+      return Collections.emptySet();
 
-    return clientThreadList;
+    return Collections.unmodifiableSet(members);
   }
 
   /**
@@ -245,7 +886,284 @@ public abstract class AbstractServer implements Runnable
    */
   final public int getNumberOfClients()
   {
-    return clientThreadGroup.activeCount();
+    return connections.size();
+  }
+
+  /**
+   * Returns the measures of the server: connections, messages and
+   * bytes in and out, the latency of <code>handleMessageFromClient</code>
+   * and of broadcasts, and the counts of the other methods of this
+   * class. While the server is open, they are also visible through JMX
+   * as the <code>ocsf.server:type=Server,port=</code><i>port</i> MBean.
+   *
+   * @return the registry of the measures.
+   */
+  final public MetricsRegistry getMetrics()
+  {
+    return metrics;
+  }
+
+  /**
+   * Returns the journal messages sent to all clients or to a room are
+   * appended to.
+   *
+   * @return the journal, null if messages are not kept.
+   */
+  final public MessageJournal getJournal()
+  {
+    return journal;
+  }
+
+  /**
+   * Sets the journal messages sent to all clients or to a room are
+   * appended to, with the room they were sent to. Messages are appended
+   * as the text of their <code>toString</code>. The server does not
+   * close the journal; whoever opened it does. The change is effective
+   * immediately.
+   *
+   * @param journal the journal, null to stop keeping messages.
+   */
+  final public void setJournal(MessageJournal journal)
+  {
+    this.journal = journal;
+    history.setJournal(journal);
+  }
+
+  /**
+   * Returns the latest messages sent to all clients and to each room.
+   * Older messages are read from the journal, if the server has one.
+   *
+   * @return the history of the server.
+   */
+  final public MessageHistory getHistory()
+  {
+    return history;
+  }
+
+  /**
+   * Returns the engine used to serve connections.
+   *
+   * @return <code>THREAD_PER_CONNECTION</code>,
+   *  <code>VIRTUAL_THREADS</code> or <code>NIO_SELECTOR</code>.
+   */
+  final public int getEngine()
+  {
+    return engine;
+  }
+
+  /**
+   * Sets the engine used to serve connections.
+   * The server must be closed and restarted for the engine
+   * change to be in effect.
+   *
+   * @param engine <code>THREAD_PER_CONNECTION</code>,
+   *  <code>VIRTUAL_THREADS</code> or <code>NIO_SELECTOR</code>.
+   */
+  final public void setEngine(int engine)
+  {
+    if (engine != THREAD_PER_CONNECTION && engine != NIO_SELECTOR
+      && engine != VIRTUAL_THREADS)
+      throw new IllegalArgumentException("unknown engine " + engine);
+
+    this.engine = engine;
+  }
+
+  /**
+   * Returns true if messages from all clients are handled one at a
+   * time.
+   *
+   * @return true if global message ordering is on.
+   */
+  final public boolean isGlobalMessageOrdering()
+  {
+    return globalMessageOrdering;
+  }
+
+  /**
+   * Turns global message ordering on or off. When on,
+   * <code>handleMessageFromClient</code> is called while synchronized
+   * on the server, for handlers that depend on seeing the messages of
+   * all clients in a single order. The change is effective immediately.
+   *
+   * @param globalMessageOrdering true to handle one message at a time.
+   */
+  final public void setGlobalMessageOrdering(
+    boolean globalMessageOrdering)
+  {
+    this.globalMessageOrdering = globalMessageOrdering;
+  }
+
+  /**
+   * Returns true if the threaded engines exchange frames with clients.
+   * The selector engine always does.
+   *
+   * @return true if the framed protocol is used.
+   */
+  final public boolean isFramed()
+  {
+    return framed || engine == NIO_SELECTOR;
+  }
+
+  /**
+   * Selects the framed protocol for the threaded engines. Clients must
+   * then use the framed protocol as well. The change is effective for
+   * clients connecting afterwards.
+   *
+   * @param framed true to exchange frames, false to use object streams.
+   */
+  final public void setFramed(boolean framed)
+  {
+    this.framed = framed;
+  }
+
+  /**
+   * Returns the codec encoding the messages in frames.
+   *
+   * @return the codec.
+   */
+  final public MessageCodec getCodec()
+  {
+    return codec;
+  }
+
+  /**
+   * Sets the codec encoding the messages in frames, and selects the
+   * framed protocol. The change is effective for clients connecting
+   * afterwards.
+   *
+   * @param codec the codec, the same as the clients'.
+   */
+  final public void setCodec(MessageCodec codec)
+  {
+    this.codec = codec;
+    this.framed = true;
+  }
+
+  /**
+   * Returns the policy deciding when the object output streams of
+   * clients are reset.
+   *
+   * @return the reset policy.
+   */
+  final public ResetPolicy getResetPolicy()
+  {
+    return resetPolicy;
+  }
+
+  /**
+   * Sets the policy deciding when the object output streams of clients
+   * are reset. Frames hold no references and need no reset. The change
+   * is effective for clients connecting afterwards.
+   *
+   * @param resetPolicy the reset policy.
+   */
+  final public void setResetPolicy(ResetPolicy resetPolicy)
+  {
+    this.resetPolicy = resetPolicy;
+  }
+
+  /**
+   * Returns the number of times the object output stream of a client
+   * has been reset since the server was created.
+   *
+   * @return the number of resets.
+   */
+  final public long getStreamResetCount()
+  {
+    return streamResetCount.sum();
+  }
+
+  /**
+   * Returns the number of messages each client can have waiting
+   * in its outbound queue.
+   *
+   * @return the capacity of outbound queues.
+   */
+  final public int getOutboundQueueCapacity()
+  {
+    return outboundQueueCapacity;
+  }
+
+  /**
+   * Sets the number of messages each client can have waiting in its
+   * outbound queue. With a capacity of 0 there is no queue and messages
+   * are written by the sending thread. The change is effective for
+   * clients connecting afterwards.
+   *
+   * @param outboundQueueCapacity the capacity of outbound queues.
+   */
+  final public void setOutboundQueueCapacity(int outboundQueueCapacity)
+  {
+    this.outboundQueueCapacity = outboundQueueCapacity;
+  }
+
+  /**
+   * Returns what happens when the outbound queue of a client is full.
+   *
+   * @return <code>OVERFLOW_DROP_OLDEST</code>,
+   *  <code>OVERFLOW_DISCONNECT</code> or <code>OVERFLOW_BLOCK</code>.
+   */
+  final public int getOverflowPolicy()
+  {
+    return overflowPolicy;
+  }
+
+  /**
+   * Sets what happens when the outbound queue of a client is full.
+   * The change is effective for clients connecting afterwards.
+   * <code>OVERFLOW_BLOCK</code> loses no message, but makes every
+   * sender wait for the slowest client once its queue is full; it is
+   * only safe together with a slow consumer threshold, so that a client
+   * that stopped reading is evicted rather than waited for forever.
+   *
+   * @param overflowPolicy <code>OVERFLOW_DROP_OLDEST</code>,
+   *  <code>OVERFLOW_DISCONNECT</code> or <code>OVERFLOW_BLOCK</code>.
+   */
+  final public void setOverflowPolicy(int overflowPolicy)
+  {
+    if (overflowPolicy != OVERFLOW_DROP_OLDEST
+      && overflowPolicy != OVERFLOW_DISCONNECT
+      && overflowPolicy != OVERFLOW_BLOCK)
+      throw new IllegalArgumentException(
+        "unknown overflow policy " + overflowPolicy);
+
+    this.overflowPolicy = overflowPolicy;
+  }
+
+  /**
+   * Returns the number of messages added to the outbound queues of
+   * clients since the server was created.
+   *
+   * @return the number of queued messages.
+   */
+  final public long getQueuedMessageCount()
+  {
+    return queuedMessageCount.sum();
+  }
+
+  /**
+   * Returns the number of messages dropped from the outbound queues of
+   * clients since the server was created, either by the overflow
+   * policy or because the client disconnected first.
+   *
+   * @return the number of dropped messages.
+   */
+  final public long getDroppedMessageCount()
+  {
+    return droppedMessageCount.sum();
+  }
+
+  /**
+   * Sets the number of event loop threads of the selector engine.
+   * The default is the number of processors.
+   * The server must be closed and restarted for the change
+   * to be in effect.
+   *
+   * @param eventLoopCount the number of event loops.
+   */
+  final public void setEventLoopCount(int eventLoopCount)
+  {
+    this.eventLoopCount = eventLoopCount;
   }
 
   /**
@@ -272,16 +1190,348 @@ public abstract class AbstractServer implements Runnable
 
   /**
    * Sets the timeout time when accepting connections.
-   * The default is half a second. This means that stopping the
-   * server may take up to timeout duration to actually stop.
-   * The server must be stopped and restarted for the timeout
-   * change to be effective.
+   * The acceptors no longer poll: stopping the server wakes them up
+   * at once, so the timeout is ignored.
    *
    * @param timeout the timeout time in ms.
+   * @deprecated stopping the server no longer waits for a timeout.
    */
+  @Deprecated
   final public void setTimeout(int timeout)
   {
-    this.timeout = timeout;
+  }
+
+  /**
+   * Returns the time a new client has to send the header of its
+   * object stream.
+   *
+   * @return the handshake timeout in ms, 0 meaning forever.
+   */
+  final public int getHandshakeTimeout()
+  {
+    return handshakeTimeout;
+  }
+
+  /**
+   * Sets the time a new client has to send the header of its object
+   * stream before it is disconnected. The header is waited for by the
+   * thread of the client, never by the acceptors, so a client that
+   * connects and sends nothing only holds on to its own thread.
+   * The default is 10 seconds. Frames have no header, so the timeout
+   * does not apply to framed clients.
+   *
+   * @param handshakeTimeout the timeout in ms, 0 meaning forever.
+   */
+  final public void setHandshakeTimeout(int handshakeTimeout)
+  {
+    this.handshakeTimeout = handshakeTimeout;
+  }
+
+  /**
+   * Returns the number of clients disconnected before their streams
+   * were set up, since the server was created.
+   *
+   * @return the number of failed handshakes.
+   */
+  final public long getFailedHandshakeCount()
+  {
+    return failedHandshakeCount.sum();
+  }
+
+  /**
+   * Returns how long the writer of a client waits for more messages
+   * before writing the messages gathered to the socket.
+   *
+   * @return the flush delay in microseconds.
+   */
+  final public long getFlushDelay()
+  {
+    return flushDelay;
+  }
+
+  /**
+   * Sets how long the writer of a client waits for more messages once
+   * its outbound queue is empty, before writing the messages gathered
+   * to the socket. A short delay, around a millisecond, gathers more
+   * messages in each write during bursts, at the cost of that much
+   * latency. Messages are written anyway whenever the buffer of the
+   * client fills up. Only clients connecting afterwards, and only
+   * messages going through the outbound queue, are delayed.
+   *
+   * @param flushDelay the delay in microseconds, 0 for none.
+   */
+  final public void setFlushDelay(long flushDelay)
+  {
+    this.flushDelay = flushDelay;
+  }
+
+  /**
+   * Returns the options of the sockets of clients.
+   *
+   * @return the socket configuration.
+   */
+  final public SocketConfig getSocketConfig()
+  {
+    return socketConfig;
+  }
+
+  /**
+   * Sets the options of the sockets of clients connecting afterwards,
+   * and the size of the buffers of their streams. The default turns
+   * <code>TCP_NODELAY</code> on, as messages are already gathered
+   * before being written. The receive buffer size is set on the
+   * listening socket, so the server must be closed and restarted for it
+   * to be in effect.
+   *
+   * @param socketConfig the socket configuration.
+   */
+  final public void setSocketConfig(SocketConfig socketConfig)
+  {
+    this.socketConfig = socketConfig;
+  }
+
+  /**
+   * Returns the number of times messages were written to the socket
+   * of a client, since the server was created.
+   *
+   * @return the number of flushes.
+   */
+  final public long getFlushCount()
+  {
+    return flushCount.sum();
+  }
+
+  /**
+   * Returns the average number of messages written to the socket of a
+   * client at once, since the server was created.
+   *
+   * @return the average number of messages per flush, 0 if nothing was
+   *         written yet.
+   */
+  final public double getAverageMessagesPerFlush()
+  {
+    long flushes = flushCount.sum();
+
+    return flushes == 0 ? 0 : (double)flushedMessageCount.sum() / flushes;
+  }
+
+  /**
+   * Sets when a client is taken to fall behind: a write to it has been
+   * waiting too long, blocked on its socket or pending on its channel,
+   * or too many bytes wait in memory for its channel. The check is made
+   * each time a message is sent to all clients or to a room, and for
+   * every client every 100 ms while the server is open. Both limits
+   * are 0 by default, so no client is ever taken to fall behind.
+   *
+   * @param maxWriteLatency the longest a write may wait, in ms, 0 for
+   *                        no limit.
+   * @param maxPendingBytes the most bytes that may be pending, 0 for no
+   *                        limit. Only the selector engine keeps
+   *                        pending bytes, as its writes never block.
+   * @see #setSlowConsumerPolicy(int)
+   */
+  final public void setSlowConsumerThreshold(long maxWriteLatency,
+    long maxPendingBytes)
+  {
+    this.maxWriteLatency = maxWriteLatency * 1000000;
+    this.maxPendingBytes = maxPendingBytes;
+  }
+
+  /**
+   * Returns what is done with a client that falls behind.
+   *
+   * @return the slow consumer policy.
+   */
+  final public int getSlowConsumerPolicy()
+  {
+    return slowConsumerPolicy;
+  }
+
+  /**
+   * Sets what is done with a client that falls behind. Either way the
+   * <code>clientEvicted</code> hook is then called.
+   *
+   * @param slowConsumerPolicy <code>SLOW_CONSUMER_DISCONNECT</code> or
+   *                           <code>SLOW_CONSUMER_SKIP</code>.
+   */
+  final public void setSlowConsumerPolicy(int slowConsumerPolicy)
+  {
+    if (slowConsumerPolicy != SLOW_CONSUMER_DISCONNECT
+      && slowConsumerPolicy != SLOW_CONSUMER_SKIP)
+      throw new IllegalArgumentException(
+        "unknown slow consumer policy " + slowConsumerPolicy);
+
+    this.slowConsumerPolicy = slowConsumerPolicy;
+  }
+
+  /**
+   * Returns the number of times a client was found to fall behind,
+   * since the server was created.
+   *
+   * @return the number of evictions.
+   */
+  final public long getEvictedClientCount()
+  {
+    return evictedClientCount.sum();
+  }
+
+  /**
+   * Limits the number of messages each client may send. A client may
+   * send a burst of messages at once, then the given number per second;
+   * the messages beyond that are dropped and passed to the
+   * <code>messageRateLimited</code> hook instead of being handled.
+   * Only clients connecting afterwards are limited.
+   *
+   * @param rate  the number of messages per second, 0 for no limit.
+   * @param burst the number of messages that may be sent at once.
+   */
+  final public void setMessageRateLimit(double rate, int burst)
+  {
+    this.messageRate = rate;
+    this.messageBurst = burst;
+  }
+
+  /**
+   * Returns the number of messages per second each client may send.
+   *
+   * @return the rate, 0 if messages are not limited.
+   */
+  final public double getMessageRate()
+  {
+    return messageRate;
+  }
+
+  /**
+   * Returns the number of messages a client may send at once.
+   *
+   * @return the burst.
+   */
+  final public int getMessageBurst()
+  {
+    return messageBurst;
+  }
+
+  /**
+   * Limits the number of commands each client may send, apart from its
+   * other messages, as <code>setMessageRateLimit</code> does for those.
+   * Commands are the messages the <code>isCommand</code> hook picks
+   * out; they neither use up nor are held back by the message rate.
+   * Only clients connecting afterwards are limited.
+   *
+   * @param rate  the number of commands per second, 0 for no limit.
+   * @param burst the number of commands that may be sent at once.
+   */
+  final public void setCommandRateLimit(double rate, int burst)
+  {
+    this.commandRate = rate;
+    this.commandBurst = burst;
+  }
+
+  /**
+   * Returns the number of commands per second each client may send.
+   *
+   * @return the rate, 0 if commands are not limited.
+   */
+  final public double getCommandRate()
+  {
+    return commandRate;
+  }
+
+  /**
+   * Returns the number of commands a client may send at once.
+   *
+   * @return the burst.
+   */
+  final public int getCommandBurst()
+  {
+    return commandBurst;
+  }
+
+  /**
+   * Limits the number of connections accepted from one address. An
+   * address may connect a burst of times at once, then the given number
+   * of times per second; the connections beyond that are closed as soon
+   * as accepted.
+   *
+   * @param rate  the number of connections per second, 0 for no limit.
+   * @param burst the number of connections that may be made at once.
+   */
+  final public void setConnectionRateLimit(double rate, int burst)
+  {
+    this.connectionBurst = burst;
+    this.connectionRate = rate;
+    connectionBuckets.clear();
+  }
+
+  /**
+   * Returns the number of connections per second accepted from one
+   * address.
+   *
+   * @return the rate, 0 if connections are not limited.
+   */
+  final public double getConnectionRate()
+  {
+    return connectionRate;
+  }
+
+  /**
+   * Returns the number of connections accepted at once from one
+   * address.
+   *
+   * @return the burst.
+   */
+  final public int getConnectionBurst()
+  {
+    return connectionBurst;
+  }
+
+  /**
+   * Returns the number of messages dropped because their client
+   * exceeded its message rate, since the server was created.
+   *
+   * @return the number of dropped messages.
+   */
+  final public long getRateLimitedMessageCount()
+  {
+    return rateLimitedMessageCount.sum();
+  }
+
+  /**
+   * Returns the number of connections refused because their address
+   * exceeded its connection rate, since the server was created.
+   *
+   * @return the number of refused connections.
+   */
+  final public long getRejectedConnectionCount()
+  {
+    return rejectedConnectionCount.sum();
+  }
+
+  /**
+   * Returns the number of threads accepting connections.
+   *
+   * @return the number of acceptors.
+   */
+  final public int getAcceptorCount()
+  {
+    return acceptorCount;
+  }
+
+  /**
+   * Sets the number of threads accepting connections. The default is
+   * 1. Where <code>SO_REUSEPORT</code> is supported each acceptor gets
+   * a server socket of its own on the same port, so accepting scales
+   * with the number of acceptors. The server must be closed and
+   * restarted for the change to be in effect.
+   *
+   * @param acceptorCount the number of acceptors.
+   */
+  final public void setAcceptorCount(int acceptorCount)
+  {
+    if (acceptorCount < 1)
+      throw new IllegalArgumentException("acceptorCount must be positive");
+
+    this.acceptorCount = acceptorCount;
   }
 
   /**
@@ -297,64 +1547,278 @@ public abstract class AbstractServer implements Runnable
     this.backlog = backlog;
   }
 
-// RUN METHOD -------------------------------------------------------
+  /**
+   * Reads the engine to use from the <code>ocsf.server.engine</code>
+   * system property.
+   *
+   * @return the engine named by the property, or
+   *  <code>THREAD_PER_CONNECTION</code> if it is not set.
+   */
+  private static int engineFromProperty()
+  {
+    String name = System.getProperty("ocsf.server.engine", "threads");
+
+    if (name.equalsIgnoreCase("nio"))
+      return NIO_SELECTOR;
+    if (name.equalsIgnoreCase("virtual"))
+      return VIRTUAL_THREADS;
+    return THREAD_PER_CONNECTION;
+  }
+
+// RUN METHOD -------------------------------------------------------
+
+  /**
+   * Runs the listening thread that allows clients to connect.
+   * The thread is the first acceptor; the others are started and
+   * waited for here.
+   * Not to be called.
+   */
+  final public void run()
+  {
+    // call the hook method to notify that the server is starting
+    serverStarted();
+
+    SelectionKey[] keys = acceptKeys;
+    Thread[] acceptors = new Thread[keys.length];
+    AtomicReference<IOException> failure =
+      new AtomicReference<IOException>();
+
+    try
+    {
+      for (int i = 1; i < keys.length; i++)
+      {
+        final SelectionKey key = keys[i];
+        acceptors[i] = new Thread(
+          () -> acceptConnections(key, failure), "Acceptor " + i);
+        acceptors[i].start();
+      }
+
+      acceptConnections(keys[0], failure);
+    }
+    finally
+    {
+      // Whichever acceptor stops first stops the others
+      readyToStop = true;
+      wakeUpAcceptors();
+
+      for (int i = 1; i < acceptors.length; i++)
+      {
+        while (acceptors[i] != null && acceptors[i].isAlive())
+        {
+          try
+          {
+            acceptors[i].join();
+          }
+          catch (InterruptedException ex) {}
+        }
+      }
+
+      for (SelectionKey key : keys)
+      {
+        try
+        {
+          key.selector().close();
+        }
+        catch (IOException ex) {}
+      }
+
+      connectionListener = null;
+    }
+
+    if (failure.get() != null)
+    {
+      // Closing the socket must have thrown an exception
+      listeningException(failure.get());
+    }
+    else
+    {
+      // call the hook method to notify that the server has stopped
+      serverStopped();
+    }
+  }
 
   /**
-   * Runs the listening thread that allows clients to connect.
-   * Not to be called.
+   * Runs one acceptor: repeatedly waits for new client connections,
+   * accepts them, and hands each to the engine, until the server stops
+   * listening.
+   *
+   * @param key     the registration of the channel of the acceptor
+   *                with its selector.
+   * @param failure where to record an exception that stopped the
+   *                acceptor while the server was listening.
    */
-  final public void run()
+  private void acceptConnections(SelectionKey key,
+    AtomicReference<IOException> failure)
   {
-    // call the hook method to notify that the server is starting
-    serverStarted();
+    Selector selector = key.selector();
+    ServerSocketChannel channel = (ServerSocketChannel)key.channel();
 
     try
     {
-      // Repeatedly waits for a new client connection, accepts it, and
-      // starts a new thread to handle data exchange.
-      while(!readyToStop)
+      while (!readyToStop)
       {
-        try
+        // Wait here for new connection attempts, or to be woken up
+        selector.select();
+        selector.selectedKeys().clear();
+
+        // Other acceptors sharing the channel may have taken them
+        SocketChannel clientChannel;
+        while (!readyToStop && (clientChannel = channel.accept()) != null)
         {
-          // Wait here for new connection attempts, or a timeout
-          Socket clientSocket = serverSocket.accept();
+          // Refuse clients connecting faster than their address may
+          if (!admitConnection(clientChannel))
+          {
+            clientChannel.close();
+            continue;
+          }
+          acceptedConnectionCount.increment();
 
           // When a client is accepted, create a thread to handle
-          // the data exchange, then add it to thread group
+          // the data exchange, or give it to an event loop. Neither
+          // waits for the client: the thread sets up its own streams
 
           synchronized(this)
           {
-            ConnectionToClient c = new ConnectionToClient(
-              this.clientThreadGroup, clientSocket, this);
+            try
+            {
+              if (nioEngine != null)
+              {
+                nioEngine.register(clientChannel);
+              }
+              else
+              {
+                clientChannel.configureBlocking(true);
+                ConnectionToClient c = new ConnectionToClient(
+                  this.clientThreadGroup, clientChannel.socket(), this,
+                  engine == VIRTUAL_THREADS);
+              }
+            }
+            catch (IOException exception)
+            {
+              // Only this client is lost, the others are still accepted
+              clientChannel.close();
+              countFailedHandshake();
+            }
           }
         }
-        catch (InterruptedIOException exception)
-        {
-          // This will be thrown when a timeout occurs.
-          // The server will continue to listen if not ready to stop.
-        }
       }
-
-      // call the hook method to notify that the server has stopped
-      serverStopped();
     }
     catch (IOException exception)
     {
       if (!readyToStop)
       {
-        // Closing the socket must have thrown a SocketException
-        listeningException(exception);
-      }
-      else
-      {
-        serverStopped();
+        failure.compareAndSet(null, exception);
       }
     }
     finally
     {
       readyToStop = true;
-      connectionListener = null;
+      wakeUpAcceptors();
+    }
+  }
+
+  /**
+   * Takes a token from the connection rate limiter of the address of a
+   * new client. Limiters that are full are forgotten from time to time,
+   * so that the map does not keep every address ever seen.
+   *
+   * @param clientChannel the channel of the new client.
+   * @return true if the client is accepted.
+   */
+  private boolean admitConnection(SocketChannel clientChannel)
+  {
+    if (connectionRate <= 0)
+      return true;
+
+    InetAddress address;
+    try
+    {
+      address =
+        ((InetSocketAddress)clientChannel.getRemoteAddress()).getAddress();
+    }
+    catch (IOException ex)
+    {
+      // Gone already
+      return false;
+    }
+
+    if (connectionBuckets.size() > connectionBucketSweepSize)
+    {
+      connectionBuckets.values().removeIf(TokenBucket::isFull);
+      connectionBucketSweepSize =
+        Math.max(1024, 2 * connectionBuckets.size());
+    }
+
+    TokenBucket bucket = connectionBuckets.computeIfAbsent(address,
+      key -> new TokenBucket(connectionRate, connectionBurst));
+
+    if (bucket.tryAcquire())
+      return true;
+
+    rejectedConnectionCount.increment();
+    return false;
+  }
+
+  /**
+   * Wakes up the acceptors waiting for new connections.
+   */
+  private void wakeUpAcceptors()
+  {
+    SelectionKey[] keys = acceptKeys;
+
+    if (keys != null)
+    {
+      for (SelectionKey key : keys)
+      {
+        key.selector().wakeup();
+      }
+    }
+  }
+
+  /**
+   * Opens and binds the server socket channels, one per acceptor if the
+   * platform supports <code>SO_REUSEPORT</code>, a single one otherwise.
+   *
+   * @return the channels, in non-blocking mode.
+   * @exception IOException if a channel cannot be opened or bound.
+   */
+  private ServerSocketChannel[] openServerChannels() throws IOException
+  {
+    ServerSocketChannel first = ServerSocketChannel.open();
+    boolean reusePort = acceptorCount > 1 && first.supportedOptions()
+      .contains(StandardSocketOptions.SO_REUSEPORT);
+    ServerSocketChannel[] channels =
+      new ServerSocketChannel[reusePort ? acceptorCount : 1];
+
+    channels[0] = first;
+    try
+    {
+      for (int i = 0; i < channels.length; i++)
+      {
+        if (channels[i] == null)
+          channels[i] = ServerSocketChannel.open();
+        if (reusePort)
+          channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        socketConfig.apply(channels[i]);
+
+        // The others share the port of the first, even if it was
+        // chosen by the system
+        int localPort = i == 0 ? getPort()
+          : ((InetSocketAddress)first.getLocalAddress()).getPort();
+        channels[i].bind(new InetSocketAddress(localPort), backlog);
+        channels[i].configureBlocking(false);
+      }
+    }
+    catch (IOException ex)
+    {
+      for (ServerSocketChannel channel : channels)
+      {
+        if (channel != null)
+          channel.close();
+      }
+      throw ex;
     }
+    return channels;
   }
 
 
@@ -399,6 +1863,52 @@ public abstract class AbstractServer implements Runnable
    */
   protected void listeningException(Throwable exception) {}
 
+  /**
+   * Hook method called each time a message is dropped because its
+   * client exceeded its message rate, or its command rate for a
+   * command. The default implementation does
+   * nothing. The method may be overridden by subclasses, to warn the
+   * client for example. It is called by the thread reading the client.
+   *
+   * @param msg    the message dropped.
+   * @param client the connection of the client.
+   * @see #setMessageRateLimit(double, int)
+   */
+  protected void messageRateLimited(Object msg, ConnectionToClient client) {}
+
+  /**
+   * Hook method telling whether a message received is a command, and
+   * so counts against the command rate of its client rather than its
+   * message rate. The default implementation returns false, so every
+   * message counts against the message rate. It is called by the
+   * thread reading the client.
+   *
+   * @param msg the message received.
+   * @return true if the message is a command.
+   * @see #setCommandRateLimit(double, int)
+   */
+  protected boolean isCommand(Object msg)
+  {
+    return false;
+  }
+
+  /**
+   * Hook method called when a client is found to fall behind, once
+   * it is disconnected or starts missing messages, depending on the
+   * slow consumer policy. With <code>SLOW_CONSUMER_SKIP</code> it is
+   * called again should the client catch up then fall behind again.
+   * The default implementation does nothing. The method may be
+   * overridden by subclasses. It is called on a virtual thread of its
+   * own, never by the thread sending a message to all clients or to a
+   * room nor by the slow consumer monitor, so it may itself send
+   * messages to the other clients; it must not otherwise block, such
+   * as by waiting on the evicted client.
+   *
+   * @param client the connection of the client.
+   * @see #setSlowConsumerThreshold(long, long)
+   */
+  protected void clientEvicted(ConnectionToClient client) {}
+
   /**
    * Hook method called when the server starts listening for
    * connections.  The default implementation does nothing.
@@ -425,8 +1935,10 @@ public abstract class AbstractServer implements Runnable
    * Handles a command sent from one client to the server.
    * This MUST be implemented by subclasses, who should respond to
    * messages.
-   * This method is called by a synchronized method so it is also
-   * implcitly synchronized.
+   * Messages from one client are handled one at a time and in the
+   * order they were sent, but messages from different clients may be
+   * handled at the same time by different threads, unless global
+   * message ordering is turned on.
    *
    * @param msg   the message sent.
    * @param client the connection connected to the client that
@@ -442,18 +1954,343 @@ public abstract class AbstractServer implements Runnable
    * Receives a command sent from the client to the server.
    * Called by the run method of <code>ConnectionToClient</code>
    * instances that are watching for messages coming from the server
-   * This method is synchronized to ensure that whatever effects it has
-   * do not conflict with work being done by other threads. The method
-   * simply calls the <code>handleMessageFromClient</code> slot method.
+   * Each connection calls this method from a single thread, which keeps
+   * the messages of a client in order. Only when global message ordering
+   * is on is the call synchronized on the server, so that the effects of
+   * a message do not conflict with work being done by other threads. The
+   * method simply calls the <code>handleMessageFromClient</code> slot
+   * method, unless the client exceeded its message rate.
    *
    * @param msg   the message sent.
    * @param client the connection connected to the client that
    *  sent the message.
    */
-  final synchronized void receiveMessageFromClient(
+  final void receiveMessageFromClient(
     Object msg, ConnectionToClient client)
   {
-    this.handleMessageFromClient(msg, client);
+    receivedMessageCount.increment();
+
+    if (!client.admitMessage(isCommand(msg)))
+    {
+      rateLimitedMessageCount.increment();
+      messageRateLimited(msg, client);
+      return;
+    }
+
+    if (globalMessageOrdering)
+    {
+      synchronized(this)
+      {
+        handleAndTime(msg, client);
+      }
+    }
+    else
+    {
+      handleAndTime(msg, client);
+    }
+  }
+
+  /**
+   * Calls <code>handleMessageFromClient</code>, recording the time it
+   * takes.
+   *
+   * @param msg the message received.
+   * @param client the connection the message came from.
+   */
+  private void handleAndTime(Object msg, ConnectionToClient client)
+  {
+    long start = System.nanoTime();
+
+    try
+    {
+      this.handleMessageFromClient(msg, client);
+    }
+    finally
+    {
+      handlerLatency.record(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Adds a message about to be sent to the history, after appending it
+   * to the journal if there is one, recording the time that takes. A
+   * message that cannot be appended is still sent, but left out of the
+   * history, and counted in the <code>journal.failures</code> measure.
+   * Both are done in one step, so that a message numbered later never
+   * takes its slot in the history before one numbered earlier.
+   *
+   * @param room the room the message is sent to, null for all clients.
+   * @param msg the message.
+   */
+  private void record(String room, Object msg)
+  {
+    MessageJournal journal = this.journal;
+    long sequence = 0;
+
+    if (msg == null)
+      return;
+
+    recordLock.lock();
+    try
+    {
+      if (journal != null)
+      {
+        long start = System.nanoTime();
+
+        try
+        {
+          sequence = journal.append(room, msg.toString());
+          journalLatency.record(System.nanoTime() - start);
+        }
+        catch (IOException | IllegalArgumentException ex)
+        {
+          journalFailureCount.increment();
+          return;
+        }
+      }
+      history.add(room, msg.toString(), sequence);
+    }
+    finally
+    {
+      recordLock.unlock();
+    }
+  }
+
+  /**
+   * Adds a connection to the connections of the server, unless the
+   * server has been closed, in which case the caller must close the
+   * connection.
+   *
+   * @param client the connection to add.
+   * @return true if the connection was added.
+   */
+  final boolean registerConnection(ConnectionToClient client)
+  {
+    connections.add(client);
+
+    // Either close() sees the connection, or it is seen to be closed
+    if (serverChannels == null)
+    {
+      connections.remove(client);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Starts a virtual thread running the reader loop of a connection.
+   * Uncaught exceptions are sent to the clientException callback
+   * method, as the client thread group does for platform threads.
+   *
+   * @param client the connection to run.
+   */
+  final void startVirtualReader(final ConnectionToClient client)
+  {
+    Thread.ofVirtual()
+      .name("ConnectionToClient " + client.getName())
+      .uncaughtExceptionHandler(new Thread.UncaughtExceptionHandler()
+      {
+        public void uncaughtException(Thread thread, Throwable exception)
+        {
+          clientException(client, exception);
+        }
+      })
+      .start(client);
+  }
+
+  /**
+   * Creates the outbound queue of a new connection according to the
+   * current settings.
+   *
+   * @param client the new connection.
+   * @return the queue, or null if messages are not queued.
+   */
+  final OutboundQueue createOutboundQueue(ConnectionToClient client)
+  {
+    if (outboundQueueCapacity <= 0)
+      return null;
+
+    return new OutboundQueue(client, this, outboundQueueCapacity,
+      overflowPolicy, flushDelay * 1000);
+  }
+
+  /**
+   * Schedules a task writing the messages of an outbound queue.
+   *
+   * @param writer the task.
+   */
+  final void executeWriter(Runnable writer)
+  {
+    writerExecutor.execute(writer);
+  }
+
+  /**
+   * Counts a reset of the object output stream of a client.
+   */
+  final void countStreamReset()
+  {
+    streamResetCount.increment();
+  }
+
+  /**
+   * Creates the message rate limiter of a new connection according to
+   * the current settings.
+   *
+   * @return the limiter, or null if messages are not limited.
+   */
+  final TokenBucket createMessageLimiter()
+  {
+    return messageRate > 0 ? new TokenBucket(messageRate, messageBurst) : null;
+  }
+
+  /**
+   * Creates the command rate limiter of a new connection according to
+   * the current settings.
+   *
+   * @return the limiter, or null if commands are not limited.
+   */
+  final TokenBucket createCommandLimiter()
+  {
+    return commandRate > 0 ? new TokenBucket(commandRate, commandBurst) : null;
+  }
+
+  /**
+   * Checks, before a message sent to all clients or to a room is given
+   * to a client, whether the client falls behind and evicts it if it
+   * just started to.
+   *
+   * @param client the connection of the client.
+   * @return true if the message must not be given to the client.
+   */
+  final boolean skipSlowConsumer(ConnectionToClient client)
+  {
+    if (!checkSlowConsumer(client))
+      return false;
+
+    countDroppedMessages(1);
+    return true;
+  }
+
+  /**
+   * Checks whether a client falls behind, and evicts it if it just
+   * started to.
+   *
+   * @param client the connection of the client.
+   * @return true if the client falls behind.
+   */
+  private boolean checkSlowConsumer(ConnectionToClient client)
+  {
+    if (maxWriteLatency <= 0 && maxPendingBytes <= 0)
+      return false;
+
+    if (!client.isFallingBehind(maxWriteLatency, maxPendingBytes))
+    {
+      client.setEvicted(false);
+      return false;
+    }
+
+    if (client.setEvicted(true))
+    {
+      evictedClientCount.increment();
+
+      // Skipping cannot release a sender blocked on the socket
+      if (slowConsumerPolicy == SLOW_CONSUMER_DISCONNECT
+        || !client.isWrittenAsynchronously())
+      {
+        try
+        {
+          client.close();
+        }
+        catch (IOException ex) {}
+      }
+      evictionExecutor.execute(() -> clientEvicted(client));
+    }
+    return true;
+  }
+
+  /**
+   * Checks every client for falling behind. Run by the slow consumer
+   * monitor.
+   */
+  private void checkSlowConsumers()
+  {
+    for (ConnectionToClient client : connections)
+    {
+      checkSlowConsumer(client);
+    }
+  }
+
+  /**
+   * Counts messages written to the socket of a client at once.
+   *
+   * @param messages the number of messages written.
+   */
+  final void countFlush(int messages)
+  {
+    flushCount.increment();
+    flushedMessageCount.add(messages);
+  }
+
+  /**
+   * Counts a message written to a client.
+   *
+   * @param bytes the size of the message written.
+   */
+  final void countSentMessage(long bytes)
+  {
+    sentMessageCount.increment();
+    sentByteCount.add(bytes);
+  }
+
+  /**
+   * Counts bytes received from a client.
+   *
+   * @param bytes the number of bytes.
+   */
+  final void countReceivedBytes(long bytes)
+  {
+    receivedByteCount.add(bytes);
+  }
+
+  /**
+   * Counts a client disconnected before its streams were set up.
+   */
+  final void countFailedHandshake()
+  {
+    failedHandshakeCount.increment();
+  }
+
+  /**
+   * Counts a message added to an outbound queue.
+   */
+  final void countQueuedMessage()
+  {
+    queuedMessageCount.increment();
+  }
+
+  /**
+   * Counts messages dropped from an outbound queue.
+   *
+   * @param count the number of messages dropped.
+   */
+  final void countDroppedMessages(int count)
+  {
+    droppedMessageCount.add(count);
+  }
+
+  /**
+   * Removes a connection added by <code>registerConnection</code>.
+   *
+   * @param client the connection to remove.
+   */
+  final void unregisterConnection(ConnectionToClient client)
+  {
+    connections.remove(client);
+
+    for (String room : client.getRooms())
+    {
+      leaveRoom(room, client);
+    }
   }
 }
 // End of AbstractServer Class
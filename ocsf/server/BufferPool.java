@@ -0,0 +1,118 @@
+package ocsf.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A <code> BufferPool </code> keeps the direct buffers frames are encoded in,
+ * so that they are allocated once and used again by later messages.
+ * Allocating a direct buffer is costly and its memory is only given back to
+ * the system once the garbage collector finds it unreachable.
+ * <p>
+ * Buffers are pooled by size, in powers of two from
+ * <code>MIN_BUFFER_SIZE</code> to <code>MAX_BUFFER_SIZE</code>; larger
+ * buffers are allocated every time and left to the garbage collector. A
+ * limited number of buffers of each size is kept, the others are dropped
+ * when released.
+ *
+ * @see ocsf.server.SharedMessage
+ */
+final class BufferPool {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The size of the smallest buffers, as a power of two.
+	 */
+	final static int	MIN_SIZE_SHIFT	= 8;
+
+	/**
+	 * The size of the smallest buffers.
+	 */
+	final static int	MIN_BUFFER_SIZE	= 1 << MIN_SIZE_SHIFT;
+
+	/**
+	 * The size of the largest buffers kept.
+	 */
+	final static int	MAX_BUFFER_SIZE	= 1 << 20;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The free buffers of each size, smallest size first.
+	 */
+	private final ArrayList<ArrayBlockingQueue<ByteBuffer>>	free;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs an empty pool.
+	 *
+	 * @param buffersPerSize
+	 *            the number of free buffers of each size kept.
+	 */
+	BufferPool(int buffersPerSize) {
+		free = new ArrayList<ArrayBlockingQueue<ByteBuffer>>();
+		for (int size = MIN_BUFFER_SIZE; size <= MAX_BUFFER_SIZE; size <<= 1)
+			free.add(new ArrayBlockingQueue<ByteBuffer>(Math.max(1, buffersPerSize)));
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Takes a free buffer large enough, or allocates one.
+	 *
+	 * @param size
+	 *            the number of bytes needed.
+	 * @return a direct buffer whose limit is the size needed.
+	 */
+	ByteBuffer acquire(int size) {
+		if (size > MAX_BUFFER_SIZE)
+			return ByteBuffer.allocateDirect(size);
+
+		int index = indexOf(size);
+		ByteBuffer buffer = free.get(index).poll();
+		if (buffer == null)
+			buffer = ByteBuffer.allocateDirect(MIN_BUFFER_SIZE << index);
+
+		buffer.clear().limit(size);
+		return buffer;
+	}
+
+	/**
+	 * Gives a buffer back to the pool. The buffer, and any view of it, must
+	 * no longer be used.
+	 *
+	 * @param buffer
+	 *            a buffer taken from this pool.
+	 */
+	void release(ByteBuffer buffer) {
+		int capacity = buffer.capacity();
+
+		// Buffers too large to be kept are left to the garbage collector
+		if (capacity > MAX_BUFFER_SIZE)
+			return;
+
+		free.get(indexOf(capacity)).offer(buffer);
+	}
+
+	/**
+	 * Returns the number of free buffers in the pool.
+	 *
+	 * @return the number of free buffers.
+	 */
+	int available() {
+		int count = 0;
+		for (ArrayBlockingQueue<ByteBuffer> buffers : free)
+			count += buffers.size();
+		return count;
+	}
+
+	/**
+	 * Returns the index of the smallest buffer size holding a number of bytes.
+	 */
+	private static int indexOf(int size) {
+		return Math.max(0, 32 - Integer.numberOfLeadingZeros(Math.max(1, size) - 1) - MIN_SIZE_SHIFT);
+	}
+}
+// End of BufferPool class
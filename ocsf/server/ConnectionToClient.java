@@ -6,7 +6,19 @@ package ocsf.server;
 
 import java.io.*;
 import java.net.*;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ocsf.common.CountingInputStream;
+import ocsf.common.CountingOutputStream;
+import ocsf.common.MessageCodec;
+import ocsf.common.ObjectFrames;
+import ocsf.common.ResetPolicy;
+import ocsf.common.SocketConfig;
 
 /**
  * An instance of this class is created by the server when a client connects. It
@@ -45,11 +57,118 @@ public class ConnectionToClient extends Thread {
 	 */
 	private ObjectInputStream	input;
 
+	/**
+	 * Counts the bytes read from the socket, whatever the protocol.
+	 */
+	private CountingInputStream	inputCounter;
+
 	/**
 	 * Stream used to write to the client.
 	 */
 	private ObjectOutputStream	output;
 
+	/**
+	 * Counts the bytes written by <code>output</code>.
+	 */
+	private CountingOutputStream	outputCounter;
+
+	/**
+	 * Decides when <code>output</code> is reset.
+	 */
+	private ResetPolicy			resetPolicy;
+
+	/**
+	 * The number of messages written since <code>output</code> was reset.
+	 */
+	private long				messagesSinceReset	= 0;
+
+	/**
+	 * The byte count of <code>outputCounter</code> when <code>output</code>
+	 * was last reset.
+	 */
+	private long				bytesAtReset;
+
+	/**
+	 * The number of times <code>output</code> has been reset.
+	 */
+	private volatile long		resetCount			= 0;
+
+	/**
+	 * Stream used to read frames from the client when the server uses the
+	 * framed protocol, in which case <code>input</code> is null.
+	 */
+	private DataInputStream		frameInput;
+
+	/**
+	 * Stream used to write frames to the client when the server uses the
+	 * framed protocol, in which case <code>output</code> is null.
+	 */
+	private OutputStream		frameOutput;
+
+	/**
+	 * The codec encoding the messages in frames.
+	 */
+	private MessageCodec		codec;
+
+	/**
+	 * Lock held while writing to the output stream. Messages handled by
+	 * different clients may be sent to this client at the same time, and the
+	 * object stream must only be written by one thread at a time. A lock
+	 * rather than a monitor, so that a virtual thread blocked writing to a
+	 * slow client leaves its carrier thread to the other virtual threads.
+	 */
+	private final ReentrantLock	sendLock	= new ReentrantLock();
+
+	/**
+	 * The messages waiting to be written by a writer task, or null if the
+	 * server does not queue messages.
+	 */
+	private OutboundQueue		outboundQueue;
+
+	/**
+	 * The messages sent to many clients held back from the client, oldest
+	 * first, or null if they are not held back.
+	 */
+	private volatile ArrayList<SharedMessage>	heldMessages;
+
+	/**
+	 * Lock held while messages are held back or released.
+	 */
+	private final ReentrantLock	holdLock	= new ReentrantLock();
+
+	/**
+	 * The <code>System.nanoTime()</code> since which the oldest write to the
+	 * client still unfinished has been waiting, or 0 if no write is waiting.
+	 * Threaded connections are waiting while blocked in a write; selector
+	 * connections while they have pending frames.
+	 */
+	private volatile long		writeWaitingSince	= 0;
+
+	/**
+	 * The number of bytes waiting in memory for the channel to accept them.
+	 * Only selector connections hold such bytes, since their writes never
+	 * block.
+	 */
+	private volatile long		pendingBytes		= 0;
+
+	/**
+	 * Indicates if the client has been found to fall behind and not caught
+	 * up since.
+	 */
+	private final AtomicBoolean	fallingBehind		= new AtomicBoolean();
+
+	/**
+	 * Limits the rate of the messages received from the client, or null if
+	 * the server does not limit it.
+	 */
+	private final TokenBucket	messageLimiter;
+
+	/**
+	 * Limits the rate of the commands received from the client, or null if
+	 * the server does not limit it.
+	 */
+	private final TokenBucket	commandLimiter;
+
 	/**
 	 * Indicates if the thread is ready to stop. Set to true when closing of the
 	 * connection is initiated.
@@ -64,10 +183,59 @@ public class ConnectionToClient extends Thread {
 	 */
 	private HashMap				savedInfo	= new HashMap(10);
 
+	/**
+	 * The names of the rooms this client is a member of.
+	 */
+	private Set<String>			rooms		= ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The description of the client returned by <code>toString</code>, worked
+	 * out once since finding the host name may query the name service.
+	 */
+	private volatile String		description;
+
+	/**
+	 * The channel of the client when the connection is served by the selector
+	 * engine, null otherwise. In that case the connection never runs as a
+	 * thread of its own and exchanges framed messages.
+	 * 
+	 * @see ocsf.common.ObjectFrames
+	 */
+	private SocketChannel		channel;
+
+	/**
+	 * The key of the channel with the selector of its event loop.
+	 */
+	private SelectionKey		selectionKey;
+
+	/**
+	 * The thread of the event loop serving the channel, which needs no
+	 * waking up to see that the channel waits to be written.
+	 */
+	private Thread				eventLoop;
+
+	/**
+	 * Bytes read from the channel that do not yet form a complete frame.
+	 */
+	private ByteBuffer			readBuffer;
+
+	/**
+	 * Frames waiting for the channel to become writable, oldest first.
+	 */
+	private ArrayDeque<ByteBuffer>	pendingWrites;
+
+	/**
+	 * The shared message of each pending frame that is a view of a pooled
+	 * buffer, whose reference is released once the frame is written.
+	 */
+	private IdentityHashMap<ByteBuffer, SharedMessage>	pendingShared;
+
 	// CONSTRUCTORS *****************************************************
 
 	/**
-	 * Constructs a new connection to a client.
+	 * Constructs a new connection to a client. The streams are set up by the
+	 * thread of the connection once started, so that the caller never waits
+	 * for the client.
 	 * 
 	 * @param group
 	 *            the thread groupSystem.out.println("Client at "+ client +
@@ -76,32 +244,57 @@ public class ConnectionToClient extends Thread {
 	 *            contains the client's socket.
 	 * @param server
 	 *            a reference to the server that created this instance
-	 * @exception IOException
-	 *                if an I/O error occur when creating the connection.
+	 * @param virtual
+	 *            true to read the client from a virtual thread instead of
+	 *            starting this thread.
 	 */
-	ConnectionToClient(ThreadGroup group, Socket clientSocket, AbstractServer server) throws IOException {
+	ConnectionToClient(ThreadGroup group, Socket clientSocket, AbstractServer server, boolean virtual) {
 		super(group, (Runnable) null);
 		// Initialize variables
 		this.clientSocket = clientSocket;
 		this.server = server;
+		this.codec = server.getCodec();
+		this.outboundQueue = server.createOutboundQueue(this);
+		this.messageLimiter = server.createMessageLimiter();
+		this.commandLimiter = server.createCommandLimiter();
 
-		clientSocket.setSoTimeout(0); // make sure timeout is infinite
-
-		// Initialize the objects streams
-		try {
-			input = new ObjectInputStream(clientSocket.getInputStream());
-			output = new ObjectOutputStream(clientSocket.getOutputStream());
-		} catch (IOException ex) {
-			try {
-				closeAll();
-			} catch (Exception exc) {
-			}
+		readyToStop = false;
 
-			throw ex; // Rethrow the exception.
+		if (virtual) {
+			server.startVirtualReader(this);
+		} else {
+			start(); // Start the thread waits for data from the socket
 		}
+	}
+
+	/**
+	 * Constructs a new connection to a client served by the selector engine.
+	 * The connection is not started as a thread; its event loop reads the
+	 * channel and calls <code>readFromChannel</code> when data arrives.
+	 * 
+	 * @param channel
+	 *            the channel of the accepted client.
+	 * @param server
+	 *            a reference to the server that created this instance
+	 * @exception IOException
+	 *                if the channel cannot be made non-blocking.
+	 */
+	ConnectionToClient(SocketChannel channel, AbstractServer server) throws IOException {
+		super((Runnable) null);
+		this.channel = channel;
+		this.clientSocket = channel.socket();
+		this.server = server;
+		this.codec = server.getCodec();
+		this.outboundQueue = server.createOutboundQueue(this);
+		this.messageLimiter = server.createMessageLimiter();
+		this.commandLimiter = server.createCommandLimiter();
 
+		channel.configureBlocking(false);
+		server.getSocketConfig().apply(channel.socket());
+		readBuffer = ByteBuffer.allocate(server.getSocketConfig().getStreamBufferSize());
+		pendingWrites = new ArrayDeque<ByteBuffer>();
+		pendingShared = new IdentityHashMap<ByteBuffer, SharedMessage>();
 		readyToStop = false;
-		start(); // Start the thread waits for data from the socket
 	}
 
 	// INSTANCE METHODS *************************************************
@@ -115,10 +308,148 @@ public class ConnectionToClient extends Thread {
 	 *                if an I/O error occur when sending the message.
 	 */
 	final public void sendToClient(Object msg) throws IOException {
-		if (clientSocket == null || output == null)
-			throw new SocketException("socket does not exist");
+		send(msg, null, true);
+	}
+
+	/**
+	 * Adds an object to the outbound queue of the client, to be written by a
+	 * writer task. Queued objects are written in the order they were queued,
+	 * but may be overtaken by objects sent with <code>sendToClient</code>.
+	 * When the server does not queue messages, the object is sent directly.
+	 * 
+	 * @param msg
+	 *            the message to be sent.
+	 * @exception IOException
+	 *                if the connection is closed, or is closed because the
+	 *                client's queue is full.
+	 */
+	final public void queueToClient(Object msg) throws IOException {
+		if (outboundQueue == null)
+			sendToClient(msg);
+		else
+			outboundQueue.offer(msg);
+	}
+
+	/**
+	 * Queues a message sent to many clients, as <code>queueToClient</code>
+	 * does.
+	 * 
+	 * @param msg
+	 *            the message to be sent.
+	 * @exception IOException
+	 *                if the connection is closed, or is closed because the
+	 *                client's queue is full.
+	 */
+	final void queueShared(SharedMessage msg) throws IOException {
+		// A client falling behind is skipped, or disconnected, instead
+		if (server.skipSlowConsumer(this))
+			return;
+
+		if (heldMessages != null && hold(msg))
+			return;
+
+		if (outboundQueue == null)
+			sendShared(msg);
+		else {
+			msg.retain(); // released by the queue
+			outboundQueue.offer(msg);
+		}
+	}
+
+	/**
+	 * Holds back the messages sent to all clients or to a room from the
+	 * client, until <code>releaseMessages</code> is called, so that messages
+	 * queued with <code>queueToClient</code> meanwhile, such as earlier
+	 * messages, reach the client first.
+	 */
+	final public void holdMessages() {
+		holdLock.lock();
+		try {
+			if (heldMessages == null)
+				heldMessages = new ArrayList<SharedMessage>();
+		} finally {
+			holdLock.unlock();
+		}
+	}
+
+	/**
+	 * Queues the messages held back from the client, in the order they were
+	 * sent, and stops holding messages back. Messages sent to many clients
+	 * meanwhile wait until those held back are queued.
+	 * 
+	 * @exception IOException
+	 *                if the connection is closed, or is closed because the
+	 *                client's queue is full.
+	 */
+	final public void releaseMessages() throws IOException {
+		IOException failure = null;
+
+		holdLock.lock();
+		try {
+			if (heldMessages == null)
+				return;
+
+			for (SharedMessage msg : heldMessages) {
+				if (failure != null) {
+					msg.release();
+					continue;
+				}
+				try {
+					if (outboundQueue == null) {
+						try {
+							sendShared(msg);
+						} finally {
+							msg.release();
+						}
+					} else
+						outboundQueue.offer(msg); // takes over the reference
+				} catch (IOException ex) {
+					failure = ex;
+				}
+			}
+			heldMessages = null;
+		} finally {
+			holdLock.unlock();
+		}
+
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Holds back a message sent to many clients, if messages are still held
+	 * back.
+	 * 
+	 * @param msg
+	 *            the message.
+	 * @return false if messages are no longer held back.
+	 */
+	private boolean hold(SharedMessage msg) {
+		holdLock.lock();
+		try {
+			if (heldMessages == null)
+				return false;
+
+			msg.retain(); // released once queued
+			heldMessages.add(msg);
+			return true;
+		} finally {
+			holdLock.unlock();
+		}
+	}
 
-		output.writeObject(msg);
+	/**
+	 * Sends a message sent to many clients. Framed connections write the
+	 * frame encoded once for all of them; channels write a view of it in a
+	 * pooled direct buffer.
+	 * 
+	 * @param msg
+	 *            the message to be sent.
+	 * @exception IOException
+	 *                if an I/O error occur when sending the message.
+	 */
+	final void sendShared(SharedMessage msg) throws IOException {
+		send(msg.message(), msg, true);
 	}
 
 	/**
@@ -127,7 +458,16 @@ public class ConnectionToClient extends Thread {
     * in some circumstances when Java refuses to send data that it thinks has been sent.
 	 */
 	final public void forceResetAfterSend() throws IOException {
-      output.reset();
+		// Frames do not share any stream state, there is nothing to reset
+		if (channel != null || frameOutput != null)
+			return;
+
+		sendLock.lock();
+		try {
+			resetOutput();
+		} finally {
+			sendLock.unlock();
+		}
 	}
 
 	/**
@@ -159,13 +499,79 @@ public class ConnectionToClient extends Thread {
 	}
 
 	/**
-	 * Returns a string representation of the client.
+	 * Returns the number of messages waiting in the outbound queue.
+	 * 
+	 * @return the number of queued messages.
+	 */
+	final public int getQueuedMessageCount() {
+		return outboundQueue == null ? 0 : outboundQueue.size();
+	}
+
+	/**
+	 * Returns how long the oldest write to the client still unfinished has
+	 * been waiting: blocked on the socket, or pending on the channel.
+	 * 
+	 * @return the waiting time in milliseconds, 0 if no write is waiting.
+	 */
+	final public long getWriteLatency() {
+		long since = writeWaitingSince;
+
+		return since == 0 ? 0 : (System.nanoTime() - since) / 1000000;
+	}
+
+	/**
+	 * Returns the number of bytes waiting in memory for the client's channel
+	 * to accept them. Always 0 unless the server uses the selector engine.
+	 * 
+	 * @return the number of pending bytes.
+	 */
+	final public long getPendingBytes() {
+		return pendingBytes;
+	}
+
+	/**
+	 * Returns the number of messages dropped from the outbound queue.
+	 * 
+	 * @return the number of dropped messages.
+	 */
+	final public long getDroppedMessageCount() {
+		return outboundQueue == null ? 0 : outboundQueue.getDroppedCount();
+	}
+
+	/**
+	 * Returns the names of the rooms this client is a member of.
+	 * 
+	 * @return a read-only view of the room names.
+	 * @see AbstractServer#joinRoom(String, ConnectionToClient)
+	 */
+	final public Set<String> getRooms() {
+		return Collections.unmodifiableSet(rooms);
+	}
+
+	/**
+	 * Returns the number of times the object output stream has been reset.
+	 * 
+	 * @return the number of resets.
+	 */
+	final public long getResetCount() {
+		return resetCount;
+	}
+
+	/**
+	 * Returns a string representation of the client. It is worked out the
+	 * first time it is asked for and kept for the life of the connection.
 	 * 
 	 * @return the client's description.
 	 */
 	public String toString() {
-		return clientSocket == null ? null : clientSocket.getInetAddress().getHostName() + " ("
-				+ clientSocket.getInetAddress().getHostAddress() + ")";
+		String text = description;
+		Socket socket = clientSocket;
+
+		if (text == null && socket != null) {
+			text = socket.getInetAddress().getHostName() + " (" + socket.getInetAddress().getHostAddress() + ")";
+			description = text;
+		}
+		return text;
 	}
 
 	/**
@@ -195,10 +601,26 @@ public class ConnectionToClient extends Thread {
 	// RUN METHOD -------------------------------------------------------
 
 	/**
-	 * Constantly reads the client's input stream. Sends all objects that are
-	 * read to the server. Not to be called.
+	 * Sets up the streams, then constantly reads the client's input stream.
+	 * Sends all objects that are read to the server. Not to be called.
 	 */
 	final public void run() {
+		// A client failing to set up its streams in time never counts as
+		// connected
+		try {
+			openStreams();
+		} catch (Exception exception) {
+			abandon();
+			server.countFailedHandshake();
+			return;
+		}
+
+		// The connection counts as connected until its reader loop ends
+		if (!server.registerConnection(this)) {
+			abandon();
+			return;
+		}
+
 		server.clientConnected(this);
 
 		// This loop reads the input stream and responds to messages
@@ -207,10 +629,18 @@ public class ConnectionToClient extends Thread {
 			// The message from the client
 			Object msg;
 
+			// The bytes read from the socket and counted by the server
+			long bytesCounted = 0;
+
 			while (!readyToStop) {
 				// This block waits until it reads a message from the client
 				// and then sends it for handling by the server
-				msg = input.readObject();
+				msg = frameInput != null ? ObjectFrames.read(codec, frameInput) : input.readObject();
+
+				long bytesRead = inputCounter.getCount();
+				server.countReceivedBytes(bytesRead - bytesCounted);
+				bytesCounted = bytesRead;
+
 				server.receiveMessageFromClient(msg, this);
 			}
 		} catch (Exception exception) {
@@ -222,11 +652,462 @@ public class ConnectionToClient extends Thread {
 
 				server.clientException(this, exception);
 			}
+		} finally {
+			server.unregisterConnection(this);
 		}
 	}
 
 	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
+	/**
+	 * Sets up the streams of a connection served by a thread. Waits at most
+	 * the handshake timeout of the server for the header of the client's
+	 * object stream.
+	 * 
+	 * @exception IOException
+	 *                if the header does not arrive in time, or an I/O error
+	 *                occurs.
+	 */
+	private void openStreams() throws IOException {
+		SocketConfig config = server.getSocketConfig();
+		int bufferSize = config.getStreamBufferSize();
+
+		config.apply(clientSocket);
+
+		// Messages are gathered in the output buffer and written together
+		inputCounter = new CountingInputStream(clientSocket.getInputStream());
+		if (server.isFramed()) {
+			clientSocket.setSoTimeout(0); // make sure timeout is infinite
+			frameInput = new DataInputStream(new BufferedInputStream(inputCounter, bufferSize));
+			frameOutput = new BufferedOutputStream(clientSocket.getOutputStream(), bufferSize);
+		} else {
+			clientSocket.setSoTimeout(server.getHandshakeTimeout());
+			input = new ObjectInputStream(new BufferedInputStream(inputCounter, bufferSize));
+			clientSocket.setSoTimeout(0); // make sure timeout is infinite
+
+			resetPolicy = server.getResetPolicy();
+			outputCounter = new CountingOutputStream(
+					new BufferedOutputStream(clientSocket.getOutputStream(), bufferSize));
+			output = new ObjectOutputStream(outputCounter);
+			output.flush(); // the client waits for the stream header
+			bytesAtReset = outputCounter.getCount();
+		}
+	}
+
+	/**
+	 * Takes a token from the command or the message rate limiter, if any.
+	 * Only called by the thread reading the client, so the limiters are never
+	 * contended.
+	 * 
+	 * @param command
+	 *            true if the message received is a command.
+	 * @return true if the message received may be handled.
+	 */
+	boolean admitMessage(boolean command) {
+		TokenBucket limiter = command ? commandLimiter : messageLimiter;
+		return limiter == null || limiter.tryAcquire();
+	}
+
+	/**
+	 * Closes a connection that never counted as connected, without notifying
+	 * the server.
+	 */
+	void abandon() {
+		readyToStop = true;
+
+		try {
+			closeAll();
+		} catch (Exception ex) {
+		}
+	}
+
+	/**
+	 * Records that the client joined a room.
+	 * 
+	 * @param room
+	 *            the name of the room.
+	 */
+	void joinedRoom(String room) {
+		rooms.add(room);
+	}
+
+	/**
+	 * Records that the client left a room.
+	 * 
+	 * @param room
+	 *            the name of the room.
+	 */
+	void leftRoom(String room) {
+		rooms.remove(room);
+	}
+
+	/**
+	 * Registers the channel with the selector of an event loop and notifies
+	 * the server that the client is connected. Called by the event loop.
+	 * 
+	 * @param selector
+	 *            the selector of the event loop.
+	 * @exception IOException
+	 *                if the channel has been closed meanwhile.
+	 */
+	void attach(Selector selector) throws IOException {
+		eventLoop = Thread.currentThread();
+		selectionKey = channel.register(selector, SelectionKey.OP_READ, this);
+		server.clientConnected(this);
+	}
+
+	/**
+	 * Reads whatever is available on the channel and hands every complete
+	 * frame to the server. Called by the event loop when the channel is
+	 * readable.
+	 * 
+	 * @exception Exception
+	 *                if the channel fails or reaches its end, or if the server
+	 *                fails to handle a message.
+	 */
+	void readFromChannel() throws Exception {
+		int bytesRead = channel.read(readBuffer);
+
+		if (bytesRead < 0)
+			throw new EOFException("connection closed by client");
+		server.countReceivedBytes(bytesRead);
+
+		readBuffer.flip();
+		while (!readyToStop && readBuffer.remaining() >= ObjectFrames.HEADER_LENGTH) {
+			int length = ObjectFrames.checkLength(readBuffer.getInt(readBuffer.position()));
+
+			if (readBuffer.remaining() < ObjectFrames.HEADER_LENGTH + length) {
+				// Grow the buffer if this frame can never fit in it
+				if (readBuffer.capacity() < ObjectFrames.HEADER_LENGTH + length) {
+					ByteBuffer larger = ByteBuffer.allocate(ObjectFrames.HEADER_LENGTH + length);
+					larger.put(readBuffer);
+					readBuffer = larger;
+					return;
+				}
+				break;
+			}
+
+			int start = readBuffer.position() + ObjectFrames.HEADER_LENGTH;
+			Object msg = codec.decode(readBuffer.array(), start, length);
+			readBuffer.position(start + length);
+
+			server.receiveMessageFromClient(msg, this);
+		}
+
+		if (readBuffer != null)
+			readBuffer.compact();
+	}
+
+	/**
+	 * Writes as many pending frames as the channel accepts. Called by the
+	 * event loop when the channel is writable.
+	 * 
+	 * @exception IOException
+	 *                if an I/O error occurs when writing.
+	 */
+	void flushToChannel() throws IOException {
+		synchronized (pendingWrites) {
+			if (writePending())
+				return;
+
+			writeWaitingSince = 0;
+			selectionKey.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Tells if the client falls behind: a write has been waiting longer than
+	 * the given latency, or more than the given number of bytes are pending.
+	 * 
+	 * @param maxWriteLatency
+	 *            the longest a write may wait, in nanoseconds, 0 for no limit.
+	 * @param maxPendingBytes
+	 *            the most bytes that may be pending, 0 for no limit.
+	 * @return true if either limit is exceeded.
+	 */
+	boolean isFallingBehind(long maxWriteLatency, long maxPendingBytes) {
+		long since = writeWaitingSince;
+
+		return (maxWriteLatency > 0 && since != 0 && System.nanoTime() - since > maxWriteLatency)
+				|| (maxPendingBytes > 0 && pendingBytes > maxPendingBytes);
+	}
+
+	/**
+	 * Records whether the client is evicted for falling behind. Evicting the
+	 * client wakes up the threads waiting for room in its outbound queue, so
+	 * that they skip it instead.
+	 * 
+	 * @param evicted
+	 *            true if the client has just been found to fall behind, false
+	 *            if it has been found to keep up.
+	 * @return true if the state changed, so that only the first thread to
+	 *         find the client falling behind evicts it.
+	 */
+	boolean setEvicted(boolean evicted) {
+		if (fallingBehind.get() == evicted || !fallingBehind.compareAndSet(!evicted, evicted))
+			return false;
+
+		if (evicted && outboundQueue != null)
+			outboundQueue.wakeUp();
+		return true;
+	}
+
+	/**
+	 * Tells if messages are written to the client by other threads than the
+	 * ones sending them, through an outbound queue or the selector. Otherwise
+	 * a sending thread blocked on the client's socket can only be released by
+	 * closing it.
+	 * 
+	 * @return true if senders never block on the socket.
+	 */
+	boolean isWrittenAsynchronously() {
+		return outboundQueue != null || channel != null;
+	}
+
+	/**
+	 * Tells if the client is evicted for falling behind.
+	 * 
+	 * @return true if the client has been found to fall behind and not to
+	 *         have caught up since.
+	 */
+	boolean isEvicted() {
+		return fallingBehind.get();
+	}
+
+	/**
+	 * Writes a message to whichever stream or channel the connection uses.
+	 * Messages written without flushing are gathered in a buffer, written to
+	 * the socket when the buffer fills up or with the next flush.
+	 * 
+	 * @param msg
+	 *            the message to be sent.
+	 * @param shared
+	 *            the same message when sent to many clients, whose frame is
+	 *            then written instead of encoding the message again; null
+	 *            otherwise.
+	 * @param flush
+	 *            true to write the message, and any gathered before it, to the
+	 *            socket at once.
+	 * @exception IOException
+	 *                if an I/O error occur when sending the message.
+	 */
+	final void send(Object msg, SharedMessage shared, boolean flush) throws IOException {
+		if (channel != null) {
+			ByteBuffer view = shared != null ? shared.directFrame(codec) : null;
+
+			if (view == null)
+				view = ByteBuffer.wrap(ObjectFrames.encode(codec, msg));
+
+			int bytes = view.remaining();
+			writeToChannel(view, shared != null && view.isDirect() ? shared : null, flush);
+			server.countSentMessage(bytes);
+		} else {
+			sendLock.lock();
+			try {
+				if (clientSocket == null || (output == null && frameOutput == null))
+					throw new SocketException("socket does not exist");
+
+				byte[] frame = null;
+				long bytes;
+
+				if (frameOutput != null)
+					frame = shared != null ? shared.frame(codec) : ObjectFrames.encode(codec, msg);
+
+				// The write may block for as long as the client does not read
+				writeWaitingSince = System.nanoTime();
+				try {
+					if (frameOutput != null) {
+						frameOutput.write(frame);
+						bytes = frame.length;
+					} else {
+						bytes = outputCounter.getCount();
+						output.writeObject(msg);
+						messagesSinceReset++;
+						if (resetPolicy.isResetDue(messagesSinceReset, outputCounter.getCount() - bytesAtReset))
+							resetOutput();
+						bytes = outputCounter.getCount() - bytes;
+					}
+					server.countSentMessage(bytes);
+
+					if (flush)
+						(frameOutput != null ? frameOutput : output).flush();
+				} finally {
+					writeWaitingSince = 0;
+				}
+			} finally {
+				sendLock.unlock();
+			}
+		}
+
+		if (flush)
+			server.countFlush(1);
+	}
+
+	/**
+	 * Writes the messages gathered by <code>send</code> to the socket.
+	 * 
+	 * @param messages
+	 *            the number of messages gathered, for the statistics of the
+	 *            server.
+	 * @exception IOException
+	 *                if an I/O error occur when writing.
+	 */
+	final void flush(int messages) throws IOException {
+		if (channel != null) {
+			synchronized (pendingWrites) {
+				if (clientSocket == null || selectionKey == null)
+					throw new SocketException("socket does not exist");
+
+				flushPendingWrites();
+			}
+		} else {
+			sendLock.lock();
+			try {
+				if (clientSocket == null || (output == null && frameOutput == null))
+					throw new SocketException("socket does not exist");
+
+				writeWaitingSince = System.nanoTime();
+				try {
+					(frameOutput != null ? frameOutput : output).flush();
+				} finally {
+					writeWaitingSince = 0;
+				}
+			} finally {
+				sendLock.unlock();
+			}
+		}
+
+		server.countFlush(messages);
+	}
+
+	/**
+	 * Resets the object output stream, dropping its references to the objects
+	 * already sent. Called while holding <code>sendLock</code>.
+	 * 
+	 * @exception IOException
+	 *                if an I/O error occurs when writing the reset marker.
+	 */
+	private void resetOutput() throws IOException {
+		output.reset();
+		messagesSinceReset = 0;
+		bytesAtReset = outputCounter.getCount();
+		resetCount++;
+		server.countStreamReset();
+	}
+
+	/**
+	 * Adds a frame to the pending frames, and writes them when flushing.
+	 * 
+	 * @param frame
+	 *            the frame to write.
+	 * @param shared
+	 *            the shared message the frame is a view of, referred to until
+	 *            the frame is written; null if the frame is not shared.
+	 * @param flush
+	 *            true to write the pending frames at once.
+	 * @exception IOException
+	 *                if the connection is closed or the write fails.
+	 */
+	private void writeToChannel(ByteBuffer frame, SharedMessage shared, boolean flush) throws IOException {
+		synchronized (pendingWrites) {
+			if (clientSocket == null || selectionKey == null)
+				throw new SocketException("socket does not exist");
+
+			pendingWrites.add(frame);
+			pendingBytes += frame.remaining();
+			if (shared != null) {
+				shared.retain();
+				pendingShared.put(frame, shared);
+			}
+
+			if (flush)
+				flushPendingWrites();
+		}
+	}
+
+	/**
+	 * Writes the pending frames to the channel directly, by the calling
+	 * thread, unless the event loop already waits for the channel to become
+	 * writable. Only when the channel does not accept them all does the event
+	 * loop get to finish them: the key is then registered for writing, and
+	 * the selector woken up unless the caller is the event loop itself. A
+	 * send to a client that keeps up therefore costs no selector wakeup.
+	 * Called while holding <code>pendingWrites</code>.
+	 * 
+	 * @exception IOException
+	 *                if the write fails.
+	 */
+	private void flushPendingWrites() throws IOException {
+		// The event loop finishes the writes it already waits for
+		if (writeWaitingSince != 0)
+			return;
+
+		if (!writePending())
+			return;
+
+		// Partly written, the rest waits for the channel to be writable
+		writeWaitingSince = System.nanoTime();
+		selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		if (Thread.currentThread() != eventLoop)
+			selectionKey.selector().wakeup();
+	}
+
+	/**
+	 * Writes as many pending frames as the channel accepts, all at once.
+	 * Called while holding <code>pendingWrites</code>.
+	 * 
+	 * @return true if some bytes are still pending.
+	 * @exception IOException
+	 *                if the write fails.
+	 */
+	private boolean writePending() throws IOException {
+		if (pendingWrites.isEmpty())
+			return false;
+
+		pendingBytes -= channel.write(pendingWrites.toArray(new ByteBuffer[pendingWrites.size()]));
+		while (!pendingWrites.isEmpty() && !pendingWrites.peek().hasRemaining())
+			releaseFrame(pendingWrites.poll());
+
+		return !pendingWrites.isEmpty();
+	}
+
+	/**
+	 * Drops a frame no longer pending, releasing its shared message if it is
+	 * a view of a pooled buffer. Called while holding
+	 * <code>pendingWrites</code>.
+	 * 
+	 * @param frame
+	 *            the frame.
+	 */
+	private void releaseFrame(ByteBuffer frame) {
+		// Only views of pooled buffers are direct
+		if (!frame.isDirect())
+			return;
+
+		SharedMessage shared = pendingShared.remove(frame);
+		if (shared != null)
+			shared.release();
+	}
+
+	/**
+	 * Closes the connection after a failure detected by the event loop and
+	 * reports the exception to the server, as the run method does for
+	 * threaded connections.
+	 * 
+	 * @param exception
+	 *            the exception raised.
+	 */
+	void channelException(Exception exception) {
+		if (!readyToStop) {
+			try {
+				closeAll();
+			} catch (Exception ex) {
+			}
+
+			server.clientException(this, exception);
+		}
+	}
+
 	/**
 	 * Closes all connection to the server.
 	 * 
@@ -234,6 +1115,38 @@ public class ConnectionToClient extends Thread {
 	 *                if an I/O error occur when closing the connection.
 	 */
 	private void closeAll() throws IOException {
+		if (outboundQueue != null)
+			outboundQueue.close();
+
+		// The messages held back will never be queued
+		holdLock.lock();
+		try {
+			if (heldMessages != null) {
+				for (SharedMessage msg : heldMessages)
+					msg.release();
+				heldMessages = null;
+			}
+		} finally {
+			holdLock.unlock();
+		}
+
+		if (channel != null) {
+			try {
+				channel.close();
+			} finally {
+				// The frames never written give their buffers back
+				synchronized (pendingWrites) {
+					clientSocket = null;
+					for (ByteBuffer frame : pendingWrites)
+						releaseFrame(frame);
+					pendingWrites.clear();
+				}
+				readBuffer = null;
+				server.unregisterConnection(this);
+			}
+			return;
+		}
+
 		try {
 			// Close the socket
 			if (clientSocket != null)
@@ -246,13 +1159,23 @@ public class ConnectionToClient extends Thread {
 			// Close the input stream
 			if (input != null)
 				input.close();
+
+			// Close the frame streams
+			if (frameOutput != null)
+				frameOutput.close();
+
+			if (frameInput != null)
+				frameInput.close();
 		} finally {
 			// Set the streams and the sockets to NULL no matter what
 			// Doing so allows, but does not require, any finalizers
 			// of these objects to reclaim system resources if and
 			// when they are garbage collected.
 			output = null;
+			outputCounter = null;
 			input = null;
+			frameOutput = null;
+			frameInput = null;
 			clientSocket = null;
 		}
 	}
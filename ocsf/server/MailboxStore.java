@@ -0,0 +1,481 @@
+package ocsf.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+/**
+ * A <code> MailboxStore </code> keeps messages for recipients who are not
+ * connected, in one file, until they are delivered.
+ * <p>
+ * Messages are appended to the file as they are deposited, and removing
+ * delivered messages appends a record of how many of the oldest messages of
+ * a recipient were removed, so that the file is only ever appended to. An
+ * index in memory holds where the messages of each recipient are in the
+ * file, not the messages themselves, so that finding them takes no search.
+ * It is rebuilt from the file when the store is opened; a record cut short
+ * by a crash is found by its checksum and cut off. Once removed messages take
+ * up more of the file than the others, the file is rewritten with only the
+ * messages left.
+ * <p>
+ * Each recipient has a quota of messages, past which deposits are refused,
+ * so that a popular recipient who never connects cannot fill the store. The
+ * store as a whole has a capacity in bytes, past which all deposits are
+ * refused, so that messages sent to any number of made-up recipients cannot
+ * grow the file or the index without bound either.
+ * <p>
+ * Messages are written to the file, but not forced to disk, as they are
+ * deposited: they survive the server exiting, but not the machine stopping
+ * before the system writes them out.
+ */
+final public class MailboxStore implements Closeable {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The number of messages a recipient may have waiting unless otherwise
+	 * specified.
+	 */
+	final public static int		DEFAULT_QUOTA		= 100;
+
+	/**
+	 * The size, in bytes, the messages waiting may take up in the file unless
+	 * otherwise specified.
+	 */
+	final public static long	DEFAULT_CAPACITY	= 64 * 1024 * 1024;
+
+	/**
+	 * The size, in bytes, removed messages must take up in the file before
+	 * it is rewritten.
+	 */
+	final static long			MIN_COMPACT_BYTES	= 1024 * 1024;
+
+	/**
+	 * The bytes in front of each record: the length of the rest of the
+	 * record, then its checksum.
+	 */
+	private final static int	HEADER_SIZE			= 8;
+
+	/**
+	 * The type of the records of messages.
+	 */
+	private final static byte	MESSAGE				= 1;
+
+	/**
+	 * The type of the records of removals.
+	 */
+	private final static byte	REMOVAL				= 2;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The file of the store.
+	 */
+	private final File									file;
+
+	/**
+	 * The channel of the file, positioned at its end.
+	 */
+	private FileChannel									channel;
+
+	/**
+	 * Where the messages waiting for each recipient are in the file, oldest
+	 * first.
+	 */
+	private final HashMap<String, ArrayDeque<Slot>>		index	= new HashMap<String, ArrayDeque<Slot>>();
+
+	/**
+	 * The size, in bytes, of the records of messages waiting.
+	 */
+	private long										liveBytes;
+
+	/**
+	 * The number of messages a recipient may have waiting.
+	 */
+	private int											quota	= DEFAULT_QUOTA;
+
+	/**
+	 * The size, in bytes, the messages waiting may take up in the file.
+	 */
+	private long										capacity	= DEFAULT_CAPACITY;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Opens the store in a file, created if needed, with the messages still
+	 * waiting in it.
+	 *
+	 * @param file
+	 *            the file of the store.
+	 * @exception IOException
+	 *                if the file cannot be read or written.
+	 */
+	public MailboxStore(File file) throws IOException {
+		this.file = file;
+
+		File directory = file.getAbsoluteFile().getParentFile();
+		if (directory != null && !directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("cannot create " + directory);
+
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		rebuildIndex();
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Keeps a message for a recipient, unless the recipient already has its
+	 * quota of messages waiting or the store would grow past its capacity.
+	 *
+	 * @param recipient
+	 *            the recipient.
+	 * @param message
+	 *            the message.
+	 * @return false if the message was refused for the quota or the
+	 *         capacity.
+	 * @exception IOException
+	 *                if the message cannot be written.
+	 */
+	public synchronized boolean deposit(String recipient, String message) throws IOException {
+		ArrayDeque<Slot> mailbox = index.get(recipient);
+
+		if (mailbox != null && mailbox.size() >= quota)
+			return false;
+
+		byte[] text = message.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer record = newRecord(MESSAGE, recipient, 8 + text.length);
+		record.putLong(System.currentTimeMillis()).put(text);
+
+		if (liveBytes + record.limit() > capacity)
+			return false;
+
+		long offset = write(record);
+		index.computeIfAbsent(recipient, name -> new ArrayDeque<Slot>()).addLast(new Slot(offset, record.limit()));
+		liveBytes += record.limit();
+		return true;
+	}
+
+	/**
+	 * Returns the oldest messages waiting for a recipient, without removing
+	 * them, so that they are only removed once delivered.
+	 *
+	 * @param recipient
+	 *            the recipient.
+	 * @param count
+	 *            the most messages returned.
+	 * @return the messages, oldest first.
+	 * @exception IOException
+	 *                if the messages cannot be read.
+	 */
+	public synchronized List<Mail> peek(String recipient, int count) throws IOException {
+		ArrayDeque<Slot> mailbox = index.get(recipient);
+		ArrayList<Mail> messages = new ArrayList<Mail>();
+
+		if (mailbox == null)
+			return messages;
+
+		for (Slot slot : mailbox) {
+			if (messages.size() == count)
+				break;
+
+			ByteBuffer record = ByteBuffer.allocate(slot.size);
+			while (record.hasRemaining())
+				if (channel.read(record, slot.offset + record.position()) < 0)
+					throw new EOFException("message cut short in " + file);
+			record.flip();
+
+			// The type, then the recipient, then the time and the text
+			record.position(HEADER_SIZE + 1);
+			record.position(record.position() + 2 + record.getShort());
+			long timestamp = record.getLong();
+			messages.add(new Mail(timestamp, new String(record.array(), record.position(), record.remaining(),
+					StandardCharsets.UTF_8)));
+		}
+		return messages;
+	}
+
+	/**
+	 * Removes the oldest messages waiting for a recipient, once delivered.
+	 *
+	 * @param recipient
+	 *            the recipient.
+	 * @param count
+	 *            the number of messages removed.
+	 * @exception IOException
+	 *                if the removal cannot be written.
+	 */
+	public synchronized void remove(String recipient, int count) throws IOException {
+		ArrayDeque<Slot> mailbox = index.get(recipient);
+
+		if (mailbox == null || count <= 0)
+			return;
+
+		count = Math.min(count, mailbox.size());
+		ByteBuffer record = newRecord(REMOVAL, recipient, 4);
+		record.putInt(count);
+		write(record);
+
+		for (int i = 0; i < count; i++)
+			liveBytes -= mailbox.removeFirst().size;
+		if (mailbox.isEmpty())
+			index.remove(recipient);
+
+		long deadBytes = channel.size() - liveBytes;
+		if (deadBytes > MIN_COMPACT_BYTES && deadBytes > liveBytes)
+			compact();
+	}
+
+	/**
+	 * Returns the number of messages waiting for a recipient.
+	 *
+	 * @param recipient
+	 *            the recipient.
+	 * @return the number of messages.
+	 */
+	public synchronized int getCount(String recipient) {
+		ArrayDeque<Slot> mailbox = index.get(recipient);
+		return mailbox == null ? 0 : mailbox.size();
+	}
+
+	/**
+	 * Returns the number of messages a recipient may have waiting.
+	 *
+	 * @return the quota.
+	 */
+	public synchronized int getQuota() {
+		return quota;
+	}
+
+	/**
+	 * Sets the number of messages a recipient may have waiting. Messages
+	 * already waiting past a lower quota are kept.
+	 *
+	 * @param quota
+	 *            the quota.
+	 */
+	public synchronized void setQuota(int quota) {
+		this.quota = quota;
+	}
+
+	/**
+	 * Returns the size, in bytes, the messages waiting may take up.
+	 *
+	 * @return the capacity.
+	 */
+	public synchronized long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Sets the size, in bytes, the messages waiting may take up. Messages
+	 * already waiting past a lower capacity are kept.
+	 *
+	 * @param capacity
+	 *            the capacity.
+	 */
+	public synchronized void setCapacity(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Forces the store to disk and closes its file.
+	 *
+	 * @exception IOException
+	 *                if the file cannot be forced.
+	 */
+	public synchronized void close() throws IOException {
+		if (!channel.isOpen())
+			return;
+
+		try {
+			channel.force(false);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Starts a record of a type for a recipient, with room for the rest of
+	 * its body. The checksum is filled in by <code>write</code>.
+	 */
+	private static ByteBuffer newRecord(byte type, String recipient, int rest) {
+		byte[] name = recipient.getBytes(StandardCharsets.UTF_8);
+
+		if (name.length > Short.MAX_VALUE)
+			throw new IllegalArgumentException("recipient name too long");
+
+		ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + 1 + 2 + name.length + rest);
+		record.putInt(record.capacity() - HEADER_SIZE).putInt(0);
+		record.put(type).putShort((short) name.length).put(name);
+		return record;
+	}
+
+	/**
+	 * Fills in the checksum of a record and appends it to the file.
+	 *
+	 * @return the offset of the record.
+	 */
+	private long write(ByteBuffer record) throws IOException {
+		CRC32C checksum = new CRC32C();
+		checksum.update(record.array(), HEADER_SIZE, record.capacity() - HEADER_SIZE);
+		record.putInt(4, (int) checksum.getValue());
+		record.flip();
+
+		long offset = channel.size();
+		while (record.hasRemaining())
+			channel.write(record, offset + record.position());
+		record.flip();
+		return offset;
+	}
+
+	/**
+	 * Reads the file through, adding its messages to the index and applying
+	 * its removals, and cuts off whatever follows the last whole record.
+	 */
+	private void rebuildIndex() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel
+				.position(0))));
+		long offset = 0;
+		long size = channel.size();
+
+		index.clear();
+		liveBytes = 0;
+
+		while (offset + HEADER_SIZE <= size) {
+			int length = in.readInt();
+			int expected = in.readInt();
+
+			if (length < 3 || offset + HEADER_SIZE + length > size)
+				break;
+
+			byte[] body = new byte[length];
+			in.readFully(body);
+
+			CRC32C checksum = new CRC32C();
+			checksum.update(body);
+			if ((int) checksum.getValue() != expected)
+				break;
+
+			ByteBuffer record = ByteBuffer.wrap(body);
+			byte type = record.get();
+			byte[] name = new byte[record.getShort()];
+			record.get(name);
+			String recipient = new String(name, StandardCharsets.UTF_8);
+
+			if (type == MESSAGE) {
+				index.computeIfAbsent(recipient, key -> new ArrayDeque<Slot>()).addLast(
+						new Slot(offset, HEADER_SIZE + length));
+				liveBytes += HEADER_SIZE + length;
+			} else if (type == REMOVAL) {
+				ArrayDeque<Slot> mailbox = index.get(recipient);
+				for (int i = record.getInt(); mailbox != null && i > 0 && !mailbox.isEmpty(); i--)
+					liveBytes -= mailbox.removeFirst().size;
+				if (mailbox != null && mailbox.isEmpty())
+					index.remove(recipient);
+			}
+			offset += HEADER_SIZE + length;
+		}
+
+		// A record cut short by a crash is overwritten by the next one
+		if (offset < size)
+			channel.truncate(offset);
+		channel.position(offset);
+	}
+
+	/**
+	 * Rewrites the file with only the messages waiting, then replaces the
+	 * file with it.
+	 */
+	private void compact() throws IOException {
+		File compacted = new File(file.getPath() + ".tmp");
+
+		try (FileChannel out = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			for (ArrayDeque<Slot> mailbox : index.values()) {
+				for (Slot slot : mailbox) {
+					long copied = 0;
+					while (copied < slot.size)
+						copied += channel.transferTo(slot.offset + copied, slot.size - copied, out);
+				}
+			}
+			out.force(false);
+		}
+
+		channel.close();
+		Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		rebuildIndex();
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * Where a message is in the file.
+	 */
+	private static class Slot {
+		/**
+		 * The offset of the record of the message.
+		 */
+		final long	offset;
+
+		/**
+		 * The size, in bytes, of the record.
+		 */
+		final int	size;
+
+		Slot(long offset, int size) {
+			this.offset = offset;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * A message waiting for its recipient.
+	 */
+	final public static class Mail {
+		/**
+		 * The time, in milliseconds since the epoch, the message was
+		 * deposited.
+		 */
+		private final long		timestamp;
+
+		/**
+		 * The message.
+		 */
+		private final String	message;
+
+		Mail(long timestamp, String message) {
+			this.timestamp = timestamp;
+			this.message = message;
+		}
+
+		/**
+		 * @return the time, in milliseconds since the epoch, the message
+		 *         was deposited.
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/**
+		 * @return the message.
+		 */
+		public String getMessage() {
+			return message;
+		}
+
+		/**
+		 * Returns the message.
+		 */
+		public String toString() {
+			return message;
+		}
+	}
+}
+// End of MailboxStore class
@@ -0,0 +1,342 @@
+package ocsf.server;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A <code> MessageHistory </code> keeps the latest messages sent by a server
+ * in memory: those sent to all clients, and those sent to each room, each in
+ * a ring of a fixed capacity. Adding a message puts it in the next slot of
+ * its ring, overwriting the oldest message once the ring is full, and
+ * reading the ring takes no lock, so keeping the history costs broadcasts
+ * next to nothing. Messages must be added one at a time, in the order of
+ * their sequence numbers, as the server does by numbering and adding each
+ * in one step, so that a full ring always overwrites its oldest message
+ * rather than a newer one.
+ * <p>
+ * Asking for more messages than a ring holds reads the older ones from the
+ * journal of the server, if it has one. The messages are then numbered by
+ * the journal; otherwise the history numbers them itself.
+ */
+final public class MessageHistory {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The most messages of the journal looked through for older messages of
+	 * a room, so that a room seldom used does not have the whole journal
+	 * read.
+	 */
+	final public static int				MAX_JOURNAL_SCAN	= 1 << 20;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The number of messages kept in each ring, a power of two.
+	 */
+	private final int									capacity;
+
+	/**
+	 * The latest messages sent to all clients.
+	 */
+	private final Ring									lobby;
+
+	/**
+	 * The latest messages sent to each room.
+	 */
+	private final ConcurrentHashMap<String, Ring>		rooms		= new ConcurrentHashMap<String, Ring>();
+
+	/**
+	 * The journal older messages are read from, null if there is none.
+	 */
+	private volatile MessageJournal						journal;
+
+	/**
+	 * The sequence number of the last message numbered by the history
+	 * itself, when there is no journal.
+	 */
+	private final AtomicLong							lastSequence	= new AtomicLong();
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs an empty history.
+	 *
+	 * @param capacity
+	 *            the number of messages kept in memory for all clients and
+	 *            for each room, rounded up to a power of two.
+	 */
+	public MessageHistory(int capacity) {
+		this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		lobby = new Ring(this.capacity, 0);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Returns the latest messages sent to all clients or to a room, oldest
+	 * first, up to a sequence number. Messages being added by other threads
+	 * meanwhile may or may not be included.
+	 *
+	 * @param room
+	 *            the room, null for the messages sent to all clients.
+	 * @param count
+	 *            the most messages returned.
+	 * @param upTo
+	 *            the sequence number of the last message that may be
+	 *            returned, such as <code>getLastSequence</code> at the time
+	 *            the messages were asked for.
+	 * @return the messages.
+	 * @exception IOException
+	 *                if older messages are needed and the journal cannot be
+	 *                read.
+	 */
+	public List<MessageJournal.Entry> getLatest(String room, int count, long upTo) throws IOException {
+		List<MessageJournal.Entry> latest = getRecent(room, count, upTo);
+
+		// The rest from the journal, before the oldest message in memory
+		MessageJournal journal = this.journal;
+		if (latest.size() < count && journal != null) {
+			long before = latest.isEmpty() ? upTo + 1 : latest.get(0).getSequence();
+			List<MessageJournal.Entry> older = readJournal(journal, room, before, count - latest.size());
+
+			older.addAll(latest);
+			return older;
+		}
+		return latest;
+	}
+
+	/**
+	 * Returns the latest messages sent to all clients or to a room that are
+	 * kept in memory, oldest first, up to a sequence number. Unlike
+	 * <code>getLatest</code>, never reads the journal, so it may return
+	 * fewer messages than asked for even though older ones were sent.
+	 *
+	 * @param room
+	 *            the room, null for the messages sent to all clients.
+	 * @param count
+	 *            the most messages returned.
+	 * @param upTo
+	 *            the sequence number of the last message that may be
+	 *            returned.
+	 * @return the messages.
+	 */
+	public List<MessageJournal.Entry> getRecent(String room, int count, long upTo) {
+		Ring ring = room == null ? lobby : rooms.get(room);
+		ArrayList<MessageJournal.Entry> recent = new ArrayList<MessageJournal.Entry>();
+
+		if (ring != null) {
+			for (MessageJournal.Entry entry : ring.snapshot()) {
+				if (entry.getSequence() <= upTo)
+					recent.add(entry);
+			}
+		}
+		if (recent.size() > count)
+			return new ArrayList<MessageJournal.Entry>(recent.subList(recent.size() - count, recent.size()));
+		return recent;
+	}
+
+	/**
+	 * Returns whether the latest messages sent to all clients or to a room,
+	 * up to a sequence number, are all kept in memory, so that
+	 * <code>getRecent</code> returns the same messages as
+	 * <code>getLatest</code> without reading the journal. They are unless
+	 * fewer than asked for are kept, and the journal holds messages from
+	 * before the oldest message the ring was given, such as those sent
+	 * before the server was restarted.
+	 *
+	 * @param room
+	 *            the room, null for the messages sent to all clients.
+	 * @param count
+	 *            the most messages asked for.
+	 * @param upTo
+	 *            the sequence number of the last message that may be
+	 *            returned.
+	 * @return true if the journal need not be read.
+	 */
+	public boolean isInMemory(String room, int count, long upTo) {
+		MessageJournal journal = this.journal;
+		if (journal == null)
+			return true;
+
+		Ring ring = room == null ? lobby : rooms.get(room);
+		if (ring == null)
+			return journal.getFirstSequence() > upTo;
+
+		List<MessageJournal.Entry> recent = getRecent(room, count, upTo);
+		if (recent.size() >= count)
+			return true;
+
+		// Every message of the ring from this one on is still in it
+		long from = ring.wrapped() || ring.from == 0
+				? (recent.isEmpty() ? upTo + 1 : recent.get(0).getSequence()) : ring.from;
+		return journal.getFirstSequence() >= from;
+	}
+
+	/**
+	 * Returns the sequence number of the last message added.
+	 *
+	 * @return the sequence number, 0 if none was added.
+	 */
+	public long getLastSequence() {
+		MessageJournal journal = this.journal;
+		return journal == null ? lastSequence.get() : journal.getLastSequence();
+	}
+
+	/**
+	 * Returns the number of messages kept in memory for all clients and for
+	 * each room.
+	 *
+	 * @return the capacity of the rings.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Adds a message sent to all clients or to a room, numbered by the
+	 * journal if there is one. Messages must be added in the order of their
+	 * sequence numbers.
+	 *
+	 * @param room
+	 *            the room, null for all clients.
+	 * @param message
+	 *            the message.
+	 * @param sequence
+	 *            the sequence number the journal gave the message, ignored
+	 *            if there is no journal.
+	 */
+	void add(String room, String message, long sequence) {
+		if (journal == null)
+			sequence = lastSequence.incrementAndGet();
+
+		long first = sequence;
+		if (lobby.from == 0)
+			lobby.from = first; // the lobby gets every message sent to all clients
+
+		Ring ring = room == null ? lobby : rooms.computeIfAbsent(room, name -> new Ring(capacity, first));
+		ring.add(new MessageJournal.Entry(sequence, System.currentTimeMillis(), room, message));
+	}
+
+	/**
+	 * Drops the messages of a room kept in memory, once it has no members.
+	 * Those still in the journal are read from it if asked for again.
+	 *
+	 * @param room
+	 *            the room.
+	 */
+	void forget(String room) {
+		rooms.remove(room);
+	}
+
+	/**
+	 * Sets the journal older messages are read from.
+	 *
+	 * @param journal
+	 *            the journal, null if there is none.
+	 */
+	void setJournal(MessageJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Reads the latest messages of a room before a sequence number from the
+	 * journal. The journal is read forward only, so it is read from a little
+	 * before, further back each time too few messages are found.
+	 */
+	private static List<MessageJournal.Entry> readJournal(MessageJournal journal, String room, long before,
+			int count) throws IOException {
+		long first = journal.getFirstSequence();
+		long window = Math.max(64, 4L * count);
+
+		while (true) {
+			long from = Math.max(first, before - window);
+			ArrayDeque<MessageJournal.Entry> found = new ArrayDeque<MessageJournal.Entry>(count + 1);
+			MessageJournal.Reader reader = journal.read(from);
+			MessageJournal.Entry entry;
+
+			while ((entry = reader.next()) != null && entry.getSequence() < before) {
+				if (Objects.equals(entry.getRoom(), room)) {
+					found.addLast(entry);
+					if (found.size() > count)
+						found.removeFirst();
+				}
+			}
+
+			if (found.size() == count || from <= first || window >= MAX_JOURNAL_SCAN)
+				return new ArrayList<MessageJournal.Entry>(found);
+			window *= 4;
+		}
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * A ring of the latest messages of the lobby or of a room.
+	 */
+	private static class Ring {
+		/**
+		 * The messages, by their position modulo the capacity.
+		 */
+		private final AtomicReferenceArray<MessageJournal.Entry>	slots;
+
+		/**
+		 * The position the next message is added at, moved on only once the
+		 * message is in its slot.
+		 */
+		private final AtomicLong									next	= new AtomicLong();
+
+		/**
+		 * The sequence number from which every message of the lobby or of
+		 * the room was given to the ring, 0 until the first one is.
+		 */
+		volatile long												from;
+
+		Ring(int capacity, long from) {
+			slots = new AtomicReferenceArray<MessageJournal.Entry>(capacity);
+			this.from = from;
+		}
+
+		/**
+		 * Indicates if messages were overwritten.
+		 */
+		boolean wrapped() {
+			return next.get() > slots.length();
+		}
+
+		/**
+		 * Adds a message, overwriting the oldest once the ring is full. Not
+		 * to be called by several threads at once.
+		 */
+		void add(MessageJournal.Entry entry) {
+			long position = next.get();
+			slots.set((int) position & (slots.length() - 1), entry);
+			next.set(position + 1);
+		}
+
+		/**
+		 * Returns the messages of the ring in the order of their sequence
+		 * numbers, leaving out those overwritten while being read, so that
+		 * no message between the first and the last returned is missing.
+		 */
+		List<MessageJournal.Entry> snapshot() {
+			long end = next.get();
+			long start = Math.max(0, end - slots.length());
+			MessageJournal.Entry[] read = new MessageJournal.Entry[(int) (end - start)];
+
+			for (long position = start; position < end; position++)
+				read[(int) (position - start)] = slots.get((int) position & (slots.length() - 1));
+
+			// Slots read after a message was added over them hold a newer one
+			long overwritten = next.get() - slots.length();
+			ArrayList<MessageJournal.Entry> entries = new ArrayList<MessageJournal.Entry>(read.length);
+
+			for (long position = Math.max(start, overwritten); position < end; position++)
+				entries.add(read[(int) (position - start)]);
+			return entries;
+		}
+	}
+}
+// End of MessageHistory class
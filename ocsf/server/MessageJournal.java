@@ -0,0 +1,750 @@
+package ocsf.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32C;
+
+/**
+ * A <code> MessageJournal </code> keeps the messages sent by a server on
+ * disk, in the order they were appended, each under a sequence number one
+ * more than the previous one.
+ * <p>
+ * The journal is a directory of segment files of a fixed size, each named
+ * after the sequence number of its first message. Messages are appended to
+ * the last segment through a memory mapping, so appending copies the message
+ * into memory and takes no system call; when the segment is full, it is
+ * forced to disk and a new one is started. A background thread forces what
+ * was appended to disk at regular intervals, committing all the messages
+ * appended meanwhile at once; <code>sync</code> waits for the next of these
+ * commits instead of forcing the journal itself. Messages appended since the
+ * last commit survive the server exiting, but not the machine stopping.
+ * <p>
+ * Each message is stored with the time it was appended, the room it was sent
+ * to if any, and a checksum, so that a message cut short by a crash is found
+ * and dropped when the journal is opened again. Whole segments are deleted,
+ * oldest first, once the journal grows past a size or they grow past an age.
+ * <p>
+ * Messages are read back in order with a <code>Reader</code>, from any
+ * sequence number still kept, while messages are being appended.
+ */
+final public class MessageJournal implements Closeable {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The size, in bytes, of a segment unless otherwise specified.
+	 */
+	final public static int		DEFAULT_SEGMENT_SIZE	= 64 * 1024 * 1024;
+
+	/**
+	 * The time, in milliseconds, between commits unless otherwise specified.
+	 */
+	final public static long	DEFAULT_SYNC_INTERVAL	= 10;
+
+	/**
+	 * The total size, in bytes, segments are kept up to unless otherwise
+	 * specified.
+	 */
+	final public static long	DEFAULT_MAX_BYTES		= 1024L * 1024 * 1024;
+
+	/**
+	 * The age, in milliseconds, segments are kept up to unless otherwise
+	 * specified: a week.
+	 */
+	final public static long	DEFAULT_MAX_AGE			= 7L * 24 * 60 * 60 * 1000;
+
+	/**
+	 * The end of the names of segment files.
+	 */
+	private final static String	SUFFIX					= ".journal";
+
+	/**
+	 * The bytes in front of each message: the length of the rest of the
+	 * record, then its checksum.
+	 */
+	private final static int	HEADER_SIZE				= 8;
+
+	/**
+	 * The bytes of a record besides its header and texts: the time it was
+	 * appended and the length of its room.
+	 */
+	private final static int	FIXED_BODY_SIZE			= 10;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The directory of the segment files.
+	 */
+	private final File										directory;
+
+	/**
+	 * The size, in bytes, of new segments.
+	 */
+	private final int										segmentSize;
+
+	/**
+	 * The time, in milliseconds, between commits.
+	 */
+	private final long										syncInterval;
+
+	/**
+	 * The segment files kept, by the sequence number of their first
+	 * message.
+	 */
+	private final ConcurrentSkipListMap<Long, File>			segments	= new ConcurrentSkipListMap<Long, File>();
+
+	/**
+	 * The segment messages are appended to. Only changed while synchronized
+	 * on the journal.
+	 */
+	private Segment											current;
+
+	/**
+	 * The sequence number of the last message appended, 0 if none. Written
+	 * after the message, so that readers never go past it.
+	 */
+	private volatile long									lastSequence;
+
+	/**
+	 * The sequence number of the last message forced to disk. Guarded by
+	 * <code>syncLock</code>.
+	 */
+	private long											syncedSequence;
+
+	/**
+	 * Indicates if a thread waits in <code>sync</code> for the next commit.
+	 * Guarded by <code>syncLock</code>.
+	 */
+	private boolean											syncRequested;
+
+	/**
+	 * Synchronizes the writer thread with the threads waiting for commits.
+	 */
+	private final Object									syncLock	= new Object();
+
+	/**
+	 * The total size, in bytes, segments are kept up to.
+	 */
+	private volatile long									maxBytes	= DEFAULT_MAX_BYTES;
+
+	/**
+	 * The age, in milliseconds, segments are kept up to.
+	 */
+	private volatile long									maxAge		= DEFAULT_MAX_AGE;
+
+	/**
+	 * Indicates if the journal has been closed.
+	 */
+	private volatile boolean								closed;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Opens the journal in a directory, with the default segment size and
+	 * interval between commits.
+	 *
+	 * @param directory
+	 *            the directory of the segment files, created if needed.
+	 * @exception IOException
+	 *                if the journal cannot be opened.
+	 */
+	public MessageJournal(File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_SYNC_INTERVAL);
+	}
+
+	/**
+	 * Opens the journal in a directory. The messages already in it are kept,
+	 * up to the first one found damaged in its last segment, and new messages
+	 * are appended after them.
+	 *
+	 * @param directory
+	 *            the directory of the segment files, created if needed.
+	 * @param segmentSize
+	 *            the size, in bytes, of new segments.
+	 * @param syncInterval
+	 *            the time, in milliseconds, between commits.
+	 * @exception IOException
+	 *                if the journal cannot be opened.
+	 */
+	public MessageJournal(File directory, int segmentSize, long syncInterval) throws IOException {
+		if (segmentSize < HEADER_SIZE + FIXED_BODY_SIZE || syncInterval <= 0)
+			throw new IllegalArgumentException("segment size " + segmentSize + ", interval " + syncInterval);
+
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.syncInterval = syncInterval;
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("cannot create " + directory);
+
+		File[] files = directory.listFiles();
+		for (int i = 0; files != null && i < files.length; i++) {
+			String name = files[i].getName();
+
+			if (name.endsWith(SUFFIX)) {
+				try {
+					segments.put(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), files[i]);
+				} catch (NumberFormatException ex) {
+				}
+			}
+		}
+
+		if (segments.isEmpty())
+			current = createSegment(1);
+		else
+			current = recoverSegment(segments.lastKey(), segments.lastEntry().getValue());
+
+		lastSequence = current.base + current.count - 1;
+		syncedSequence = lastSequence;
+		applyRetention();
+
+		Thread writer = new Thread(this::syncLoop, "Journal sync " + directory.getName());
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Appends a message to the journal. The message is on disk once the
+	 * next commit has run, or once <code>sync</code> returns.
+	 *
+	 * @param room
+	 *            the room the message was sent to, null if none.
+	 * @param message
+	 *            the message.
+	 * @return the sequence number of the message.
+	 * @exception IOException
+	 *                if the journal is closed or a new segment cannot be
+	 *                started.
+	 * @exception IllegalArgumentException
+	 *                if the message does not fit in a segment.
+	 */
+	public long append(String room, String message) throws IOException {
+		// Encoded before taking the lock, so that appends only wait for
+		// one another while copying
+		byte[] roomBytes = room == null ? new byte[0] : room.getBytes(StandardCharsets.UTF_8);
+		byte[] text = message.getBytes(StandardCharsets.UTF_8);
+		byte[] body = new byte[FIXED_BODY_SIZE + roomBytes.length + text.length];
+
+		if (roomBytes.length > Short.MAX_VALUE || HEADER_SIZE + body.length > segmentSize)
+			throw new IllegalArgumentException("message too long for the journal");
+
+		ByteBuffer.wrap(body).putLong(System.currentTimeMillis()).putShort((short) roomBytes.length)
+				.put(roomBytes).put(text);
+		CRC32C checksum = new CRC32C();
+		checksum.update(body);
+
+		synchronized (this) {
+			if (closed)
+				throw new IOException("journal closed");
+
+			if (current.position + HEADER_SIZE + body.length > current.buffer.capacity())
+				roll();
+
+			// The length last, so that a record is never seen half written
+			int position = current.position;
+			current.buffer.putInt(position + 4, (int) checksum.getValue());
+			current.buffer.put(position + HEADER_SIZE, body);
+			current.buffer.putInt(position, body.length);
+
+			current.position += HEADER_SIZE + body.length;
+			current.count++;
+			lastSequence = current.base + current.count - 1;
+			return lastSequence;
+		}
+	}
+
+	/**
+	 * Waits until every message appended so far is on disk. Threads calling
+	 * at the same time wait for the same commit.
+	 *
+	 * @exception IOException
+	 *                if the journal was closed first, or the wait was
+	 *                interrupted.
+	 */
+	public void sync() throws IOException {
+		long target = lastSequence;
+
+		synchronized (syncLock) {
+			while (syncedSequence < target) {
+				if (closed)
+					throw new IOException("journal closed");
+
+				syncRequested = true;
+				syncLock.notifyAll();
+				try {
+					syncLock.wait();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted waiting for the journal");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns a reader of the messages from a sequence number on. If the
+	 * segment holding that message has been deleted, the reader starts at
+	 * the oldest message kept.
+	 *
+	 * @param fromSequence
+	 *            the sequence number of the first message read.
+	 * @return the reader.
+	 */
+	public Reader read(long fromSequence) {
+		return new Reader(Math.max(1, fromSequence));
+	}
+
+	/**
+	 * Returns the sequence number of the last message appended.
+	 *
+	 * @return the sequence number, 0 if no message was ever appended.
+	 */
+	public long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * Returns the sequence number of the oldest message kept.
+	 *
+	 * @return the sequence number, one more than the last if no message is
+	 *         kept.
+	 */
+	public long getFirstSequence() {
+		Map.Entry<Long, File> first = segments.firstEntry();
+		return first == null ? lastSequence + 1 : Math.min(first.getKey(), lastSequence + 1);
+	}
+
+	/**
+	 * Returns the directory of the segment files.
+	 *
+	 * @return the directory.
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Sets how long segments are kept: they are deleted, oldest first, while
+	 * the journal is larger than a size or they were last written to before
+	 * an age. The segment messages are appended to is always kept. The
+	 * limits are applied whenever a segment is started.
+	 *
+	 * @param maxBytes
+	 *            the total size, in bytes, segments are kept up to.
+	 * @param maxAge
+	 *            the age, in milliseconds, segments are kept up to.
+	 */
+	public void setRetention(long maxBytes, long maxAge) {
+		this.maxBytes = maxBytes;
+		this.maxAge = maxAge;
+	}
+
+	/**
+	 * Forces the journal to disk and closes it. Messages can no longer be
+	 * appended; readers may still read the messages kept.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+
+			closed = true;
+			force(current, current.position);
+		}
+
+		synchronized (syncLock) {
+			syncedSequence = lastSequence;
+			syncLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Forces the current segment to disk and starts a new one after it, then
+	 * deletes the segments no longer kept. Called while synchronized on the
+	 * journal.
+	 */
+	private void roll() throws IOException {
+		force(current, current.position);
+		current = createSegment(lastSequence + 1);
+		applyRetention();
+	}
+
+	/**
+	 * Creates the file of a new segment at its full size, and maps it.
+	 */
+	private Segment createSegment(long base) throws IOException {
+		File file = new File(directory, String.format("%020d", base) + SUFFIX);
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(segmentSize);
+			Segment segment = new Segment(base, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+			segments.put(base, file);
+			return segment;
+		}
+	}
+
+	/**
+	 * Maps the last segment of a journal being opened, and finds the end of
+	 * its messages. A damaged message and whatever follows it are cleared,
+	 * so that they are overwritten by the next messages.
+	 */
+	private Segment recoverSegment(long base, File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			if (raf.length() < HEADER_SIZE + FIXED_BODY_SIZE)
+				raf.setLength(segmentSize);
+
+			Segment segment = new Segment(base, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					raf.length()));
+			MappedByteBuffer buffer = segment.buffer;
+
+			int length;
+			while (segment.position + HEADER_SIZE <= buffer.capacity()
+					&& (length = buffer.getInt(segment.position)) != 0) {
+				if (!isValid(buffer, segment.position, length)) {
+					for (int i = segment.position; i < buffer.capacity(); i++)
+						buffer.put(i, (byte) 0);
+					break;
+				}
+				segment.position += HEADER_SIZE + length;
+				segment.count++;
+			}
+			segment.synced = segment.position;
+			return segment;
+		}
+	}
+
+	/**
+	 * Deletes the oldest segments while they are past the size or age kept,
+	 * except the current one.
+	 */
+	private void applyRetention() {
+		long total = 0;
+		for (File file : segments.values())
+			total += file.length();
+
+		long oldest = System.currentTimeMillis() - maxAge;
+		for (Map.Entry<Long, File> entry : segments.entrySet()) {
+			File file = entry.getValue();
+
+			if (entry.getKey() == current.base || (total <= maxBytes && file.lastModified() >= oldest))
+				break;
+
+			total -= file.length();
+			segments.remove(entry.getKey());
+			file.delete();
+		}
+	}
+
+	/**
+	 * Forces the part of a segment written since it was last forced.
+	 */
+	private static void force(Segment segment, int end) {
+		synchronized (segment) {
+			if (end > segment.synced) {
+				segment.buffer.force(segment.synced, end - segment.synced);
+				segment.synced = end;
+			}
+		}
+	}
+
+	/**
+	 * Run by the writer thread: commits the messages appended since the last
+	 * commit, at regular intervals or sooner when a thread waits in
+	 * <code>sync</code>.
+	 */
+	private void syncLoop() {
+		while (!closed) {
+			synchronized (syncLock) {
+				if (!syncRequested) {
+					try {
+						syncLock.wait(syncInterval);
+					} catch (InterruptedException ex) {
+					}
+				}
+				syncRequested = false;
+			}
+
+			Segment segment;
+			int end;
+			long target;
+			synchronized (this) {
+				if (closed)
+					return;
+
+				segment = current;
+				end = segment.position;
+				target = lastSequence;
+			}
+
+			try {
+				// Outside the lock, so that appends go on meanwhile. A
+				// segment rolled since was forced when it was rolled.
+				force(segment, end);
+			} catch (RuntimeException ex) {
+				continue; // tried again at the next commit
+			}
+
+			synchronized (syncLock) {
+				syncedSequence = Math.max(syncedSequence, target);
+				syncLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Checks the length and checksum of a record.
+	 */
+	private static boolean isValid(ByteBuffer buffer, int position, int length) {
+		if (length < FIXED_BODY_SIZE || position + HEADER_SIZE + length > buffer.capacity())
+			return false;
+
+		byte[] body = new byte[length];
+		buffer.get(position + HEADER_SIZE, body);
+		CRC32C checksum = new CRC32C();
+		checksum.update(body);
+		return (int) checksum.getValue() == buffer.getInt(position + 4);
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * A segment being appended to: its mapping and where the next message
+	 * goes.
+	 */
+	private static class Segment {
+		/**
+		 * The sequence number of the first message of the segment.
+		 */
+		final long				base;
+
+		/**
+		 * The mapping of the whole segment file.
+		 */
+		final MappedByteBuffer	buffer;
+
+		/**
+		 * The offset the next message is written at.
+		 */
+		int						position;
+
+		/**
+		 * The number of messages in the segment.
+		 */
+		int						count;
+
+		/**
+		 * The offset up to which the segment has been forced to disk.
+		 */
+		int						synced;
+
+		Segment(long base, MappedByteBuffer buffer) {
+			this.base = base;
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 * A message read from the journal.
+	 */
+	final public static class Entry {
+		/**
+		 * The sequence number of the message.
+		 */
+		private final long		sequence;
+
+		/**
+		 * The time, in milliseconds since the epoch, the message was
+		 * appended.
+		 */
+		private final long		timestamp;
+
+		/**
+		 * The room the message was sent to, null if none.
+		 */
+		private final String	room;
+
+		/**
+		 * The message.
+		 */
+		private final String	message;
+
+		Entry(long sequence, long timestamp, String room, String message) {
+			this.sequence = sequence;
+			this.timestamp = timestamp;
+			this.room = room;
+			this.message = message;
+		}
+
+		/**
+		 * @return the sequence number of the message.
+		 */
+		public long getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * @return the time, in milliseconds since the epoch, the message
+		 *         was appended.
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/**
+		 * @return the room the message was sent to, null if none.
+		 */
+		public String getRoom() {
+			return room;
+		}
+
+		/**
+		 * @return the message.
+		 */
+		public String getMessage() {
+			return message;
+		}
+
+		/**
+		 * Returns the message.
+		 */
+		public String toString() {
+			return message;
+		}
+	}
+
+	/**
+	 * Reads the messages of the journal in order. A reader returns the
+	 * messages appended so far, then more as they are appended; it is used
+	 * by one thread at a time.
+	 */
+	final public class Reader {
+		/**
+		 * The sequence number of the next message read.
+		 */
+		private long				sequence;
+
+		/**
+		 * The sequence number of the first message of the segment read.
+		 */
+		private long				base;
+
+		/**
+		 * The sequence number of the message at <code>position</code>.
+		 */
+		private long				positionSequence;
+
+		/**
+		 * A read-only mapping of the segment read, null before a segment is
+		 * mapped.
+		 */
+		private MappedByteBuffer	buffer;
+
+		/**
+		 * The offset of the next record of the segment.
+		 */
+		private int					position;
+
+		Reader(long sequence) {
+			this.sequence = sequence;
+		}
+
+		/**
+		 * Returns the next message.
+		 *
+		 * @return the message, or null if no message was appended since the
+		 *         last one read.
+		 * @exception IOException
+		 *                if a segment cannot be read, or a message read is
+		 *                damaged.
+		 */
+		public Entry next() throws IOException {
+			while (sequence <= lastSequence) {
+				if (buffer == null) {
+					Map.Entry<Long, File> entry = segments.floorEntry(sequence);
+					if (!open(entry == null ? segments.firstEntry() : entry))
+						return null;
+				}
+
+				int length = position + HEADER_SIZE <= buffer.capacity() ? buffer.getInt(position) : 0;
+				if (length == 0) {
+					// The end of the segment: the message is in the next one
+					if (!open(segments.higherEntry(base)))
+						return null;
+					continue;
+				}
+
+				if (!isValid(buffer, position, length))
+					throw new IOException("message " + positionSequence + " of the journal is damaged");
+
+				int record = position;
+				long recordSequence = positionSequence;
+				position += HEADER_SIZE + length;
+				positionSequence++;
+
+				if (recordSequence < sequence)
+					continue; // before the first message asked for
+
+				sequence = recordSequence + 1;
+				return decode(recordSequence, record + HEADER_SIZE, length);
+			}
+			return null;
+		}
+
+		/**
+		 * Returns the sequence number of the next message read.
+		 *
+		 * @return the sequence number.
+		 */
+		public long getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * Maps a segment, or the one after it if it was deleted meanwhile.
+		 * Messages deleted with their segment are skipped.
+		 *
+		 * @return false if there is no such segment.
+		 */
+		private boolean open(Map.Entry<Long, File> entry) throws IOException {
+			buffer = null;
+
+			while (entry != null) {
+				try (RandomAccessFile raf = new RandomAccessFile(entry.getValue(), "r")) {
+					buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+					base = entry.getKey();
+					position = 0;
+					positionSequence = base;
+					sequence = Math.max(sequence, base);
+					return true;
+				} catch (FileNotFoundException ex) {
+					entry = segments.higherEntry(entry.getKey());
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Decodes the body of a record.
+		 */
+		private Entry decode(long recordSequence, int offset, int length) {
+			byte[] body = new byte[length];
+			buffer.get(offset, body);
+
+			ByteBuffer in = ByteBuffer.wrap(body);
+			long timestamp = in.getLong();
+			int roomLength = in.getShort();
+			String room = roomLength == 0 ? null : new String(body, FIXED_BODY_SIZE, roomLength,
+					StandardCharsets.UTF_8);
+			String message = new String(body, FIXED_BODY_SIZE + roomLength, length - FIXED_BODY_SIZE - roomLength,
+					StandardCharsets.UTF_8);
+			return new Entry(recordSequence, timestamp, room, message);
+		}
+	}
+}
+// End of MessageJournal class
@@ -0,0 +1,215 @@
+package ocsf.server;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The <code> NioEngine </code> class serves client connections with a small,
+ * fixed pool of event loop threads instead of one thread per client. Each
+ * event loop owns a <code> Selector </code>; accepted channels are handed to
+ * the loops in turn, and the loops read framed messages from them and pass
+ * them to the server through the same hook methods as the threaded engine.
+ *
+ * @see ocsf.server.AbstractServer#NIO_SELECTOR
+ */
+class NioEngine {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The server whose connections are served by this engine.
+	 */
+	private AbstractServer	server;
+
+	/**
+	 * The event loops, each running on its own thread.
+	 */
+	private EventLoop[]		loops;
+
+	/**
+	 * The index of the event loop that receives the next connection.
+	 */
+	private int				nextLoop	= 0;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs the engine and starts its event loops.
+	 *
+	 * @param server
+	 *            the server whose connections are served.
+	 * @param loopCount
+	 *            the number of event loop threads.
+	 * @exception IOException
+	 *                if a selector cannot be opened.
+	 */
+	NioEngine(AbstractServer server, int loopCount) throws IOException {
+		this.server = server;
+		this.loops = new EventLoop[Math.max(1, loopCount)];
+
+		try {
+			for (int i = 0; i < loops.length; i++) {
+				loops[i] = new EventLoop(i);
+			}
+		} catch (IOException ex) {
+			shutdown();
+			throw ex;
+		}
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Creates the connection for an accepted channel and hands it to the next
+	 * event loop.
+	 *
+	 * @param channel
+	 *            the accepted channel.
+	 * @exception IOException
+	 *                if the channel cannot be configured.
+	 */
+	synchronized void register(SocketChannel channel) throws IOException {
+		ConnectionToClient client;
+
+		try {
+			client = new ConnectionToClient(channel, server);
+		} catch (IOException ex) {
+			channel.close();
+			throw ex;
+		}
+
+		loops[nextLoop].add(client);
+		nextLoop = (nextLoop + 1) % loops.length;
+	}
+
+	/**
+	 * Stops the event loops. Connections still open are left to be closed by
+	 * the server.
+	 */
+	void shutdown() {
+		for (int i = 0; i < loops.length; i++) {
+			if (loops[i] != null)
+				loops[i].stop();
+		}
+	}
+
+	// INNER CLASSES ----------------------------------------------------
+
+	/**
+	 * A thread waiting on a selector for its channels to become readable or
+	 * writable.
+	 */
+	private class EventLoop implements Runnable {
+		/**
+		 * The selector of this loop.
+		 */
+		private Selector								selector;
+
+		/**
+		 * Connections waiting to be registered with the selector. Channels
+		 * may only be registered by the loop thread without contention.
+		 */
+		private Queue<ConnectionToClient>	incoming	= new ConcurrentLinkedQueue<ConnectionToClient>();
+
+		/**
+		 * Set to true when the loop must end.
+		 */
+		private volatile boolean						stopped		= false;
+
+		/**
+		 * Opens the selector and starts the loop thread.
+		 *
+		 * @param index
+		 *            the index of the loop, used to name its thread.
+		 */
+		EventLoop(int index) throws IOException {
+			selector = Selector.open();
+
+			Thread thread = new Thread(this, "NioEngine event loop " + index);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		/**
+		 * Queues a connection for registration and wakes the loop up.
+		 */
+		void add(ConnectionToClient client) {
+			incoming.add(client);
+			selector.wakeup();
+		}
+
+		/**
+		 * Ends the loop.
+		 */
+		void stop() {
+			stopped = true;
+			selector.wakeup();
+		}
+
+		/**
+		 * Runs the loop. Not to be called.
+		 */
+		public void run() {
+			try {
+				while (!stopped) {
+					selector.select();
+					registerIncoming();
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						serve(key);
+					}
+				}
+			} catch (IOException ex) {
+				// The selector itself failed, nothing more can be served
+			} finally {
+				try {
+					selector.close();
+				} catch (IOException ex) {
+				}
+			}
+		}
+
+		/**
+		 * Registers the connections queued by the acceptor.
+		 */
+		private void registerIncoming() {
+			ConnectionToClient client;
+
+			while ((client = incoming.poll()) != null) {
+				if (!server.registerConnection(client)) {
+					client.abandon();
+					continue;
+				}
+				try {
+					client.attach(selector);
+				} catch (Exception ex) {
+					client.channelException(ex);
+				}
+			}
+		}
+
+		/**
+		 * Serves one ready channel.
+		 */
+		private void serve(SelectionKey key) {
+			ConnectionToClient client = (ConnectionToClient) key.attachment();
+
+			try {
+				if (key.isValid() && key.isWritable())
+					client.flushToChannel();
+
+				if (key.isValid() && key.isReadable())
+					client.readFromChannel();
+			} catch (CancelledKeyException ex) {
+				// The connection was closed while being served
+			} catch (Exception ex) {
+				client.channelException(ex);
+			}
+		}
+	}
+}
+// End of NioEngine class
@@ -0,0 +1,346 @@
+package ocsf.server;
+
+import java.io.*;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An <code> OutboundQueue </code> holds the messages waiting to be written to
+ * one client. Messages are added by whichever thread broadcasts them and are
+ * written by a writer task running on the server's writer executor, so the
+ * broadcasting thread never waits for the client's socket. The queue is
+ * bounded; what happens when it is full depends on the overflow policy of
+ * the server.
+ * <p>
+ * The queue takes over the reference its caller holds to a shared message,
+ * and releases it once the message is written or dropped.
+ * <p>
+ * The queue is guarded by a lock rather than by its monitor, so that a
+ * virtual thread waiting for room in a full queue leaves its carrier thread
+ * to the other virtual threads.
+ *
+ * @see ocsf.server.AbstractServer#setOutboundQueueCapacity(int)
+ */
+class OutboundQueue implements Runnable {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Stands for a null message, since the queue cannot hold nulls.
+	 */
+	private static final Object	NULL_MESSAGE	= new Object();
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The connection the messages are written to.
+	 */
+	private ConnectionToClient	client;
+
+	/**
+	 * The server that owns the connection.
+	 */
+	private AbstractServer		server;
+
+	/**
+	 * The messages waiting to be written, oldest first.
+	 */
+	private ArrayDeque<Object>	messages		= new ArrayDeque<Object>();
+
+	/**
+	 * The maximum number of messages waiting.
+	 */
+	private int					capacity;
+
+	/**
+	 * What to do when the queue is full, one of the
+	 * <code>OVERFLOW_</code> constants of <code>AbstractServer</code>.
+	 */
+	private int					overflowPolicy;
+
+	/**
+	 * How long, in nanoseconds, the writer waits for more messages once the
+	 * queue is empty, before writing the messages gathered to the socket.
+	 */
+	private long				flushDelay;
+
+	/**
+	 * Indicates if a writer task is scheduled or running.
+	 */
+	private boolean				draining		= false;
+
+	/**
+	 * Set to true once the connection can no longer be written to.
+	 */
+	private boolean				closed			= false;
+
+	/**
+	 * The number of messages dropped by this queue.
+	 */
+	private long				droppedCount	= 0;
+
+	/**
+	 * Guards the state of the queue.
+	 */
+	private final ReentrantLock	lock			= new ReentrantLock();
+
+	/**
+	 * Signalled when room is made in the queue, or when it closes.
+	 */
+	private final Condition		notFull			= lock.newCondition();
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs the queue of a connection.
+	 *
+	 * @param client
+	 *            the connection written to.
+	 * @param server
+	 *            the server that owns the connection.
+	 * @param capacity
+	 *            the maximum number of messages waiting.
+	 * @param overflowPolicy
+	 *            what to do when the queue is full.
+	 * @param flushDelay
+	 *            how long to wait for more messages before flushing, in
+	 *            nanoseconds.
+	 */
+	OutboundQueue(ConnectionToClient client, AbstractServer server, int capacity, int overflowPolicy,
+			long flushDelay) {
+		this.client = client;
+		this.server = server;
+		this.capacity = Math.max(1, capacity);
+		this.overflowPolicy = overflowPolicy;
+		this.flushDelay = flushDelay;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Adds a message to the queue and makes sure a writer task will write it.
+	 *
+	 * @param msg
+	 *            the message to send.
+	 * @exception IOException
+	 *                if the connection is closed, or was closed because the
+	 *                client could not keep up.
+	 */
+	void offer(Object msg) throws IOException {
+		boolean schedule = false;
+		boolean disconnect = false;
+		boolean skip = false;
+
+		lock.lock();
+		try {
+			while (!closed && messages.size() >= capacity) {
+				if (overflowPolicy == AbstractServer.OVERFLOW_DROP_OLDEST) {
+					discard(messages.poll());
+					dropped(1);
+				} else if (overflowPolicy == AbstractServer.OVERFLOW_DISCONNECT) {
+					disconnect = true;
+					break;
+				} else if (client.isEvicted()) {
+					// Skipped for falling behind, rather than waited for
+					skip = true;
+					break;
+				} else {
+					try {
+						notFull.await();
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("interrupted while waiting for queue space");
+					}
+				}
+			}
+
+			if (closed) {
+				discard(msg);
+				throw new SocketException("socket does not exist");
+			}
+
+			if (!disconnect && !skip) {
+				messages.add(msg == null ? NULL_MESSAGE : msg);
+				server.countQueuedMessage();
+
+				if (!draining) {
+					draining = true;
+					schedule = true;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		if (skip) {
+			discard(msg);
+			dropped(1);
+			return;
+		}
+
+		if (disconnect) {
+			discard(msg);
+			dropped(1);
+			client.close();
+			throw new SocketException("client too slow, disconnected");
+		}
+
+		if (schedule)
+			server.executeWriter(this);
+	}
+
+	/**
+	 * Discards the messages still waiting and wakes up any thread blocked on
+	 * a full queue. Called when the connection closes.
+	 */
+	void close() {
+		lock.lock();
+		try {
+			closed = true;
+			dropped(messages.size());
+			for (Object msg : messages)
+				discard(msg);
+			messages.clear();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wakes up the threads waiting for room in the queue, so that they check
+	 * again whether they should wait.
+	 */
+	void wakeUp() {
+		lock.lock();
+		try {
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of messages waiting to be written.
+	 *
+	 * @return the number of messages waiting.
+	 */
+	int size() {
+		lock.lock();
+		try {
+			return messages.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of messages dropped by this queue.
+	 *
+	 * @return the number of messages dropped.
+	 */
+	long getDroppedCount() {
+		lock.lock();
+		try {
+			return droppedCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes queued messages until the queue is empty. The messages are
+	 * gathered and written to the socket together once the queue is empty,
+	 * and has stayed so for the flush delay, or whenever the buffer of the
+	 * connection fills up. Not to be called.
+	 */
+	public void run() {
+		// The messages written since the last flush
+		int gathered = 0;
+		boolean delayed = false;
+
+		while (true) {
+			Object msg;
+
+			lock.lock();
+			try {
+				msg = messages.poll();
+				if (msg == null && gathered == 0) {
+					draining = false;
+					return;
+				}
+				if (msg != null)
+					notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+
+			try {
+				if (msg == null) {
+					if (flushDelay > 0 && !delayed) {
+						// Give the senders a chance to add to the batch; parked
+						// rather than waiting, to leave the carrier thread free
+						LockSupport.parkNanos(flushDelay);
+						delayed = true;
+					} else {
+						client.flush(gathered);
+						gathered = 0;
+						delayed = false;
+					}
+				} else {
+					if (msg instanceof SharedMessage) {
+						SharedMessage shared = (SharedMessage) msg;
+						try {
+							client.send(shared.message(), shared, false);
+						} finally {
+							shared.release();
+						}
+					} else
+						client.send(msg == NULL_MESSAGE ? null : msg, null, false);
+					gathered++;
+				}
+			} catch (Exception ex) {
+				// The connection is gone, nothing else can be written
+				lock.lock();
+				try {
+					dropped(1);
+					close();
+					draining = false;
+				} finally {
+					lock.unlock();
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Releases the reference held to a message no longer queued, if shared.
+	 *
+	 * @param msg
+	 *            the message.
+	 */
+	private static void discard(Object msg) {
+		if (msg instanceof SharedMessage)
+			((SharedMessage) msg).release();
+	}
+
+	/**
+	 * Counts dropped messages.
+	 *
+	 * @param count
+	 *            the number of messages dropped.
+	 */
+	private void dropped(int count) {
+		lock.lock();
+		try {
+			droppedCount += count;
+			server.countDroppedMessages(count);
+		} finally {
+			lock.unlock();
+		}
+	}
+}
+// End of OutboundQueue class
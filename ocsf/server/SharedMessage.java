@@ -0,0 +1,176 @@
+package ocsf.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ocsf.common.MessageCodec;
+import ocsf.common.ObjectFrames;
+
+/**
+ * A <code> SharedMessage </code> is a message sent to many clients at once.
+ * Clients using the framed protocol with the same codec all receive the very
+ * same bytes, so the message is encoded the first time one of them needs it
+ * and never again. Clients using object streams are still sent the message
+ * itself.
+ * <p>
+ * Clients served by the selector engine are written the frame from a direct
+ * buffer taken from a pool, through a view of their own, so that the channel
+ * does not copy it to a direct buffer of its own on every write. The buffer
+ * goes back to the pool once no one refers to the message any more: the
+ * sender holds a reference while handing the message out, each outbound
+ * queue holding the message holds one, and so does each channel with a view
+ * of the frame still waiting to be written.
+ *
+ * @see ocsf.server.AbstractServer#sendToAllClients(Object)
+ */
+final class SharedMessage {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The message sent.
+	 */
+	private final Object	message;
+
+	/**
+	 * The codec that encoded the frame.
+	 */
+	private MessageCodec	codec;
+
+	/**
+	 * The message encoded as a frame, once encoded. The array is never
+	 * modified after encoding and must not be modified by the connections
+	 * writing it.
+	 */
+	private byte[]			frame;
+
+	/**
+	 * The exception raised when encoding failed, so that it is not tried
+	 * again for every client.
+	 */
+	private IOException		failure;
+
+	/**
+	 * The pool the direct buffer of the frame is taken from.
+	 */
+	private final BufferPool	pool;
+
+	/**
+	 * The frame copied to a direct buffer, once a channel needs it.
+	 */
+	private ByteBuffer			directFrame;
+
+	/**
+	 * The number of references to the message. The direct buffer is given
+	 * back to the pool when it drops to zero.
+	 */
+	private final AtomicInteger	references	= new AtomicInteger(1);
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a shared message, referred to once by its sender.
+	 *
+	 * @param message
+	 *            the message sent.
+	 * @param pool
+	 *            the pool of direct buffers.
+	 */
+	SharedMessage(Object message, BufferPool pool) {
+		this.message = message;
+		this.pool = pool;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Returns the message sent.
+	 *
+	 * @return the message.
+	 */
+	Object message() {
+		return message;
+	}
+
+	/**
+	 * Returns the message encoded as a frame, encoding it on the first call.
+	 * Should connections use different codecs, only the frame of the first
+	 * codec is kept and the others are encoded on every call.
+	 *
+	 * @param codec
+	 *            the codec of the connection.
+	 * @return the bytes of the frame, not to be modified.
+	 * @exception IOException
+	 *                if the message cannot be encoded.
+	 */
+	synchronized byte[] frame(MessageCodec codec) throws IOException {
+		if (this.codec == null) {
+			this.codec = codec;
+			try {
+				frame = ObjectFrames.encode(codec, message);
+			} catch (IOException ex) {
+				failure = ex;
+			}
+		}
+
+		if (this.codec != codec)
+			return ObjectFrames.encode(codec, message);
+
+		if (failure != null)
+			throw failure;
+
+		return frame;
+	}
+
+	/**
+	 * Returns a view of the frame in a direct buffer, copying it there on the
+	 * first call. The caller must hold a reference to the message for as long
+	 * as the view is in use.
+	 *
+	 * @param codec
+	 *            the codec of the connection.
+	 * @return a view of the frame, or null if the connection uses another
+	 *         codec than the frame's.
+	 * @exception IOException
+	 *                if the message cannot be encoded.
+	 */
+	synchronized ByteBuffer directFrame(MessageCodec codec) throws IOException {
+		byte[] frame = frame(codec);
+
+		if (this.codec != codec)
+			return null;
+
+		if (directFrame == null) {
+			directFrame = pool.acquire(frame.length);
+			directFrame.put(frame).flip();
+		}
+
+		return directFrame.duplicate();
+	}
+
+	/**
+	 * Adds a reference to the message, to be released once done with it.
+	 */
+	void retain() {
+		references.incrementAndGet();
+	}
+
+	/**
+	 * Releases a reference to the message, giving the direct buffer back to
+	 * the pool once it was the last.
+	 */
+	void release() {
+		if (references.decrementAndGet() != 0)
+			return;
+
+		ByteBuffer buffer;
+		synchronized (this) {
+			buffer = directFrame;
+			directFrame = null;
+		}
+
+		if (buffer != null)
+			pool.release(buffer);
+	}
+}
+// End of SharedMessage class
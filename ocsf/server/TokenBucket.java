@@ -0,0 +1,86 @@
+package ocsf.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A <code> TokenBucket </code> limits the rate of some event, such as the
+ * connections from one address or the messages of one client. The bucket
+ * holds up to a burst of tokens and is refilled at a steady rate; each event
+ * takes a token and is refused when none is left.
+ * <p>
+ * Rather than a token count, the bucket keeps the single time at which it
+ * will be full again, updated by compare-and-set. Taking a token pushes that
+ * time one interval further; the bucket is empty when the time is a whole
+ * burst ahead of now. No lock is taken and no thread refills the bucket.
+ *
+ * @see ocsf.server.AbstractServer#setMessageRateLimit(double, int)
+ * @see ocsf.server.AbstractServer#setConnectionRateLimit(double, int)
+ */
+final class TokenBucket {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The time, in nanoseconds, it takes to refill one token.
+	 */
+	private final long			interval;
+
+	/**
+	 * The time, in nanoseconds, it takes to refill the whole bucket.
+	 */
+	private final long			capacity;
+
+	/**
+	 * The <code>System.nanoTime()</code> at which the bucket will be full.
+	 */
+	private final AtomicLong	fullAt;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a full bucket.
+	 *
+	 * @param rate
+	 *            the number of tokens refilled per second.
+	 * @param burst
+	 *            the number of tokens the bucket holds.
+	 */
+	TokenBucket(double rate, int burst) {
+		interval = Math.max(1, (long) (1000000000L / rate));
+		capacity = interval * Math.max(1, burst);
+		fullAt = new AtomicLong(System.nanoTime());
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Takes a token if one is left.
+	 *
+	 * @return true if the event may go ahead, false if it must be refused.
+	 */
+	boolean tryAcquire() {
+		long now = System.nanoTime();
+
+		while (true) {
+			long full = fullAt.get();
+
+			// A bucket full since before now holds no more than a burst
+			long next = (full - now < 0 ? now : full) + interval;
+			if (next - now > capacity)
+				return false;
+
+			if (fullAt.compareAndSet(full, next))
+				return true;
+		}
+	}
+
+	/**
+	 * Tells if the bucket is full, so that forgetting it would not change
+	 * anything.
+	 *
+	 * @return true if no token has been missing since some time ago.
+	 */
+	boolean isFull() {
+		return fullAt.get() - System.nanoTime() <= 0;
+	}
+}
+// End of TokenBucket class